@@ -0,0 +1,315 @@
+package com.github.lorcan.base.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地限速服务器上对比固定并发和{@link AdaptiveLimiter}的下载效果<br>
+ * 1 服务器所有连接共享一条限速链路（bytesPerSecond），每个请求另有固定的往返延迟，
+ * 并发越多，每个下载和首包都越慢，模拟弱网<br>
+ * 2 固定并发：所有下载同时发出；自适应：按{@link AdaptiveLimiter#tryAcquire}取名额，
+ * 没有名额时用{@link AdaptiveLimiter#runWhenAvailable}等归还后重新提交<br>
+ * 3 两种方式都设同样的读超时，输出有效吞吐、完成耗时的p50/p95、失败数，
+ * 以及自适应方式下等待任务超过上限被直接拒绝的数量<br>
+ * 不在src下，不打进apk；用HttpURLConnection直接请求，不依赖Context，在桌面jvm上运行main
+ *
+ * @author lorcan
+ */
+public class AdaptiveLimiterBenchmark {
+
+    private static final String HOST = "127.0.0.1";
+
+    private static final int THREADS = 32;
+
+    private static final int CHUNK = 1024;
+
+    private final int mBytesPerSecond;
+
+    private final long mRttMs;
+
+    private final int mReadTimeoutMs;
+
+    private ServerSocket mServer;
+
+    /**
+     * 限速链路下一个分片可以发出的时间，所有连接共享
+     */
+    private long mLinkFreeAt;
+
+    public AdaptiveLimiterBenchmark(int bytesPerSecond, long rttMs, int readTimeoutMs) {
+        mBytesPerSecond = bytesPerSecond;
+        mRttMs = rttMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * 参数依次为：下载数、每个文件字节数、链路字节/秒、往返延迟毫秒、读超时毫秒
+     */
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 30 * 1024;
+        int bandwidth = args.length > 2 ? Integer.parseInt(args[2]) : 200 * 1024;
+        long rtt = args.length > 3 ? Long.parseLong(args[3]) : 150;
+        int timeout = args.length > 4 ? Integer.parseInt(args[4]) : 3000;
+
+        AdaptiveLimiterBenchmark benchmark = new AdaptiveLimiterBenchmark(bandwidth, rtt, timeout);
+        benchmark.start();
+        try {
+            System.out.println("downloads=" + count + " size=" + size + " link=" + bandwidth
+                    + "B/s rtt=" + rtt + "ms readTimeout=" + timeout + "ms");
+            System.out.println("fixed x" + THREADS + ": " + benchmark.runFixed(count, size));
+            System.out.println("adaptive:  " + benchmark.runAdaptive(count, size));
+        } finally {
+            benchmark.stop();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 所有下载同时发出
+     */
+    public Result runFixed(int count, final int size) throws InterruptedException {
+        final Result result = new Result(count);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        for (int i = 0; i < count; i++) {
+            final long submitted = System.currentTimeMillis();
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    result.add(submitted, fetch(size, null) >= 0);
+                }
+            });
+        }
+        result.await();
+        pool.shutdownNow();
+        return result;
+    }
+
+    /**
+     * 每个下载先取名额，没有名额时登记到名额归还后重新提交，不在线程里等待
+     */
+    public Result runAdaptive(int count, final int size) throws InterruptedException {
+        final Result result = new Result(count);
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 16);
+        final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        for (int i = 0; i < count; i++) {
+            final long submitted = System.currentTimeMillis();
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    AdaptiveLimiter.Permit permit = limiter.tryAcquire(HOST,
+                            HttpUtil.NetworkState.MOBILE);
+                    if (permit == null) {
+                        final Runnable retry = this;
+                        boolean queued = limiter.runWhenAvailable(HOST,
+                                HttpUtil.NetworkState.MOBILE, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        pool.execute(retry);
+                                    }
+                                });
+                        if (!queued) {
+                            result.reject();
+                        }
+                        return;
+                    }
+                    boolean success = fetch(size, permit) >= 0;
+                    permit.release(success);
+                    result.add(submitted, success);
+                }
+            });
+        }
+        result.await();
+        pool.shutdownNow();
+        return result;
+    }
+
+    /**
+     * 下载一次并读完响应体
+     *
+     * @return 读到的字节数，失败返回-1
+     */
+    private long fetch(int size, AdaptiveLimiter.Permit permit) {
+        HttpURLConnection connection = null;
+        try {
+            URL url = new URL("http://" + HOST + ":" + mServer.getLocalPort() + "/" + size);
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(mReadTimeoutMs);
+            connection.setReadTimeout(mReadTimeoutMs);
+            InputStream in = connection.getInputStream();
+            if (permit != null) {
+                permit.onResponse();
+            }
+            byte[] buffer = new byte[CHUNK];
+            long total = 0;
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                total += len;
+            }
+            in.close();
+            return total == size ? total : -1;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    public void start() throws IOException {
+        mServer = new ServerSocket(0, 128, InetAddress.getByName(HOST));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServer.isClosed()) {
+                    try {
+                        final Socket socket = mServer.accept();
+                        Thread handler = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        }, "ThrottledServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop() throws IOException {
+        mServer.close();
+    }
+
+    /**
+     * 请求路径为响应体字节数，先等一个往返延迟，之后头和响应体都经过共享的限速链路
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            StringBuilder head = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                head.append((char) c);
+                if (head.length() >= 4 && head.substring(head.length() - 4).equals("\r\n\r\n")) {
+                    break;
+                }
+            }
+            String path = head.substring(head.indexOf(" ") + 2, head.indexOf(" HTTP"));
+            int size = Integer.parseInt(path);
+            Thread.sleep(mRttMs);
+            OutputStream out = socket.getOutputStream();
+            byte[] header = ("HTTP/1.1 200 OK\r\nContent-Length: " + size
+                    + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII");
+            send(out, header, header.length);
+            byte[] chunk = new byte[CHUNK];
+            for (int sent = 0; sent < size; sent += CHUNK) {
+                send(out, chunk, Math.min(CHUNK, size - sent));
+            }
+            out.flush();
+        } catch (Exception e) {
+            // 客户端超时断开
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * 在共享链路上排队，轮到时才写出
+     */
+    private void send(OutputStream out, byte[] data, int length)
+            throws IOException, InterruptedException {
+        long sendAt;
+        synchronized (this) {
+            long now = System.nanoTime();
+            sendAt = Math.max(now, mLinkFreeAt);
+            mLinkFreeAt = sendAt + TimeUnit.SECONDS.toNanos(length) / mBytesPerSecond;
+        }
+        long wait = sendAt - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        out.write(data, 0, length);
+        out.flush();
+    }
+
+    public static class Result {
+        private final int mCount;
+        private final CountDownLatch mDone;
+        private final long mStart = System.currentTimeMillis();
+        private final List<Long> mLatencies = Collections.synchronizedList(new ArrayList<Long>());
+        private final AtomicInteger mFailures = new AtomicInteger();
+        private final AtomicInteger mRejected = new AtomicInteger();
+        private final AtomicLong mEnd = new AtomicLong();
+
+        Result(int count) {
+            mCount = count;
+            mDone = new CountDownLatch(count);
+        }
+
+        void add(long submitted, boolean success) {
+            long now = System.currentTimeMillis();
+            if (success) {
+                mLatencies.add(now - submitted);
+            } else {
+                mFailures.incrementAndGet();
+            }
+            mEnd.set(now);
+            mDone.countDown();
+        }
+
+        void reject() {
+            mRejected.incrementAndGet();
+            mEnd.set(System.currentTimeMillis());
+            mDone.countDown();
+        }
+
+        void await() throws InterruptedException {
+            mDone.await();
+        }
+
+        private long percentile(List<Long> sorted, int p) {
+            if (sorted.isEmpty()) {
+                return -1;
+            }
+            return sorted.get(Math.min(sorted.size() - 1, sorted.size() * p / 100));
+        }
+
+        @Override
+        public String toString() {
+            List<Long> sorted = new ArrayList<Long>(mLatencies);
+            Collections.sort(sorted);
+            long elapsed = Math.max(1, mEnd.get() - mStart);
+            return "ok " + sorted.size() + "/" + mCount + ", failed " + mFailures.get()
+                    + ", rejected " + mRejected.get()
+                    + ", wall " + elapsed + "ms, goodput " + sorted.size() * 1000L / elapsed
+                    + " files/s, p50 " + percentile(sorted, 50) + "ms, p95 "
+                    + percentile(sorted, 95) + "ms";
+        }
+    }
+}
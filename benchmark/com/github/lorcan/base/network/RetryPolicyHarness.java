@@ -0,0 +1,249 @@
+package com.github.lorcan.base.network;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本地故障注入服务器上验证{@link RetryPolicy}和{@link RetryBudget}<br>
+ * 1 服务器按比例随机注入故障：读完请求后直接断开（请求已发出，没有响应），或返回503<br>
+ * 2 客户端按RequestTask的方式执行：首次请求计入RetryBudget，失败后问RetryPolicy是否重试、等多久<br>
+ * 3 输出成功率、服务端实际收到的请求数与逻辑请求数之比（重试放大倍数），
+ * 以及非幂等请求被服务端重复处理的次数，应为0<br>
+ * 不在src下，不打进apk；直接用HttpClient，不依赖Context，在桌面jvm上运行main
+ *
+ * @author lorcan
+ */
+public class RetryPolicyHarness {
+
+    private static final String HEADER_ID = "X-Request-Id";
+
+    /**
+     * 测试用的短退避，和DEFAULT一样最多3次
+     */
+    private static final RetryPolicy POLICY = new RetryPolicy(3, 20, 200, false);
+
+    private final Random mRandom = new Random(42);
+
+    private ServerSocket mServer;
+
+    /**
+     * 注入故障的比例，0到1，一半断开一半503
+     */
+    private volatile double mFaultRate;
+
+    /**
+     * 每个逻辑请求id在服务端被处理（返回200）的次数
+     */
+    private final Map<String, Integer> mHandled = new HashMap<String, Integer>();
+
+    private final AtomicInteger mReceived = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        RetryPolicyHarness harness = new RetryPolicyHarness();
+        harness.start();
+        try {
+            System.out.println("GET  faults=30%  retry: " + harness.run("GET", count, 0.3, POLICY));
+            System.out.println("GET  faults=30%  none:  "
+                    + harness.run("GET", count, 0.3, RetryPolicy.NONE));
+            System.out.println("POST faults=30%  retry: " + harness.run("POST", count, 0.3, POLICY));
+            System.out.println("GET  outage      retry: " + harness.run("GET", count, 1.0, POLICY));
+        } finally {
+            harness.stop();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 顺序发出count个逻辑请求。RetryBudget按host全局共享，前一轮消耗的余量会影响下一轮
+     */
+    public String run(String method, int count, double faultRate, RetryPolicy policy) {
+        mFaultRate = faultRate;
+        mReceived.set(0);
+        synchronized (mHandled) {
+            mHandled.clear();
+        }
+        DefaultHttpClient client = new DefaultHttpClient();
+        // 只测RetryPolicy，关掉HttpClient自带的重试
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        HttpConnectionParams.setSoTimeout(client.getParams(), 5000);
+        HttpProtocolParams.setUseExpectContinue(client.getParams(), false);
+        String url = "http://127.0.0.1:" + mServer.getLocalPort() + "/";
+        int success = 0;
+        int attempts = 0;
+        for (int i = 0; i < count; i++) {
+            String id = method + i;
+            RetryBudget.onRequest("127.0.0.1");
+            for (int attempt = 1; ; attempt++) {
+                attempts++;
+                HttpUriRequest request = "GET".equals(method) ? new HttpGet(url)
+                        : newPost(url);
+                request.setHeader(HEADER_ID, id);
+                long delay;
+                try {
+                    HttpResponse response = client.execute(request);
+                    int status = response.getStatusLine().getStatusCode();
+                    if (response.getEntity() != null) {
+                        EntityUtils.toString(response.getEntity());
+                    }
+                    if (status == 200) {
+                        success++;
+                        break;
+                    }
+                    if (!policy.shouldRetry(attempt, method, "127.0.0.1", status)) {
+                        break;
+                    }
+                    delay = policy.getDelay(attempt, response);
+                } catch (IOException e) {
+                    request.abort();
+                    if (!policy.shouldRetry(attempt, method, "127.0.0.1", e)) {
+                        break;
+                    }
+                    delay = policy.getDelay(attempt, null);
+                }
+                try {
+                    RetryPolicy.sleep(delay, null);
+                } catch (IOException e) {
+                    break;
+                }
+            }
+        }
+        client.getConnectionManager().shutdown();
+        int duplicates = 0;
+        synchronized (mHandled) {
+            for (Integer handled : mHandled.values()) {
+                duplicates += handled - 1;
+            }
+        }
+        return "ok " + success + "/" + count + ", attempts " + attempts + ", server saw "
+                + mReceived.get() + " (" + String.format("%.2f", mReceived.get() / (double) count)
+                + "x), duplicated " + duplicates;
+    }
+
+    private static HttpUriRequest newPost(String url) {
+        HttpPost post = new HttpPost(url);
+        try {
+            post.setEntity(new StringEntity("a=1"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return post;
+    }
+
+    public void start() throws IOException {
+        mServer = new ServerSocket(0, 64, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServer.isClosed()) {
+                    try {
+                        serve(mServer.accept());
+                    } catch (IOException e) {
+                        if (mServer.isClosed()) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "FaultServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop() throws IOException {
+        mServer.close();
+    }
+
+    /**
+     * 每个连接只处理一个请求，读完请求头和请求体后决定是否注入故障
+     */
+    private void serve(Socket socket) throws IOException {
+        try {
+            InputStream in = socket.getInputStream();
+            String head = readHead(in);
+            if (head == null) {
+                return;
+            }
+            mReceived.incrementAndGet();
+            int length = parseInt(header(head, "Content-Length"));
+            for (int i = 0; i < length && in.read() != -1; i++) {
+                // 读完请求体
+            }
+            double roll;
+            synchronized (mRandom) {
+                roll = mRandom.nextDouble();
+            }
+            if (roll < mFaultRate / 2) {
+                // 请求已被服务端收到，但没有响应
+                return;
+            }
+            OutputStream out = socket.getOutputStream();
+            if (roll < mFaultRate) {
+                out.write(("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+            } else {
+                String id = header(head, HEADER_ID);
+                synchronized (mHandled) {
+                    Integer handled = mHandled.get(id);
+                    mHandled.put(id, handled == null ? 1 : handled + 1);
+                }
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok")
+                        .getBytes("US-ASCII"));
+            }
+            out.flush();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            head.append((char) c);
+            int n = head.length();
+            if (n >= 4 && head.charAt(n - 4) == '\r' && head.charAt(n - 1) == '\n'
+                    && head.charAt(n - 2) == '\r') {
+                return head.toString();
+            }
+        }
+        return null;
+    }
+
+    private static String header(String head, String name) {
+        for (String line : head.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return value == null ? 0 : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
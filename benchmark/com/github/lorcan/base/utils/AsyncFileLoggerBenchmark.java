@@ -0,0 +1,229 @@
+package com.github.lorcan.base.utils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.lorcan.base.network.GenericTask;
+import com.github.lorcan.base.network.TaskParams;
+import com.github.lorcan.base.network.TaskPriority;
+import com.github.lorcan.base.network.TaskResult;
+import com.github.lorcan.base.network.TaskRuntime;
+
+/**
+ * 日志写入吞吐对比：{@link AsyncFileLogger}和原来每条日志一个GenericTask、
+ * 每次打开FileWriter追加再关闭的写法<br>
+ * 1 threads个线程同时各写lines条日志，统计调用方每条的耗时和全部落盘的总耗时<br>
+ * 2 两种写法都可能丢日志（环形缓冲满 / BACKGROUND通道队列满），分别给出写入和丢弃条数<br>
+ * 3 不在src下，不打进apk；在调试包的后台线程调用{@link #run(int, int)}，
+ * 或在桌面jvm上带android桩类运行main
+ *
+ * @author lorcan
+ */
+public class AsyncFileLoggerBenchmark {
+
+    private static final String TAG = "AsyncFileLoggerBenchmark";
+
+    private static final String OLD_FILE = "bench_old.log";
+
+    private static final String NEW_FILE = "bench_async.log";
+
+    private static final long TIMEOUT_MS = 60 * 1000;
+
+    private static final String LINE =
+            "2026-01-01 12:00:00.000 D/Benchmark: the quick brown fox jumps over the lazy dog\n";
+
+    /**
+     * 本轮写线程开始的时间，只在跑benchmark的线程读写
+     */
+    private static long sStartNanos;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        System.out.println(run(threads, lines));
+        System.exit(0);
+    }
+
+    /**
+     * 依次跑旧写法和AsyncFileLogger，返回结果文本，不能在主线程调用
+     *
+     * @param threads 写日志的线程数
+     * @param lines   每个线程写的条数
+     */
+    public static String run(int threads, int lines) throws InterruptedException {
+        if (!StorageUtil.isSDCardExist()) {
+            return "sd card not available";
+        }
+        File dir = new File(StorageUtil.getDirByType(StorageUtil.DIR_TYPE_LOG));
+        dir.mkdirs();
+        // 先各跑一轮预热，不计结果
+        runOld(dir, threads, Math.min(lines, 200));
+        runNew(dir, threads, Math.min(lines, 200));
+
+        Result old = runOld(dir, threads, lines);
+        Result async = runNew(dir, threads, lines);
+        String report = "threads=" + threads + " lines/thread=" + lines + "\n"
+                + "per-line GenericTask: " + old + "\n"
+                + "AsyncFileLogger:      " + async;
+        LogUtil.i(TAG, report);
+        return report;
+    }
+
+    /**
+     * 原LogUtil.writeLogInfoToFile的写法：调用线程检查并创建文件，
+     * 每条日志提交一个BACKGROUND任务打开FileWriter追加写入
+     */
+    private static Result runOld(File dir, int threads, final int lines)
+            throws InterruptedException {
+        final File file = new File(dir, OLD_FILE);
+        file.delete();
+        final int total = threads * lines;
+        final AtomicInteger written = new AtomicInteger();
+        final int discardBefore = TaskRuntime.executor().getDiscardCount();
+
+        long callNanos = produce(threads, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < lines; i++) {
+                    writeOld(file, written);
+                }
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        int dropped = 0;
+        while (System.currentTimeMillis() < deadline) {
+            dropped = TaskRuntime.executor().getDiscardCount() - discardBefore;
+            if (written.get() + dropped >= total) {
+                break;
+            }
+            Thread.sleep(5);
+        }
+        return new Result(total, callNanos, System.nanoTime(), written.get(), dropped,
+                file.length());
+    }
+
+    private static void writeOld(final File file, final AtomicInteger written) {
+        try {
+            if (!file.exists()) {
+                file.getParentFile().mkdirs();
+                file.createNewFile();
+            }
+            GenericTask task = new GenericTask() {
+
+                @Override
+                protected TaskResult doInBackground(TaskParams... params) {
+                    FileWriter fw = null;
+                    try {
+                        fw = new FileWriter(file, true);
+                        fw.write(LINE);
+                        fw.flush();
+                        written.incrementAndGet();
+                    } catch (IOException e) {
+                        LogUtil.e(e);
+                    } finally {
+                        if (fw != null) {
+                            try {
+                                fw.close();
+                            } catch (IOException e) {
+                                LogUtil.e(TAG, "close fail", e);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            };
+            task.setPriority(TaskPriority.BACKGROUND);
+            // 回调不需要主线程，桌面jvm上没有主线程Looper
+            task.setCallbackExecutor(TaskRuntime.directExecutor());
+            task.execute();
+        } catch (IOException e) {
+            LogUtil.e(TAG, "create file fail", e);
+        }
+    }
+
+    private static Result runNew(File dir, int threads, final int lines)
+            throws InterruptedException {
+        final AsyncFileLogger.LogFile logFile = new AsyncFileLogger.LogFile(
+                NEW_FILE, Integer.MAX_VALUE, 1, false);
+        final AsyncFileLogger logger = AsyncFileLogger.getInstance();
+        logger.flush(TIMEOUT_MS);
+        File file = new File(dir, NEW_FILE);
+        file.delete();
+        final int total = threads * lines;
+        final AtomicInteger written = new AtomicInteger();
+
+        long callNanos = produce(threads, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < lines; i++) {
+                    if (logger.append(logFile, LINE, false)) {
+                        written.incrementAndGet();
+                    }
+                }
+            }
+        });
+        logger.flush(TIMEOUT_MS);
+        return new Result(total, callNanos, System.nanoTime(), written.get(),
+                total - written.get(), file.length());
+    }
+
+    /**
+     * threads个线程同时开始执行producer，返回从开始到最后一个线程结束的纳秒数，
+     * 结果里的总耗时从同一起点算起
+     */
+    private static long produce(int threads, final Runnable producer)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        producer.run();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, TAG + "-" + i);
+            thread.start();
+        }
+        sStartNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - sStartNanos;
+    }
+
+    private static class Result {
+        final int total;
+        final long callNanos;
+        final long totalNanos;
+        final int written;
+        final int dropped;
+        final long bytes;
+
+        Result(int total, long callNanos, long endNanos, int written, int dropped, long bytes) {
+            this.total = total;
+            this.callNanos = callNanos;
+            this.totalNanos = endNanos - sStartNanos;
+            this.written = written;
+            this.dropped = dropped;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            long perLine = written == 0 ? 0 : totalNanos / written;
+            return "caller " + callNanos / total + " ns/line, drained in "
+                    + totalNanos / 1000000 + " ms (" + perLine + " ns/written line), written "
+                    + written + "/" + total + ", dropped " + dropped + ", file " + bytes + " bytes";
+        }
+    }
+}
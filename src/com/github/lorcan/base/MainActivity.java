@@ -13,6 +13,7 @@ import com.github.lorcan.base.image.ImageLoader;
 import com.github.lorcan.base.model.TimeLineResponse;
 import com.github.lorcan.base.network.ITaskFinishListener;
 import com.github.lorcan.base.network.TaskResult;
+import com.github.lorcan.base.utils.MainThreadWatchdog;
 
 public class MainActivity extends Activity {
 
@@ -31,6 +32,12 @@ public class MainActivity extends Activity {
         mImageView = (ImageView) findViewById(R.id.test_image_loader_img);
         mResponseText = (TextView) findViewById(R.id.response_text);
 
+        //report blocking io on the main thread in debug builds
+        MainThreadWatchdog.setEnabled(BuildConfig.DEBUG);
+
+        //prewarm connections
+        NetworkController.prewarm(this);
+
         //load image
         ImageLoader.getInstance(this).load("http://tp1.sinaimg.cn/1948832312/180/5643790868/1", mImageView, null,
                 null);
@@ -2,17 +2,31 @@ package com.github.lorcan.base.controller;
 
 import android.content.Context;
 
+import com.github.lorcan.base.image.ImageUtil;
 import com.github.lorcan.base.model.TimeLineResponse;
+import com.github.lorcan.base.network.AbsNormalAsyncTask;
+import com.github.lorcan.base.network.ConnectionPrewarmer;
+import com.github.lorcan.base.network.HttpUtil;
+import com.github.lorcan.base.network.IProgressListener;
 import com.github.lorcan.base.network.ITaskFinishListener;
+import com.github.lorcan.base.network.RequestException;
+import com.github.lorcan.base.network.Request;
+import com.github.lorcan.base.network.RequestFuture;
 import com.github.lorcan.base.network.RequestTask;
 import com.github.lorcan.base.network.TaskParams;
+import com.github.lorcan.base.network.TaskPriority;
+import com.github.lorcan.base.network.TaskResult;
+import com.github.lorcan.base.network.TaskRuntime;
+import com.github.lorcan.base.network.UploadTask;
 import com.github.lorcan.base.parser.BaseParser;
 import com.github.lorcan.base.parser.IParser;
 
 import org.apache.http.NameValuePair;
-import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.FormBodyPart;
 
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * The controller of all net request
@@ -24,7 +38,43 @@ public class NetworkController {
     public static void getPublishTimeLine(Context context, ITaskFinishListener listener) {
         String url = "https://api.weibo.com/2/statuses/public_timeline.json";
 
-        doGet(context, url, new BaseParser(TimeLineResponse.class), listener);
+        RequestTask task = new RequestTask(context, new BaseParser(TimeLineResponse.class), null);
+        task.setRequest(new Request.Builder(url).priority(TaskPriority.INTERACTIVE).build());
+        // 时间线是首屏内容，慢请求用对冲缩短长尾
+        task.setHedged(true);
+        task.setTaskFinishListener(listener);
+        task.execute();
+    }
+
+    /**
+     * 返回future的时间线请求，可以和其它请求用RequestFuture.allOf并行等待，或用flatMap串联
+     *
+     * @param context
+     */
+    public static RequestFuture<TimeLineResponse> getPublishTimeLineAsync(Context context) {
+        String url = "https://api.weibo.com/2/statuses/public_timeline.json";
+        return doGetAsync(context, url, new BaseParser(TimeLineResponse.class), TaskPriority.INTERACTIVE);
+    }
+
+    /**
+     * 预热接口和图片CDN的连接，在启动时调用，之后网络切换时会自动重新预热
+     *
+     * @param context
+     */
+    public static void prewarm(Context context) {
+        ConnectionPrewarmer.getInstance(context)
+                .addHost("https://api.weibo.com/", HttpUtil.ClientType.API)
+                .addHost("http://tp1.sinaimg.cn/", HttpUtil.ClientType.IMAGE)
+                .prewarm();
+    }
+
+    /**
+     * 取消该context发起的所有请求，一般在Activity destroy时调用
+     *
+     * @param context
+     */
+    public static void cancelRequests(Context context) {
+        AbsNormalAsyncTask.cancelGroup(context);
     }
 
 
@@ -36,16 +86,81 @@ public class NetworkController {
      * @param listener
      */
     private static RequestTask doGet(Context context, String url, IParser parser, ITaskFinishListener listener) {
+        return doGet(context, url, parser, listener, TaskPriority.NORMAL);
+    }
+
+    /**
+     * do get
+     *
+     * @param url
+     * @param parser
+     * @param listener
+     * @param priority
+     */
+    private static RequestTask doGet(Context context, String url, IParser parser, ITaskFinishListener listener,
+                                     TaskPriority priority) {
+        return doGet(context, url, parser, listener, priority, null);
+    }
+
+    /**
+     * do get，listener在callbackExecutor上回调。串联请求时用TaskRuntime.directExecutor()，
+     * 在回调里直接发起下一个请求，不经过UI线程
+     *
+     * @param url
+     * @param parser
+     * @param listener
+     * @param priority
+     * @param callbackExecutor 为null时在UI线程回调
+     */
+    private static RequestTask doGet(Context context, String url, IParser parser, ITaskFinishListener listener,
+                                     TaskPriority priority, Executor callbackExecutor) {
         RequestTask task = new RequestTask(context, parser, null);
-        TaskParams params = new TaskParams();
-        params.put(RequestTask.PARAM_URL, url);
-        params.put(RequestTask.PARAM_HTTP_METHOD, RequestTask.HTTP_GET);
+        task.setPriority(priority);
+        task.setCallbackExecutor(callbackExecutor);
+        task.setRequest(Request.get(url));
         task.setTaskFinishListener(listener);
-        task.execute(params);
+        task.execute();
 
         return task;
     }
 
+    /**
+     * do get，结果写入返回的future：200且解析成功时为解析结果，否则以RequestException失败。
+     * 在请求线程上完成，取消future会取消请求，请求被cancelRequests取消时future也随之取消
+     *
+     * @param url
+     * @param parser
+     * @param priority
+     */
+    private static <T> RequestFuture<T> doGetAsync(Context context, String url, IParser parser,
+                                                   TaskPriority priority) {
+        final RequestFuture<T> future = new RequestFuture<T>();
+        RequestTask task = new RequestTask(context, parser, null) {
+            @Override
+            protected void onCancelled() {
+                super.onCancelled();
+                future.cancel(false);
+            }
+        };
+        task.setPriority(priority);
+        task.setCallbackExecutor(TaskRuntime.directExecutor());
+        task.setTaskFinishListener(new ITaskFinishListener() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onTaskFinished(TaskResult taskResult) {
+                if (taskResult.stateCode == 200 && taskResult.retObj != null) {
+                    future.set((T) taskResult.retObj);
+                } else {
+                    future.setException(new RequestException(taskResult.stateCode, taskResult.retObj));
+                }
+            }
+        });
+        future.dependsOn(task);
+        task.setRequest(Request.get(url));
+        task.execute();
+        return future;
+    }
+
     /**
      * do get
      *
@@ -56,11 +171,9 @@ public class NetworkController {
     private static void doGet(Context context, String url, IParser parser, ITaskFinishListener listener, String type) {
         RequestTask task = new RequestTask(context, parser, null);
         task.setType(type);
-        TaskParams params = new TaskParams();
-        params.put(RequestTask.PARAM_URL, url);
-        params.put(RequestTask.PARAM_HTTP_METHOD, RequestTask.HTTP_GET);
+        task.setRequest(Request.get(url));
         task.setTaskFinishListener(listener);
-        task.execute(params);
+        task.execute();
     }
 
     /**
@@ -73,30 +186,73 @@ public class NetworkController {
      */
     private static void doPost(Context context, String url, List<NameValuePair> pairs, IParser parser, ITaskFinishListener listener) {
         RequestTask task = new RequestTask(context, parser, null);
-        TaskParams params = new TaskParams();
-        params.put(RequestTask.PARAM_URL, url);
-        params.put(RequestTask.PARAM_HTTP_METHOD, RequestTask.HTTP_POST);
-        task.setPostParams(pairs);
+        task.setRequest(new Request.Builder(url).post(Request.Body.form(pairs)).build());
         task.setTaskFinishListener(listener);
-        task.execute(params);
+        task.execute();
     }
 
     /**
-     * do post multipartEntity
+     * do post multipart，文件part使用FileChannelBody可以流式上传
      *
      * @param url
      * @param parser
-     * @param multipartEntity
+     * @param parts
      * @param listener
+     * @param progressListener 上传进度，可为null
      */
-    private static void doFilePost(Context context, String url, MultipartEntity multipartEntity, IParser parser, ITaskFinishListener listener) {
-        RequestTask task = new RequestTask(context, parser, multipartEntity, null);
-        TaskParams params = new TaskParams();
-        params.put(RequestTask.PARAM_URL, url);
-        params.put(RequestTask.PARAM_HTTP_METHOD, RequestTask.HTTP_POST_FILE);
+    private static void doFilePost(Context context, String url, List<FormBodyPart> parts, IParser parser,
+                                   ITaskFinishListener listener, IProgressListener progressListener) {
+        RequestTask task = new RequestTask(context, parser, null);
+        task.setRequest(new Request.Builder(url).post(Request.Body.multipart(parts)).build());
         task.setTaskFinishListener(listener);
+        task.setProgressListener(progressListener);
 
+        task.execute();
+    }
+
+    /**
+     * 上传图片，在后台缩放到长边2048并重新压缩后再上传，相机原图通常能小5到10倍
+     *
+     * @param url
+     * @param field            图片的表单字段名
+     * @param image
+     * @param parts            其它表单字段，可为null
+     * @param parser
+     * @param listener
+     * @param progressListener 上传进度，可为null
+     */
+    private static RequestTask doImagePost(Context context, String url, String field, File image,
+                                           List<FormBodyPart> parts, IParser parser,
+                                           ITaskFinishListener listener, IProgressListener progressListener) {
+        RequestTask task = new RequestTask(context, parser, null);
+        task.setUploadImage(field, image, ImageUtil.UPLOAD_MAX_SIDE, ImageUtil.UPLOAD_QUALITY);
+        task.setRequest(new Request.Builder(url).post(Request.Body.multipart(parts)).build());
+        task.setTaskFinishListener(listener);
+        task.setProgressListener(progressListener);
+        task.execute();
+        return task;
+    }
+
+    /**
+     * 分片上传文件，中断后从服务端已收到的位置继续
+     *
+     * @param uploadUrl        上传会话的url
+     * @param file
+     * @param mimeType
+     * @param parser
+     * @param listener
+     * @param progressListener 上传进度，可为null
+     */
+    private static UploadTask doChunkedUpload(Context context, String uploadUrl, File file, String mimeType,
+                                              IParser parser, ITaskFinishListener listener,
+                                              IProgressListener progressListener) {
+        UploadTask task = new UploadTask(context, parser, file, mimeType);
+        TaskParams params = new TaskParams();
+        params.put(RequestTask.PARAM_URL, uploadUrl);
+        task.setTaskFinishListener(listener);
+        task.setProgressListener(progressListener);
         task.execute(params);
+        return task;
     }
 
 }
@@ -1,65 +1,61 @@
 package com.github.lorcan.base.image;
 
-import android.os.Handler;
-import android.os.Message;
+import com.github.lorcan.base.network.AbortHandle;
+import com.github.lorcan.base.network.AdaptiveLimiter;
+import com.github.lorcan.base.network.ICancelable;
+import com.github.lorcan.base.network.PermitUnavailableException;
+import com.github.lorcan.base.network.TaskPriority;
+import com.github.lorcan.base.network.TaskRuntime;
 import com.github.lorcan.base.utils.LogUtil;
+import com.github.lorcan.base.utils.Tracer;
 
 
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * 修改AsyncTask，修改线程池大小和线程池的抛弃策略 《图片线程池》
+ * 修改AsyncTask，任务跑在共享{@link TaskRuntime}的图片通道上，
+ * 通道队列满时丢弃最老的任务，结果经{@link FrameDispatcher}按帧批量回调 《图片任务》
  *
  * @param <Result>
  * @author Tsimle
  */
-public abstract class AbsImageAsyncTask<Params, Result> {
+public abstract class AbsImageAsyncTask<Params, Result> implements ICancelable {
     private static final String LOG_TAG = "ImageBaseTask";
 
-    private static final int CORE_POOL_SIZE = 16;
-
-    private static final int MAXIMUM_POOL_SIZE = 128;
-
-    private static final int KEEP_ALIVE = 32;
-
-    private static final BlockingQueue<Runnable> sWorkQueue = new LinkedBlockingQueue<Runnable>(15);
-
-    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
-        private final AtomicInteger mCount = new AtomicInteger(1);
+    private final WorkerRunnable<Params, Result> mWorker;
 
-        public Thread newThread(Runnable r) {
-            return new Thread(r, "ImageTask #" + mCount.getAndIncrement());
-        }
-    };
+    private final FutureTask<Result> mFuture;
 
-    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(CORE_POOL_SIZE,
-            MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, sWorkQueue, sThreadFactory,
-            new DiscardAndRemoveOldestPolicy());
+    private volatile Status mStatus = Status.PENDING;
 
-    private static final int MESSAGE_POST_RESULT = 0x1;
+    private volatile boolean isCancelled = false;
 
-    private static final int MESSAGE_POST_CANCEL = 0x2;
+    private final AbortHandle mAbortHandle = new AbortHandle();
 
-    private static final InternalHandler sHandler = new InternalHandler();
+    /**
+     * 为null时结果按帧批量回到UI线程
+     */
+    private Executor mCallbackExecutor;
 
-    private final WorkerRunnable<Params, Result> mWorker;
+    private volatile Tracer.Trace mTrace = Tracer.Trace.NOOP;
 
-    private final WrappedFutureTask<Params, Result> mFuture;
+    /**
+     * 提交到线程池的时间，用于追踪排队阶段
+     */
+    private long mQueuedAt;
 
-    private volatile Status mStatus = Status.PENDING;
+    /**
+     * doInBackground中没拿到下载名额时设置，本次执行结束后不回调，等名额归还再排队
+     */
+    private volatile AdaptiveLimiter mPendingLimiter;
 
-    private boolean isCancelled = false;
+    private volatile PermitUnavailableException mPendingPermit;
 
     /**
      * Indicates the current status of the task. Each status will be set only
@@ -84,7 +80,7 @@ public abstract class AbsImageAsyncTask<Params, Result> {
      * 释放队列中所有的图片加载任务
      */
     public static void release() {
-        sWorkQueue.clear();
+        TaskRuntime.executor().clear(TaskPriority.IMAGE);
     }
 
     /**
@@ -95,15 +91,31 @@ public abstract class AbsImageAsyncTask<Params, Result> {
         mWorker = new WorkerRunnable<Params, Result>() {
             public Result call() throws Exception {
                 android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
-                return doInBackground(mParams);
+                Tracer.Trace trace = mTrace;
+                trace.span("queue", mQueuedAt);
+                long start = trace.now();
+                Tracer.Trace previous = Tracer.bind(trace);
+                try {
+                    mResult = doInBackground(mParams);
+                    return mResult;
+                } finally {
+                    Tracer.bind(previous);
+                    trace.span("background", start);
+                }
             }
         };
 
-        mFuture = new WrappedFutureTask<Params, Result>(mWorker, this) {
-            @SuppressWarnings("unchecked")
+        mFuture = new FutureTask<Result>(mWorker) {
+            @Override
+            public void run() {
+                // 执行完先不设置结果，需要等下载名额时重新排队，这次执行不算结束
+                if (runAndReset() && !requeueIfWaiting(this)) {
+                    set(mWorker.mResult);
+                }
+            }
+
             @Override
             protected void done() {
-                Message message;
                 Result result = null;
 
                 try {
@@ -114,19 +126,15 @@ public abstract class AbsImageAsyncTask<Params, Result> {
                     throw new RuntimeException("An error occured while executing doInBackground()",
                             e.getCause());
                 } catch (CancellationException e) {
-                    message = sHandler
-                            .obtainMessage(MESSAGE_POST_CANCEL, new ImageBaseTaskResult<Result>(
-                                    AbsImageAsyncTask.this, (Result[]) null));
-                    message.sendToTarget();
+                    // 包括图片通道队列满时被丢弃的任务
+                    postCancel();
                     return;
                 } catch (Throwable t) {
                     throw new RuntimeException("An error occured while executing "
                             + "doInBackground()", t);
                 }
 
-                message = sHandler.obtainMessage(MESSAGE_POST_RESULT,
-                        new ImageBaseTaskResult<Result>(AbsImageAsyncTask.this, result));
-                message.sendToTarget();
+                postResult(result);
             }
         };
     }
@@ -167,20 +175,77 @@ public abstract class AbsImageAsyncTask<Params, Result> {
     protected void onCancelled() {
     }
 
+    @Override
     public final boolean isCancelled() {
         return isCancelled;
     }
 
+    @Override
     public final boolean cancel(boolean mayInterruptIfRunning) {
         isCancelled = true;
-        if (sWorkQueue.remove(mFuture)) {
+        if (TaskRuntime.executor().remove(mFuture)) {
             onCancelled();
         } else {
-            return mFuture.cancel(mayInterruptIfRunning);
+            boolean cancelled = mFuture.cancel(mayInterruptIfRunning);
+            if (cancelled && mayInterruptIfRunning) {
+                // 正在下载的图片，abort连接释放带宽和线程
+                mAbortHandle.abort();
+            }
+            return cancelled;
         }
         return true;
     }
 
+    /**
+     * 设置执行onPostExecute和onCancelled回调的Executor，需在{@link #execute}之前调用<br>
+     * 默认为null，结果经{@link FrameDispatcher}按帧回到UI线程；只预加载到缓存、
+     * 不绑定界面时可以用{@link TaskRuntime#backgroundExecutor()}等
+     */
+    public final void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor;
+    }
+
+    /**
+     * 该任务的追踪，未被采样时为{@link Tracer.Trace#NOOP}
+     */
+    protected final Tracer.Trace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * 下载图片时的请求登记到这里，{@link #cancel(boolean)}时会被abort
+     */
+    /**
+     * 在doInBackground中没拿到下载名额时调用，doInBackground返回后任务不结束，
+     * 名额归还时重新进入图片通道排队，再次执行doInBackground；
+     * 等待的任务太多时本次结果直接作为最终结果
+     */
+    protected final void waitForPermit(AdaptiveLimiter limiter, PermitUnavailableException e) {
+        mPendingPermit = e;
+        mPendingLimiter = limiter;
+    }
+
+    private boolean requeueIfWaiting(final FutureTask<Result> future) {
+        AdaptiveLimiter limiter = mPendingLimiter;
+        PermitUnavailableException permit = mPendingPermit;
+        mPendingLimiter = null;
+        mPendingPermit = null;
+        if (limiter == null || isCancelled()) {
+            return false;
+        }
+        return limiter.runWhenAvailable(permit.getHost(), permit.getState(), new Runnable() {
+            @Override
+            public void run() {
+                mQueuedAt = mTrace.now();
+                TaskRuntime.executor().execute(future, TaskPriority.IMAGE);
+            }
+        });
+    }
+
+    protected final AbortHandle getAbortHandle() {
+        return mAbortHandle;
+    }
+
     public final Result get(long timeout, TimeUnit unit) throws InterruptedException,
             ExecutionException, TimeoutException {
         return mFuture.get(timeout, unit);
@@ -208,7 +273,9 @@ public abstract class AbsImageAsyncTask<Params, Result> {
         onPreExecute();
 
         mWorker.mParams = params;
-        sExecutor.execute(mFuture);
+        mTrace = Tracer.start(getClass().getSimpleName());
+        mQueuedAt = mTrace.now();
+        TaskRuntime.executor().execute(mFuture, TaskPriority.IMAGE);
         return this;
     }
 
@@ -219,63 +286,39 @@ public abstract class AbsImageAsyncTask<Params, Result> {
         mStatus = Status.FINISHED;
     }
 
-    private static class InternalHandler extends Handler {
-        @SuppressWarnings({"unchecked"})
-        @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("rawtypes")
-            ImageBaseTaskResult result = (ImageBaseTaskResult) msg.obj;
-            switch (msg.what) {
-                case MESSAGE_POST_RESULT:
-                    // There is only one result
-                    result.mTask.finish(result.mData[0]);
-                    break;
-                case MESSAGE_POST_CANCEL:
-                    result.mTask.onCancelled();
-                    break;
+    private void postResult(final Result result) {
+        final long posted = mTrace.now();
+        Runnable deliver = new Runnable() {
+            @Override
+            public void run() {
+                finish(result);
+                mTrace.span("deliver", posted);
             }
+        };
+        if (mCallbackExecutor != null) {
+            mCallbackExecutor.execute(deliver);
+        } else {
+            // 同一帧完成的图片一起绑定，只触发一次布局
+            FrameDispatcher.getInstance().post(deliver);
         }
     }
 
-    private static class DiscardAndRemoveOldestPolicy implements RejectedExecutionHandler {
-        public DiscardAndRemoveOldestPolicy() {
-        }
-
-        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
-            if (!e.isShutdown()) {
-                AbsImageAsyncTask<?, ?> discardTask = ((WrappedFutureTask<?, ?>) e.getQueue()
-                        .poll()).originTask;
-                Message message = sHandler.obtainMessage(MESSAGE_POST_CANCEL,
-                        new ImageBaseTaskResult<String>(discardTask, (String[]) null));
-                message.sendToTarget();
-                e.execute(r);
+    private void postCancel() {
+        Runnable cancel = new Runnable() {
+            @Override
+            public void run() {
+                onCancelled();
             }
+        };
+        if (mCallbackExecutor != null) {
+            mCallbackExecutor.execute(cancel);
+        } else {
+            TaskRuntime.postToMain(cancel);
         }
     }
 
     private static abstract class WorkerRunnable<Params, Result> implements Callable<Result> {
         Params[] mParams;
-    }
-
-    @SuppressWarnings("rawtypes")
-    private static class ImageBaseTaskResult<Data> {
-        final AbsImageAsyncTask mTask;
-
-        final Data[] mData;
-
-        ImageBaseTaskResult(AbsImageAsyncTask task, Data... data) {
-            mTask = task;
-            mData = data;
-        }
-    }
-
-    private static class WrappedFutureTask<Params, Result> extends FutureTask<Result> {
-        public AbsImageAsyncTask<Params, Result> originTask;
-
-        public WrappedFutureTask(Callable<Result> callable,
-                                 AbsImageAsyncTask<Params, Result> originTask) {
-            super(callable);
-            this.originTask = originTask;
-        }
+        Result mResult;
     }
 }
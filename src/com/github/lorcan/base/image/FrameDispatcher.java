@@ -0,0 +1,121 @@
+package com.github.lorcan.base.image;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按帧批量把图片结果交给UI线程.<br>
+ * 1 后台线程把结果放入无锁队列，每帧最多只投递一次<br>
+ * 2 UI线程在帧回调中一次取出多个结果，同一帧里的setImageDrawable只触发一次布局<br>
+ * 3 每帧最多处理FRAME_BUDGET_MS，剩下的留到下一帧，大量图片同时完成时不掉帧<br>
+ * 4 API 16以上用Choreographer对齐vsync，以下用Handler按16ms对齐
+ *
+ * @author lorcan
+ */
+class FrameDispatcher {
+
+    /**
+     * 每帧用于绑定图片的时间，留一半给布局和绘制.
+     */
+    private static final long FRAME_BUDGET_NANOS = 8 * 1000000L;
+
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    private static final FrameDispatcher sInstance = new FrameDispatcher();
+
+    private final ConcurrentLinkedQueue<Runnable> mQueue = new ConcurrentLinkedQueue<Runnable>();
+
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * API 16以上的帧回调，只在UI线程创建.
+     */
+    private volatile Object mFrameCallback;
+
+    private FrameDispatcher() {
+    }
+
+    static FrameDispatcher getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * 在下一帧执行，可以在任意线程调用.
+     */
+    void post(Runnable runnable) {
+        mQueue.offer(runnable);
+        if (mScheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        Object callback = mFrameCallback;
+        if (callback != null) {
+            ((VsyncCallback) callback).post();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // Choreographer按线程创建，要在UI线程取得
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mFrameCallback == null) {
+                        mFrameCallback = new VsyncCallback();
+                    }
+                    ((VsyncCallback) mFrameCallback).post();
+                }
+            });
+        } else {
+            long now = SystemClock.uptimeMillis();
+            mHandler.postAtTime(mDrainRunnable, now - now % FRAME_INTERVAL_MS
+                    + FRAME_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * 在UI线程执行.
+     */
+    private void drain() {
+        mScheduled.set(false);
+        long start = System.nanoTime();
+        Runnable runnable;
+        while ((runnable = mQueue.poll()) != null) {
+            runnable.run();
+            if (System.nanoTime() - start >= FRAME_BUDGET_NANOS) {
+                break;
+            }
+        }
+        if (!mQueue.isEmpty() && mScheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class VsyncCallback implements Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        void post() {
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            drain();
+        }
+    }
+}
@@ -5,6 +5,8 @@ package com.github.lorcan.base.image;
 
 import android.graphics.Bitmap;
 
+import com.github.lorcan.base.utils.Metrics;
+
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -20,6 +22,10 @@ public class ImageHardCache implements ImageCache {
      */
     private static final int DEFAULT_MEM_CACHE_SIZE = 1024 * 1024 * 5;
 
+    private static final Metrics.Counter sHits = Metrics.counter("image.cache.hard.hit");
+
+    private static final Metrics.Counter sMisses = Metrics.counter("image.cache.memory.miss");
+
     private final LinkedHashMap<String, Bitmap> map;
 
     /**
@@ -50,9 +56,11 @@ public class ImageHardCache implements ImageCache {
             mapValue = map.get(key);
             if (mapValue != null) {
                 hitCount++;
+                sHits.inc();
                 return mapValue;
             }
             missCount++;
+            sMisses.inc();
         }
         return null;
     }
@@ -13,24 +13,43 @@ import android.view.WindowManager;
 import android.widget.BaseAdapter;
 import android.widget.ImageView;
 
+import com.github.lorcan.base.network.AbortHandle;
+import com.github.lorcan.base.network.Deadline;
+import com.github.lorcan.base.network.AdaptiveLimiter;
+import com.github.lorcan.base.network.BodyInputStream;
+import com.github.lorcan.base.network.FileDownloader;
 import com.github.lorcan.base.network.HttpUtil;
+import com.github.lorcan.base.network.IResultListener;
+import com.github.lorcan.base.network.NetworkMonitor;
+import com.github.lorcan.base.network.PermitUnavailableException;
+import com.github.lorcan.base.network.RetryBudget;
+import com.github.lorcan.base.network.RetryPolicy;
+import com.github.lorcan.base.network.TaskPriority;
+import com.github.lorcan.base.network.TaskRuntime;
 import com.github.lorcan.base.utils.LogUtil;
+import com.github.lorcan.base.utils.MainThreadWatchdog;
+import com.github.lorcan.base.utils.Metrics;
 import com.github.lorcan.base.utils.StorageUtil;
+import com.github.lorcan.base.utils.Tracer;
 
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * 图片加载器.
@@ -55,6 +74,35 @@ public class ImageLoader {
      */
     public static final int TYPE_ROUND_PIC = 1005;
 
+    /**
+     * 大图分段并行下载的段数.
+     */
+    private static final int BIG_PIC_SEGMENTS = 4;
+
+    /**
+     * 单张图片下载的总时限，包括等连接、重试和写文件.
+     */
+    private static final long IMAGE_TIMEOUT_MS = 20000;
+
+    /**
+     * 大图下载的总时限.
+     */
+    private static final long BIG_PIC_TIMEOUT_MS = 60000;
+
+    /**
+     * 按host和网络类型控制并发下载数.
+     */
+    private static final AdaptiveLimiter sDownloadLimiter = new AdaptiveLimiter(1, 16);
+
+    /**
+     * 内存缓存未命中后的磁盘缓存命中情况，内存缓存的命中数由ImageCache统计.
+     */
+    private static final Metrics.Counter sDiskHits = Metrics.counter("image.cache.disk.hit");
+
+    private static final Metrics.Counter sDiskMisses = Metrics.counter("image.cache.disk.miss");
+
+    private static final Metrics.Counter sBytesDownloaded = Metrics.counter("download.bytes");
+
     /**
      * The instance.
      */
@@ -80,6 +128,10 @@ public class ImageLoader {
      */
     private ImageCache imageCache;
 
+    /**
+     * 有sd卡时的下载器，支持断点续传.
+     */
+    private FileDownloader mFileDownloader;
 
     private int mScaleWidth;
 
@@ -105,7 +157,10 @@ public class ImageLoader {
         if (instance == null) {
             instance = new ImageLoader();
             instance.mContext = context;
-            instance.sdCardDirectory = StorageUtil.getDirByType(StorageUtil.DIR_TYPE_IMAGE);
+            // 不在UI线程mkdirs，目录由下载时创建
+            instance.sdCardDirectory = StorageUtil.getDirPathByType(StorageUtil.DIR_TYPE_IMAGE);
+            instance.mFileDownloader = new FileDownloader(context, sDownloadLimiter);
+            instance.mFileDownloader.setRetryPolicy(RetryPolicy.IMAGE);
 
 
             //init screen size
@@ -276,7 +331,8 @@ public class ImageLoader {
     }
 
     /**
-     * 直接从本地加载同步返回图片.
+     * 直接从本地加载同步返回图片，会读文件和解码，UI线程中使用
+     * {@link #loadBitmapFromDisk(String, int, int, IResultListener)}.
      *
      * @param url the url
      * @return the bitmap
@@ -294,7 +350,26 @@ public class ImageLoader {
 
 
     /**
-     * 是否已经下载过该图片.
+     * 在后台从本地加载图片，在UI线程回调，没有缓存文件时回调null.
+     *
+     * @param url      the url
+     * @param width    the width
+     * @param height   the height
+     * @param listener the listener
+     */
+    public void loadBitmapFromDisk(final String url, final int width, final int height,
+                                   IResultListener<Bitmap> listener) {
+        runOnDiskThread(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return syncLoadBitmap(url, width, height);
+            }
+        }, null, listener);
+    }
+
+    /**
+     * 是否已经下载过该图片，会查询文件系统，UI线程中使用
+     * {@link #hasDownload(String, IResultListener)}.
      *
      * @param url the url
      * @return true, if successful
@@ -310,10 +385,56 @@ public class ImageLoader {
         url = url.replaceAll(" ", "");
         String tempFileName = ImageUtil.getTempFileName(url);
         File tempFile = new File(sdCardDirectory, tempFileName);
-        if (tempFile.exists()) {
-            return true;
-        }
-        return false;
+        long start = MainThreadWatchdog.begin();
+        boolean exists = tempFile.exists();
+        MainThreadWatchdog.end("exists", start);
+        return exists;
+    }
+
+    /**
+     * 在后台查询是否已经下载过该图片，在UI线程回调.
+     *
+     * @param url      the url
+     * @param listener the listener
+     */
+    public void hasDownload(final String url, IResultListener<Boolean> listener) {
+        runOnDiskThread(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return hasDownload(url);
+            }
+        }, Boolean.FALSE, listener);
+    }
+
+    /**
+     * 在一般通道执行本地文件操作，结果投递到UI线程；被挤出队列或出错时回调fallback.
+     */
+    private static <T> void runOnDiskThread(Callable<T> callable, final T fallback,
+                                            final IResultListener<T> listener) {
+        TaskRuntime.executor().execute(new FutureTask<T>(callable) {
+            @Override
+            protected void done() {
+                T result = fallback;
+                try {
+                    result = get();
+                } catch (ExecutionException e) {
+                    LogUtil.w(LOG_TAG, e.getCause().toString());
+                } catch (CancellationException e) {
+                    // 队列满被丢弃
+                } catch (InterruptedException e) {
+                    LogUtil.w(LOG_TAG, e.toString());
+                }
+                final T value = result;
+                if (listener != null) {
+                    TaskRuntime.postToMain(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onResult(value);
+                        }
+                    });
+                }
+            }
+        }, TaskPriority.NORMAL);
     }
 
     /**
@@ -434,57 +555,19 @@ public class ImageLoader {
     }
 
     /**
-     * Download url.
+     * Download url，没有下载名额时直接放弃.
      *
      * @param url the url
      */
     public void downloadUrl(String url) {
-        InputStream inputStream = null;
-        HttpClient httpClient = null;
-        FileOutputStream fos = null;
+        if (!StorageUtil.isSDCardExist()) {
+            return;
+        }
         try {
-            httpClient = HttpUtil.getHttpClient(mContext);
-            HttpResponse response = HttpUtil.doGetRequest(httpClient, url, null);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != HttpStatus.SC_OK) {
-                Log.w(LOG_TAG, "Error " + statusCode + " while retrieving bitmap from " + url);
-            }
-            HttpEntity entity = response.getEntity();
-            inputStream = entity.getContent();
-            if (inputStream != null) {
-                if (StorageUtil.isSDCardExist()) {
-                    byte[] data = new byte[1024];
-                    int len = 0;
-                    File file = new File(sdCardDirectory, ImageUtil.getTempFileName(url));
-                    if (!file.exists()) {
-                        file.createNewFile();
-                    }
-                    fos = new FileOutputStream(file);
-                    while ((len = inputStream.read(data, 0, data.length)) != -1) {
-                        fos.write(data, 0, len);
-                    }
-                }
-            }
-        } catch (IOException e) {
+            download(url, new File(sdCardDirectory, ImageUtil.getTempFileName(url)), 0, 0, 1,
+                    null, false);
+        } catch (PermitUnavailableException e) {
             LogUtil.w(LOG_TAG, e.getMessage());
-        } catch (Exception e) {
-            LogUtil.w(LOG_TAG, e.getMessage());
-        } finally {
-            try {
-                if (inputStream != null) {
-                    inputStream.close();
-                }
-                if (fos != null) {
-                    fos.flush();
-                    fos.close();
-                    fos = null;
-                }
-                if (httpClient != null) {
-                    httpClient.getConnectionManager().shutdown();
-                }
-            } catch (IOException e) {
-                LogUtil.e(LOG_TAG, e.getMessage(), e);
-            }
         }
     }
 
@@ -495,123 +578,176 @@ public class ImageLoader {
      * @return the bitmap
      */
     public Bitmap downloadBitmap(String url, Context context, int screenWidth, int screenHeight) {
-        InputStream inputStream = null;
-        HttpClient httpClient = null;
-        FileOutputStream fos = null;
+        return downloadBitmap(url, ImageUtil.getTempFileName(url), screenWidth, screenHeight);
+    }
+
+    /**
+     * Download bitmap，没有下载名额时直接返回null.
+     *
+     * @param url          the url
+     * @param tempFileName the temp file name
+     * @param scaleWidth   the scale width
+     * @param scaleHeight  the scale height
+     * @return the bitmap
+     */
+    public Bitmap downloadBitmap(String url, String tempFileName, int scaleWidth, int scaleHeight) {
         try {
-            httpClient = HttpUtil.getHttpClient(mContext);
-            HttpResponse response = HttpUtil.doGetRequest(httpClient, url, null);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != HttpStatus.SC_OK) {
-                Log.w(LOG_TAG, "Error " + statusCode + " while retrieving bitmap from " + url);
-                return null;
-            }
-            HttpEntity entity = response.getEntity();
-            inputStream = entity.getContent();
-            if (inputStream != null) {
-                if (StorageUtil.isSDCardExist()) {
-                    byte[] data = new byte[1024];
-                    int len = 0;
-                    File file = new File(sdCardDirectory, ImageUtil.getTempFileName(url));
-                    if (!file.exists()) {
-                        file.createNewFile();
-                    }
-                    fos = new FileOutputStream(file);
-                    while ((len = inputStream.read(data, 0, data.length)) != -1) {
-                        fos.write(data, 0, len);
-                    }
-                    return ImageUtil.getBitmapFromFile(file.getAbsolutePath(),
-                            screenWidth, screenHeight);
-                } else {
-                    return ImageUtil.getBitmapFromStream(inputStream,
-                            screenWidth, screenHeight);
-                }
-            }
-        } catch (IOException e) {
-            LogUtil.w(LOG_TAG, e.getMessage());
-        } catch (Exception e) {
+            return downloadBitmap(url, tempFileName, scaleWidth, scaleHeight, 1, null);
+        } catch (PermitUnavailableException e) {
             LogUtil.w(LOG_TAG, e.getMessage());
-        } finally {
-            try {
-                if (inputStream != null) {
-                    inputStream.close();
-                }
-                if (fos != null) {
-                    fos.flush();
-                    fos.close();
-                    fos = null;
-                }
-                if (httpClient != null) {
-                    httpClient.getConnectionManager().shutdown();
-                }
-            } catch (IOException e) {
-                LogUtil.w(LOG_TAG, e.getMessage());
-            }
+            return null;
         }
-        return null;
     }
 
     /**
-     * Download bitmap.
+     * Download bitmap，abortHandle被abort时立即断开连接并停止写文件.
      *
      * @param url          the url
      * @param tempFileName the temp file name
      * @param scaleWidth   the scale width
      * @param scaleHeight  the scale height
+     * @param segments     分段并行下载的段数，1为单连接
+     * @param abortHandle  the abort handle, may be null
      * @return the bitmap
      */
-    public Bitmap downloadBitmap(String url, String tempFileName, int scaleWidth, int scaleHeight) {
-        InputStream inputStream = null;
-        HttpClient httpClient = null;
-        FileOutputStream fos = null;
+    private Bitmap downloadBitmap(String url, String tempFileName, int scaleWidth, int scaleHeight,
+                                  int segments, AbortHandle abortHandle)
+            throws PermitUnavailableException {
+        File file = StorageUtil.isSDCardExist() ? new File(sdCardDirectory, tempFileName) : null;
+        return download(url, file, scaleWidth, scaleHeight, segments, abortHandle, true);
+    }
+
+    /**
+     * 下载图片，有sd卡时先写文件再解码（中断后下次续传），否则直接从流解码<br>
+     * 同一host的并发下载数由AdaptiveLimiter根据链路情况控制，没有名额时抛出异常，不在这里等待.
+     *
+     * @param url         the url
+     * @param file        the cache file, null if no sdcard
+     * @param scaleWidth  the scale width
+     * @param scaleHeight the scale height
+     * @param segments    分段并行下载的段数，只对写文件有效
+     * @param abortHandle the abort handle, may be null
+     * @param decode      whether to decode the bitmap
+     * @return the bitmap
+     */
+    private Bitmap download(String url, File file, int scaleWidth, int scaleHeight, int segments,
+                            AbortHandle abortHandle, boolean decode)
+            throws PermitUnavailableException {
+        if (file == null) {
+            return decode ? downloadToMemory(url, scaleWidth, scaleHeight, abortHandle) : null;
+        }
+        try {
+            if (mFileDownloader.download(url, file, segments, abortHandle) && decode) {
+                return ImageUtil.getBitmapFromFile(file.getAbsolutePath(), scaleWidth,
+                        scaleHeight);
+            }
+        } catch (PermitUnavailableException e) {
+            throw e;
+        } catch (IOException e) {
+            LogUtil.w(LOG_TAG, e.getMessage());
+        } catch (Exception e) {
+            LogUtil.w(LOG_TAG, e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * 没有sd卡时直接从流解码，暂时性的失败按{@link RetryPolicy#IMAGE}重试.
+     */
+    private Bitmap downloadToMemory(String url, int scaleWidth, int scaleHeight,
+                                    AbortHandle abortHandle) throws PermitUnavailableException {
+        long[] retryDelay = new long[1];
+        for (int attempt = 1; ; attempt++) {
+            retryDelay[0] = -1;
+            Bitmap bitmap = downloadToMemory(url, scaleWidth, scaleHeight, abortHandle, attempt,
+                    retryDelay);
+            if (bitmap != null || retryDelay[0] < 0) {
+                return bitmap;
+            }
+            try {
+                RetryPolicy.sleep(retryDelay[0], abortHandle);
+            } catch (InterruptedIOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 下载一次，需要重试时把等待时间写入retryDelay[0].
+     */
+    private Bitmap downloadToMemory(String url, int scaleWidth, int scaleHeight,
+                                    AbortHandle abortHandle, int attempt, long[] retryDelay)
+            throws PermitUnavailableException {
+        BodyInputStream inputStream = null;
+        HttpUriRequest request = null;
+        HttpResponse response = null;
+        AdaptiveLimiter.Permit permit = null;
+        boolean linkFailed = false;
         try {
-            httpClient = HttpUtil.getHttpClient(mContext);
-            HttpResponse response = HttpUtil.doGetRequest(httpClient, url, null);
+            HttpClient httpClient = HttpUtil.getHttpClient(mContext, HttpUtil.ClientType.IMAGE);
+            request = HttpUtil.createGetRequest(url, null);
+            if (attempt == 1) {
+                RetryBudget.onRequest(request.getURI().getHost());
+            }
+            String host = request.getURI().getHost();
+            HttpUtil.NetworkState state = NetworkMonitor.getInstance(mContext).getNetworkState();
+            permit = sDownloadLimiter.tryAcquire(host, state);
+            if (permit == null) {
+                throw new PermitUnavailableException(host, state);
+            }
+            if (abortHandle != null) {
+                abortHandle.register(request);
+            }
+            response = HttpUtil.execute(httpClient, request);
+            permit.onResponse();
             int statusCode = response.getStatusLine().getStatusCode();
             if (statusCode != HttpStatus.SC_OK) {
                 Log.w(LOG_TAG, "Error " + statusCode + " while retrieving bitmap from " + url);
+                if (RetryPolicy.IMAGE.shouldRetry(attempt, "GET", request.getURI().getHost(),
+                        statusCode)) {
+                    retryDelay[0] = RetryPolicy.IMAGE.getDelay(attempt, response);
+                }
                 return null;
             }
-            HttpEntity entity = response.getEntity();
-            inputStream = entity.getContent();
-            if (inputStream != null) {
-                if (StorageUtil.isSDCardExist()) {
-                    byte[] data = new byte[1024];
-                    int len = 0;
-                    File file = new File(sdCardDirectory, tempFileName);
-                    if (!file.exists()) {
-                        file.createNewFile();
-                    }
-                    fos = new FileOutputStream(file);
-                    while ((len = inputStream.read(data, 0, data.length)) != -1) {
-                        fos.write(data, 0, len);
-                    }
-                    return ImageUtil.getBitmapFromFile(sdCardDirectory, tempFileName, scaleWidth,
-                            scaleHeight);
-                } else {
-                    return ImageUtil.getBitmapFromStream(inputStream, scaleWidth, scaleHeight);
-                }
+            InputStream content = response.getEntity().getContent();
+            if (content != null) {
+                // 和FileDownloader一样按实际读到的字节数计入download.bytes，不按Content-Length
+                inputStream = new BodyInputStream(content);
+                return ImageUtil.getBitmapFromStream(inputStream, scaleWidth, scaleHeight);
             }
+        } catch (PermitUnavailableException e) {
+            throw e;
         } catch (IOException e) {
+            linkFailed = true;
             LogUtil.w(LOG_TAG, e.getMessage());
+            if (request != null && (abortHandle == null || !abortHandle.isAborted())
+                    && RetryPolicy.IMAGE.shouldRetry(attempt, "GET", request.getURI().getHost(),
+                    e)) {
+                retryDelay[0] = RetryPolicy.IMAGE.getDelay(attempt, null);
+            }
         } catch (Exception e) {
             LogUtil.w(LOG_TAG, e.getMessage());
         } finally {
+            if (abortHandle != null && request != null) {
+                abortHandle.unregister(request);
+            }
             try {
                 if (inputStream != null) {
+                    sBytesDownloaded.add(inputStream.getCount());
                     inputStream.close();
                 }
-                if (fos != null) {
-                    fos.flush();
-                    fos.close();
-                    fos = null;
-                }
-                if (httpClient != null) {
-                    httpClient.getConnectionManager().shutdown();
-                }
             } catch (IOException e) {
                 LogUtil.w(LOG_TAG, e.getMessage());
             }
+            HttpUtil.releaseConnection(request, response);
+            if (permit != null) {
+                if (abortHandle != null && abortHandle.isAborted()) {
+                    permit.cancel();
+                } else {
+                    // http错误码不代表链路有问题，只有io失败才让限流器降并发
+                    permit.release(!linkFailed);
+                }
+            }
         }
         return null;
     }
@@ -761,10 +897,30 @@ public class ImageLoader {
                 bm = ImageUtil.getBitmapFromFile(url.replaceFirst(ConstantData.SDCARD_PATH_IMG, ""),
                         scaleWidth, scaleHeight);
             } else {
+                Tracer.Trace trace = getTrace();
+                trace.setLabel(url);
+                long diskStart = trace.now();
                 bm = ImageUtil.getBitmapFromFile(sdCardDirectory, tempFileName, scaleWidth,
                         scaleHeight);
-                if (bm == null) {
-                    bm = downloadBitmap(url, tempFileName, scaleWidth, scaleHeight);
+                trace.span("disk", diskStart);
+                if (bm != null) {
+                    sDiskHits.inc();
+                } else {
+                    sDiskMisses.inc();
+                    int segments = type == TYPE_BIG_PIC ? BIG_PIC_SEGMENTS : 1;
+                    getAbortHandle().setDeadline(Deadline.after(
+                            type == TYPE_BIG_PIC ? BIG_PIC_TIMEOUT_MS : IMAGE_TIMEOUT_MS));
+                    long downloadStart = trace.now();
+                    try {
+                        bm = downloadBitmap(url, tempFileName, scaleWidth, scaleHeight, segments,
+                                getAbortHandle());
+                    } catch (PermitUnavailableException e) {
+                        // 不占着图片通道的线程等名额，名额归还后重新排队
+                        waitForPermit(sDownloadLimiter, e);
+                    } finally {
+                        getAbortHandle().setDeadline(null);
+                        trace.span("download", downloadStart);
+                    }
                 }
             }
 
@@ -2,6 +2,8 @@ package com.github.lorcan.base.image;
 
 import android.graphics.Bitmap;
 
+import com.github.lorcan.base.utils.Metrics;
+
 import java.lang.ref.SoftReference;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -16,6 +18,12 @@ public class ImageSoftCache implements ImageCache {
 
     private static final int HARD_CACHE_CAPACITY = 10;
 
+    private static final Metrics.Counter sHardHits = Metrics.counter("image.cache.hard.hit");
+
+    private static final Metrics.Counter sSoftHits = Metrics.counter("image.cache.soft.hit");
+
+    private static final Metrics.Counter sMisses = Metrics.counter("image.cache.memory.miss");
+
     /**
      * Hard cache, with a fixed maximum capacity and a life duration
      */
@@ -84,6 +92,7 @@ public class ImageSoftCache implements ImageCache {
                 sHardBitmapCache.remove(key);
                 sHardBitmapCache.put(key, bitmap);
                 hitCount++;
+                sHardHits.inc();
                 return bitmap;
             }
 
@@ -94,6 +103,7 @@ public class ImageSoftCache implements ImageCache {
                 if (bitmap != null) {
                     // Bitmap found in soft cache
                     hitCount++;
+                    sSoftHits.inc();
                     return bitmap;
                 } else {
                     // Soft reference has been Garbage Collected
@@ -101,6 +111,7 @@ public class ImageSoftCache implements ImageCache {
                 }
             }
             missCount++;
+            sMisses.inc();
         }
         return null;
     }
@@ -7,20 +7,35 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PorterDuff.Mode;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.media.ExifInterface;
 import android.text.TextUtils;
+import com.github.lorcan.base.network.FileDownloader;
+import com.github.lorcan.base.network.TaskPriority;
+import com.github.lorcan.base.network.TaskRuntime;
 import com.github.lorcan.base.utils.LogUtil;
+import com.github.lorcan.base.utils.MainThreadWatchdog;
+import com.github.lorcan.base.utils.Metrics;
 import com.github.lorcan.base.utils.StorageUtil;
+import com.github.lorcan.base.utils.Tracer;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
@@ -64,6 +79,26 @@ public class ImageUtil {
      */
     private static final String KEY_IMG_CACHE_TIME = "key_img_clear";
 
+    /**
+     * 上传图片默认的长边像素.
+     */
+    public static final int UPLOAD_MAX_SIDE = 2048;
+
+    /**
+     * 上传图片默认的JPEG质量.
+     */
+    public static final int UPLOAD_QUALITY = 85;
+
+    /**
+     * 上传压缩时内存不足逐级降采样的上限.
+     */
+    private static final int MAX_UPLOAD_SAMPLE_SIZE = 32;
+
+    /**
+     * 解码缓存文件和下载内容的耗时，包括内存不足时降采样重试.
+     */
+    private static final Metrics.Histogram sDecodeTime = Metrics.histogram("image.decode");
+
     /**
      * Gets the bitmap from file.
      *
@@ -77,13 +112,20 @@ public class ImageUtil {
             return null;
         }
         Bitmap bitmap = null;
+        long ioStart = MainThreadWatchdog.begin();
         File tempFile = new File(pathFileName);
         if (tempFile.exists()) {
+            Tracer.Trace trace = Tracer.current();
+            long traceStart = trace.now();
+            long start = System.currentTimeMillis();
             bitmap = getResizeBitmap(tempFile.getAbsolutePath(), scaleWidth, scaleHeight);
+            sDecodeTime.recordSince(start);
+            trace.span("decode", traceStart);
 
             // 更新文件的访问时间，防止被清理
             tempFile.setLastModified(System.currentTimeMillis());
         }
+        MainThreadWatchdog.end("read_file", ioStart);
         return bitmap;
     }
 
@@ -102,13 +144,20 @@ public class ImageUtil {
             return null;
         }
         Bitmap bitmap = null;
+        long ioStart = MainThreadWatchdog.begin();
         File tempFile = new File(dirpath, tempFileName);
         if (tempFile.exists()) {
+            Tracer.Trace trace = Tracer.current();
+            long traceStart = trace.now();
+            long start = System.currentTimeMillis();
             bitmap = getResizeBitmap(tempFile.getAbsolutePath(), scaleWidth, scaleHeight);
+            sDecodeTime.recordSince(start);
+            trace.span("decode", traceStart);
 
             // 更新文件的访问时间，防止被清理
             tempFile.setLastModified(System.currentTimeMillis());
         }
+        MainThreadWatchdog.end("read_file", ioStart);
         return bitmap;
     }
 
@@ -136,7 +185,12 @@ public class ImageUtil {
                 baos.flush();
             }
             bytes = baos.toByteArray();
+            Tracer.Trace trace = Tracer.current();
+            long traceStart = trace.now();
+            long start = System.currentTimeMillis();
             bitmap = getResizeBitmap(bytes, scaleWidth, scaleHeight);
+            sDecodeTime.recordSince(start);
+            trace.span("decode", traceStart);
         } catch (IOException e) {
             throw e;
         } finally {
@@ -229,7 +283,9 @@ public class ImageUtil {
     }
 
     /**
-     * 根据图片清理参数，清理图片缓存.
+     * 根据图片清理参数，清理图片缓存.<br>
+     * 读写清理时间的SharedPreferences和删除文件都在后台通道执行，可以在UI线程调用，
+     * API 8没有apply()，commit()也放在后台.
      *
      * @param context the context
      */
@@ -238,19 +294,19 @@ public class ImageUtil {
         if (!StorageUtil.isSDCardExist()) {
             return;
         }
-        if (needImgCacheClear(context)) {
-            final String imgDir = StorageUtil.getDirByType(StorageUtil.DIR_TYPE_IMAGE);
-            new Thread() {
-                public void run() {
-                    File imgDirFile = new File(imgDir);
-                    executeClear(imgDirFile);
+        final Context appContext = context.getApplicationContext();
+        TaskRuntime.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (needImgCacheClear(appContext)) {
+                    saveImgCacheClearTime(appContext);
+                    File dir = new File(StorageUtil.getDirByType(StorageUtil.DIR_TYPE_IMAGE));
+                    // 过期的图片不会再续传，中断留下的下载文件一并清理
+                    FileDownloader.deleteStaleParts(dir, IMAGE_CACHE_EXPIRE * 3600000L);
+                    executeClear(dir);
                 }
-
-                ;
-            }.start();
-
-            saveImgCacheClearTime(context);
-        }
+            }
+        }, TaskPriority.BACKGROUND);
     }
 
     /**
@@ -293,8 +349,8 @@ public class ImageUtil {
                 break;
             }
         }
-        LogUtil.d(TAG, "clearDiskCache-fileLength :" + fileLength + "needClearTotal :" + needClearTotal
-                + "clearNum :" + clearNum);
+        LogUtil.d(TAG, "clearDiskCache-fileLength :%d needClearTotal :%d clearNum :%d", fileLength,
+                needClearTotal, clearNum);
     }
 
     /**
@@ -319,7 +375,7 @@ public class ImageUtil {
                 IMG_CACHE_PREF_FILE, Context.MODE_PRIVATE);
         long curtime = System.currentTimeMillis();
         long preftime = preferences.getLong(KEY_IMG_CACHE_TIME, 0L);
-        LogUtil.d(TAG, "clear disk cache--curtime:" + curtime + " preftime:" + preftime);
+        LogUtil.d(TAG, "clear disk cache--curtime:%d preftime:%d", curtime, preftime);
         // 间隔3小时，就再次尝试清理文件的图片缓存
         if (curtime - preftime > IMAGE_CACHE_CLEAR_DUR_TIME) {
             return true;
@@ -456,6 +512,240 @@ public class ImageUtil {
         return bitmap;
     }
 
+    /**
+     * 上传前压缩图片<br>
+     * 1 先按2的幂采样解码，解码尺寸不小于目标尺寸，避免把整张原图读进内存<br>
+     * 2 再缩放到长边不超过maxSide，同时按EXIF方向旋转<br>
+     * 3 以JPEG重新压缩写到临时文件，EXIF等元数据（包括位置信息）不会带上<br>
+     * 4 无法解码、压缩失败或重新压缩后没变小时，JPEG原图去掉元数据段后复制一份，
+     * 其它格式返回null，不会把原图直接传出去<br>
+     * 在后台线程调用
+     *
+     * @param src     原图
+     * @param tempDir 临时文件目录
+     * @param maxSide 长边的最大像素
+     * @param quality JPEG质量，0-100
+     * @return 要上传的临时JPEG文件，由调用方删除；无法去掉元数据时返回null
+     */
+    public static File compressForUpload(File src, File tempDir, int maxSide, int quality) {
+        File dest;
+        try {
+            dest = File.createTempFile("upload_", ".jpg", tempDir);
+        } catch (IOException e) {
+            LogUtil.w(TAG, "compressForUpload: " + e.getMessage());
+            return null;
+        }
+        boolean compressed = false;
+        boolean[] scaled = new boolean[1];
+        try {
+            compressed = compressTo(src, dest, maxSide, quality, scaled);
+        } catch (IOException e) {
+            LogUtil.w(TAG, e.getMessage());
+        }
+        if (compressed && (scaled[0] || dest.length() < src.length())) {
+            return dest;
+        }
+        // 解码失败，或没有缩小尺寸且重新压缩后没变小，JPEG原图去掉元数据后上传
+        File stripped = new File(dest.getPath() + ".strip");
+        try {
+            if (stripJpegMetadata(src, stripped)
+                    && (!compressed || stripped.length() < dest.length())) {
+                dest.delete();
+                if (stripped.renameTo(dest)) {
+                    return dest;
+                }
+                LogUtil.w(TAG, "compressForUpload: rename failed");
+                stripped.delete();
+                return null;
+            }
+        } catch (IOException e) {
+            LogUtil.w(TAG, e.getMessage());
+        }
+        stripped.delete();
+        if (compressed) {
+            return dest;
+        }
+        LogUtil.w(TAG, "compressForUpload: cannot strip metadata from " + src.getName());
+        dest.delete();
+        return null;
+    }
+
+    /**
+     * 采样解码、缩放旋转后以JPEG写到dest，缩小了尺寸时scaled[0]为true
+     *
+     * @return 是否写入成功
+     */
+    private static boolean compressTo(File src, File dest, int maxSide, int quality,
+                                      boolean[] scaled) throws IOException {
+        String path = src.getAbsolutePath();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+        int longSide = Math.max(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= maxSide) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = Config.ARGB_8888;
+        Bitmap sampled = null;
+        while (sampled == null && sampleSize <= MAX_UPLOAD_SAMPLE_SIZE) {
+            options.inSampleSize = sampleSize;
+            try {
+                sampled = BitmapFactory.decodeFile(path, options);
+                if (sampled == null) {
+                    return false;
+                }
+            } catch (OutOfMemoryError error) {
+                // 内存不够就再降一级采样率
+                LogUtil.w(TAG, "compressForUpload oom at sample " + sampleSize);
+                System.gc();
+                sampleSize *= 2;
+            }
+        }
+        if (sampled == null) {
+            return false;
+        }
+
+        Bitmap bitmap = sampled;
+        try {
+            Matrix matrix = new Matrix();
+            float scale = Math.min(1f,
+                    (float) maxSide / Math.max(sampled.getWidth(), sampled.getHeight()));
+            if (scale < 1f) {
+                matrix.postScale(scale, scale);
+            }
+            scaled[0] = sampleSize > 1 || scale < 1f;
+            int degrees = getExifDegrees(path);
+            if (degrees != 0) {
+                matrix.postRotate(degrees);
+            }
+            if (!matrix.isIdentity()) {
+                bitmap = Bitmap.createBitmap(sampled, 0, 0, sampled.getWidth(),
+                        sampled.getHeight(), matrix, true);
+                if (bitmap != sampled) {
+                    sampled.recycle();
+                }
+            }
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(dest));
+            try {
+                return bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+            } finally {
+                out.close();
+            }
+        } catch (OutOfMemoryError error) {
+            LogUtil.w(TAG, "compressForUpload oom while scaling");
+            return false;
+        } finally {
+            bitmap.recycle();
+            if (!sampled.isRecycled()) {
+                sampled.recycle();
+            }
+        }
+    }
+
+    /**
+     * 复制JPEG并去掉APP1（EXIF、XMP）、APP13（IPTC）和注释段，图像数据原样保留。
+     * 方向信息也在EXIF里，去掉后不再旋转
+     *
+     * @return 不是JPEG或格式不对时返回false，dest被删除
+     */
+    private static boolean stripJpegMetadata(File src, File dest) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(src)));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(dest));
+        boolean ok = false;
+        try {
+            if (in.readUnsignedShort() != 0xFFD8) {
+                return false;
+            }
+            out.write(0xFF);
+            out.write(0xD8);
+            byte[] buffer = new byte[8 * 1024];
+            while (true) {
+                if (in.readUnsignedByte() != 0xFF) {
+                    return false;
+                }
+                int marker = in.readUnsignedByte();
+                while (marker == 0xFF) {
+                    // 填充字节
+                    marker = in.readUnsignedByte();
+                }
+                if (marker == 0xD9 || marker == 0xDA) {
+                    // 图像结束或扫描数据开始，之后原样复制
+                    out.write(0xFF);
+                    out.write(marker);
+                    int len;
+                    while ((len = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, len);
+                    }
+                    ok = true;
+                    return true;
+                }
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                    // 没有长度的标记
+                    out.write(0xFF);
+                    out.write(marker);
+                    continue;
+                }
+                int length = in.readUnsignedShort();
+                if (length < 2) {
+                    return false;
+                }
+                boolean strip = marker == 0xE1 || marker == 0xED || marker == 0xFE;
+                if (!strip) {
+                    out.write(0xFF);
+                    out.write(marker);
+                    out.write(length >> 8);
+                    out.write(length & 0xFF);
+                }
+                int remain = length - 2;
+                while (remain > 0) {
+                    int n = Math.min(remain, buffer.length);
+                    in.readFully(buffer, 0, n);
+                    if (!strip) {
+                        out.write(buffer, 0, n);
+                    }
+                    remain -= n;
+                }
+            }
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+            out.close();
+            if (!ok) {
+                dest.delete();
+            }
+        }
+    }
+
+    /**
+     * 读取EXIF中的旋转角度，镜像翻转不处理
+     */
+    private static int getExifDegrees(String path) {
+        try {
+            ExifInterface exif = new ExifInterface(path);
+            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
     /**
      * Do scale by width.
      *
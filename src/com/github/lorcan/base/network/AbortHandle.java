@@ -0,0 +1,179 @@
+package com.github.lorcan.base.network;
+
+import com.github.lorcan.base.utils.LogUtil;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+
+/**
+ * 任务执行中的http请求登记处<br>
+ * HttpClient的socket读写不响应线程中断，任务取消时通过abort关闭连接，
+ * 阻塞中的读写会立刻抛出IOException<br>
+ * 可以设置{@link Deadline}，之后登记的请求超时不超过剩余时间，到期时自动abort
+ *
+ * @author lorcan
+ */
+public class AbortHandle {
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final List<HttpUriRequest> mRequests = new ArrayList<HttpUriRequest>(1);
+
+    private volatile boolean mAborted;
+
+    /**
+     * 是否因截止时间到期而abort，这类abort对熔断器来说是host的失败
+     */
+    private boolean mAbortedByDeadline;
+
+    private volatile Deadline mDeadline;
+
+    private TimerTask mDeadlineTask;
+
+    /**
+     * 登记正在执行的请求，若已经abort则立即abort该请求
+     */
+    public void register(HttpUriRequest request) {
+        if (request == null) {
+            return;
+        }
+        Deadline deadline = mDeadline;
+        if (deadline != null) {
+            HttpUtil.applyTimeouts(request, deadline);
+        }
+        boolean byDeadline;
+        synchronized (mRequests) {
+            if (!mAborted) {
+                mRequests.add(request);
+                return;
+            }
+            byDeadline = mAbortedByDeadline;
+        }
+        if (byDeadline) {
+            HttpUtil.markDeadlineAborted(request);
+        }
+        request.abort();
+    }
+
+    /**
+     * 请求结束后注销
+     */
+    public void unregister(HttpUriRequest request) {
+        synchronized (mRequests) {
+            mRequests.remove(request);
+        }
+    }
+
+    /**
+     * abort所有登记的请求，之后登记的请求也会被立即abort
+     */
+    public void abort() {
+        abort(false);
+    }
+
+    private void abort(boolean byDeadline) {
+        HttpUriRequest[] requests;
+        synchronized (mRequests) {
+            if (mAborted) {
+                return;
+            }
+            mAborted = true;
+            mAbortedByDeadline = byDeadline;
+            requests = mRequests.toArray(new HttpUriRequest[mRequests.size()]);
+            mRequests.clear();
+        }
+        for (HttpUriRequest request : requests) {
+            if (byDeadline) {
+                HttpUtil.markDeadlineAborted(request);
+            }
+            try {
+                request.abort();
+            } catch (UnsupportedOperationException e) {
+                // 不支持abort的请求只能等它自己结束
+            }
+        }
+    }
+
+    /**
+     * 设置截止时间，到期时abort；任务结束后传null取消计时
+     */
+    public void setDeadline(Deadline deadline) {
+        TimerTask task = null;
+        synchronized (mRequests) {
+            if (mDeadlineTask != null) {
+                mDeadlineTask.cancel();
+                mDeadlineTask = null;
+            }
+            mDeadline = deadline;
+            if (deadline != null && !mAborted) {
+                task = new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            abort(true);
+                        } catch (RuntimeException e) {
+                            // 异常会让计时线程退出，影响其它定时任务
+                            LogUtil.w("AbortHandle", "abort on deadline: " + e);
+                        }
+                    }
+                };
+                mDeadlineTask = task;
+            }
+        }
+        if (task != null) {
+            TaskRuntime.schedule(task, deadline.remaining());
+        }
+    }
+
+    public Deadline getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * 是否因截止时间到期而abort
+     */
+    public boolean isDeadlineExceeded() {
+        Deadline deadline = mDeadline;
+        return mAborted && deadline != null && deadline.isExpired();
+    }
+
+    public boolean isAborted() {
+        return mAborted;
+    }
+
+    /**
+     * 已abort时抛出InterruptedIOException，用于长时间io循环中的检查点
+     */
+    public void checkAborted() throws InterruptedIOException {
+        if (mAborted) {
+            throw new InterruptedIOException("aborted");
+        }
+    }
+
+    /**
+     * 拷贝流，每个缓冲区检查一次是否已abort
+     *
+     * @return 拷贝的字节数
+     */
+    public static long copy(InputStream in, OutputStream out, AbortHandle handle)
+            throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long total = 0;
+        int len;
+        while ((len = in.read(buffer, 0, buffer.length)) != -1) {
+            if (handle != null) {
+                handle.checkAborted();
+            }
+            out.write(buffer, 0, len);
+            total += len;
+        }
+        return total;
+    }
+}
@@ -1,23 +1,21 @@
 package com.github.lorcan.base.network;
 
-import android.os.Handler;
-import android.os.Message;
 import android.os.Process;
 
-import java.util.concurrent.BlockingQueue;
+import com.github.lorcan.base.utils.Tracer;
+
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * 修改AsyncTask，修改线程池大小 《一般异步任务线程池》
+ * 修改AsyncTask，任务跑在共享的{@link TaskRuntime}上 《一般异步任务》
  *
  * @param <Result>
  * @author Tsimle
@@ -26,35 +24,32 @@ public abstract class AbsNormalAsyncTask<Params, Progress, Result> implements
         ICancelable {
     private static final String LOG_TAG = "FictionAsyncTask";
 
-    private static final int CORE_POOL_SIZE = 3;
-    private static final int MAXIMUM_POOL_SIZE = 20;
-    private static final int KEEP_ALIVE = 10;
+    /**
+     * 按tag分组的进行中任务，用于按Activity批量取消
+     */
+    @SuppressWarnings("rawtypes")
+    private static final HashMap<Object, HashSet<AbsNormalAsyncTask>> sGroups =
+            new HashMap<Object, HashSet<AbsNormalAsyncTask>>();
 
-    private static final BlockingQueue<Runnable> sWorkQueue = new LinkedBlockingQueue<Runnable>(
-            10);
+    private final WorkerRunnable<Params, Result> mWorker;
+    private final FutureTask<Result> mFuture;
 
-    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
-        private final AtomicInteger mCount = new AtomicInteger(1);
+    private volatile Status mStatus = Status.PENDING;
 
-        public Thread newThread(Runnable r) {
-            return new Thread(r, "AsyncTask #" + mCount.getAndIncrement());
-        }
-    };
+    private TaskPriority mPriority = TaskPriority.NORMAL;
 
-    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
-            CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS,
-            sWorkQueue, sThreadFactory);
+    private Object mTag;
 
-    private static final int MESSAGE_POST_RESULT = 0x1;
-    private static final int MESSAGE_POST_PROGRESS = 0x2;
-    private static final int MESSAGE_POST_CANCEL = 0x3;
+    private Executor mCallbackExecutor = TaskRuntime.mainExecutor();
 
-    private static final InternalHandler sHandler = new InternalHandler();
+    private final AbortHandle mAbortHandle = new AbortHandle();
 
-    private final WorkerRunnable<Params, Result> mWorker;
-    private final FutureTask<Result> mFuture;
+    private volatile Tracer.Trace mTrace = Tracer.Trace.NOOP;
 
-    private volatile Status mStatus = Status.PENDING;
+    /**
+     * 提交到线程池的时间，用于追踪排队阶段
+     */
+    private long mQueuedAt;
 
     /**
      * Indicates the current status of the task. Each status will be set only
@@ -83,7 +78,16 @@ public abstract class AbsNormalAsyncTask<Params, Progress, Result> implements
         mWorker = new WorkerRunnable<Params, Result>() {
             public Result call() throws Exception {
                 Process.setThreadPriority(threadPriority);
-                return doInBackground(mParams);
+                Tracer.Trace trace = mTrace;
+                trace.span("queue", mQueuedAt);
+                long start = trace.now();
+                Tracer.Trace previous = Tracer.bind(trace);
+                try {
+                    return doInBackground(mParams);
+                } finally {
+                    Tracer.bind(previous);
+                    trace.span("background", start);
+                }
             }
         };
 
@@ -91,7 +95,7 @@ public abstract class AbsNormalAsyncTask<Params, Progress, Result> implements
             @SuppressWarnings("unchecked")
             @Override
             protected void done() {
-                Message message;
+                leaveGroup();
                 Result result = null;
 
                 try {
@@ -103,10 +107,7 @@ public abstract class AbsNormalAsyncTask<Params, Progress, Result> implements
                             "An error occured while executing doInBackground()",
                             e.getCause());
                 } catch (CancellationException e) {
-                    message = sHandler.obtainMessage(MESSAGE_POST_CANCEL,
-                            new AsyncTaskResult<Result>(
-                                    AbsNormalAsyncTask.this, (Result[]) null));
-                    message.sendToTarget();
+                    postCancel();
                     return;
                 } catch (Throwable t) {
                     throw new RuntimeException(
@@ -114,10 +115,7 @@ public abstract class AbsNormalAsyncTask<Params, Progress, Result> implements
                                     + "doInBackground()", t);
                 }
 
-                message = sHandler.obtainMessage(MESSAGE_POST_RESULT,
-                        new AsyncTaskResult<Result>(AbsNormalAsyncTask.this,
-                                result));
-                message.sendToTarget();
+                postResult(result);
             }
         };
     }
@@ -127,46 +125,7 @@ public abstract class AbsNormalAsyncTask<Params, Progress, Result> implements
      * UI thread.
      */
     public AbsNormalAsyncTask() {
-        mWorker = new WorkerRunnable<Params, Result>() {
-            public Result call() throws Exception {
-                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-                return doInBackground(mParams);
-            }
-        };
-
-        mFuture = new FutureTask<Result>(mWorker) {
-            @SuppressWarnings("unchecked")
-            @Override
-            protected void done() {
-                Message message;
-                Result result = null;
-
-                try {
-                    result = get();
-                } catch (InterruptedException e) {
-                    android.util.Log.w(LOG_TAG, e);
-                } catch (ExecutionException e) {
-                    throw new RuntimeException(
-                            "An error occured while executing doInBackground()",
-                            e.getCause());
-                } catch (CancellationException e) {
-                    message = sHandler.obtainMessage(MESSAGE_POST_CANCEL,
-                            new AsyncTaskResult<Result>(
-                                    AbsNormalAsyncTask.this, (Result[]) null));
-                    message.sendToTarget();
-                    return;
-                } catch (Throwable t) {
-                    throw new RuntimeException(
-                            "An error occured while executing "
-                                    + "doInBackground()", t);
-                }
-
-                message = sHandler.obtainMessage(MESSAGE_POST_RESULT,
-                        new AsyncTaskResult<Result>(AbsNormalAsyncTask.this,
-                                result));
-                message.sendToTarget();
-            }
-        };
+        this(Process.THREAD_PRIORITY_BACKGROUND);
     }
 
     /**
@@ -268,7 +227,136 @@ public abstract class AbsNormalAsyncTask<Params, Progress, Result> implements
      */
     @Override
     public final boolean cancel(boolean mayInterruptIfRunning) {
-        return mFuture.cancel(mayInterruptIfRunning);
+        boolean cancelled = mFuture.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            // 还在排队的任务直接移出队列，不占用队列长度
+            TaskRuntime.executor().remove(mFuture);
+        }
+        if (cancelled && mayInterruptIfRunning) {
+            // 线程中断对socket读写无效，abort掉进行中的请求
+            mAbortHandle.abort();
+        }
+        return cancelled;
+    }
+
+    /**
+     * 设置优先级通道，需在{@link #execute}之前调用
+     *
+     * @param priority 优先级，默认{@link TaskPriority#NORMAL}
+     */
+    public final void setPriority(TaskPriority priority) {
+        mPriority = priority == null ? TaskPriority.NORMAL : priority;
+    }
+
+    public final TaskPriority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * 设置执行onPostExecute、onProgressUpdate和onCancelled回调的Executor，需在{@link #execute}之前调用<br>
+     * 默认{@link TaskRuntime#mainExecutor()}；回调里只写数据库或发起下一个请求时可以用
+     * {@link TaskRuntime#backgroundExecutor()}或{@link TaskRuntime#directExecutor()}，
+     * 不经过UI线程，这时回调里不能操作界面
+     *
+     * @param executor 为null时使用默认值
+     */
+    public final void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor == null ? TaskRuntime.mainExecutor() : executor;
+    }
+
+    public final Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    /**
+     * 设置分组tag，一般为发起任务的Activity，需在{@link #execute}之前调用
+     *
+     * @see #cancelGroup(Object)
+     */
+    public final void setTag(Object tag) {
+        mTag = tag;
+    }
+
+    public final Object getTag() {
+        return mTag;
+    }
+
+    /**
+     * 取消该tag下所有未完成的任务，进行中的请求会被abort<br>
+     * 可以在Activity destroy时调用
+     *
+     * @param tag 分组tag
+     * @return 取消的任务数
+     */
+    @SuppressWarnings("rawtypes")
+    public static int cancelGroup(Object tag) {
+        if (tag == null) {
+            return 0;
+        }
+        AbsNormalAsyncTask[] tasks;
+        synchronized (sGroups) {
+            HashSet<AbsNormalAsyncTask> group = sGroups.remove(tag);
+            if (group == null) {
+                return 0;
+            }
+            tasks = group.toArray(new AbsNormalAsyncTask[group.size()]);
+        }
+        int count = 0;
+        for (AbsNormalAsyncTask task : tasks) {
+            if (task.cancel(true)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void joinGroup() {
+        if (mTag == null) {
+            return;
+        }
+        synchronized (sGroups) {
+            HashSet<AbsNormalAsyncTask> group = sGroups.get(mTag);
+            if (group == null) {
+                group = new HashSet<AbsNormalAsyncTask>();
+                sGroups.put(mTag, group);
+            }
+            group.add(this);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void leaveGroup() {
+        if (mTag == null) {
+            return;
+        }
+        synchronized (sGroups) {
+            HashSet<AbsNormalAsyncTask> group = sGroups.get(mTag);
+            if (group != null) {
+                group.remove(this);
+                if (group.isEmpty()) {
+                    sGroups.remove(mTag);
+                }
+            }
+        }
+    }
+
+    /**
+     * 该任务的追踪，未被采样时为{@link Tracer.Trace#NOOP}。
+     * {@link #doInBackground}执行期间也可以通过{@link Tracer#current()}取得
+     */
+    protected final Tracer.Trace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * {@link #doInBackground}中发出的http请求登记到这里，
+     * {@link #cancel(boolean)}时会被abort
+     *
+     * @return 该任务的AbortHandle
+     */
+    protected final AbortHandle getAbortHandle() {
+        return mAbortHandle;
     }
 
     /**
@@ -336,7 +424,10 @@ public abstract class AbsNormalAsyncTask<Params, Progress, Result> implements
         onPreExecute();
 
         mWorker.mParams = params;
-        sExecutor.execute(mFuture);
+        joinGroup();
+        mTrace = Tracer.start(getClass().getSimpleName());
+        mQueuedAt = mTrace.now();
+        TaskRuntime.executor().execute(mFuture, mPriority);
 
         return this;
     }
@@ -351,9 +442,34 @@ public abstract class AbsNormalAsyncTask<Params, Progress, Result> implements
      * @see #onProgressUpdate
      * @see #doInBackground
      */
-    protected final void publishProgress(Progress... values) {
-        sHandler.obtainMessage(MESSAGE_POST_PROGRESS,
-                new AsyncTaskResult<Progress>(this, values)).sendToTarget();
+    protected final void publishProgress(final Progress... values) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onProgressUpdate(values);
+            }
+        });
+    }
+
+    private void postResult(final Result result) {
+        final long posted = mTrace.now();
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                finish(result);
+                // 包括在回调线程排队和onPostExecute回调
+                mTrace.span("deliver", posted);
+            }
+        });
+    }
+
+    private void postCancel() {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onCancelled();
+            }
+        });
     }
 
     private void finish(Result result) {
@@ -363,39 +479,8 @@ public abstract class AbsNormalAsyncTask<Params, Progress, Result> implements
         mStatus = Status.FINISHED;
     }
 
-    private static class InternalHandler extends Handler {
-        @SuppressWarnings({"unchecked", "rawtypes"})
-        @Override
-        public void handleMessage(Message msg) {
-            AsyncTaskResult result = (AsyncTaskResult) msg.obj;
-            switch (msg.what) {
-                case MESSAGE_POST_RESULT:
-                    // There is only one result
-                    result.mTask.finish(result.mData[0]);
-                    break;
-                case MESSAGE_POST_PROGRESS:
-                    result.mTask.onProgressUpdate(result.mData);
-                    break;
-                case MESSAGE_POST_CANCEL:
-                    result.mTask.onCancelled();
-                    break;
-            }
-        }
-    }
-
     private static abstract class WorkerRunnable<Params, Result> implements
             Callable<Result> {
         Params[] mParams;
     }
-
-    @SuppressWarnings("rawtypes")
-    private static class AsyncTaskResult<Data> {
-        final AbsNormalAsyncTask mTask;
-        final Data[] mData;
-
-        AsyncTaskResult(AbsNormalAsyncTask task, Data... data) {
-            mTask = task;
-            mData = data;
-        }
-    }
 }
@@ -0,0 +1,249 @@
+package com.github.lorcan.base.network;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按host和网络类型自适应调整并发下载数（AIMD）<br>
+ * 1 以首包时间（TTFB）的历史最小值作为基线，首包时间没有明显超出基线时，每完成一个请求
+ * 并发上限增加1/limit，约每一轮往返加1<br>
+ * 2 首包时间超出基线的容忍倍数，说明链路已经排队，并发上限乘以0.9<br>
+ * 3 请求失败或超时，并发上限减半<br>
+ * 4 名额只能非阻塞获取，不会超过上限；没有名额的任务通过{@link #runWhenAvailable}登记，
+ * 名额归还时重新提交，不占着线程池的线程等待<br>
+ * 弱网下并发数会自动降下来，避免几十个下载一起变慢、一起超时
+ *
+ * @author lorcan
+ */
+public class AdaptiveLimiter {
+
+    /**
+     * 首包时间超过基线的倍数视为链路拥塞
+     */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private static final double FAILURE_RATIO = 0.5;
+
+    /**
+     * 基线缓慢向新样本靠拢，适应网络切换后的新延迟
+     */
+    private static final double BASELINE_DECAY = 0.02;
+
+    private static final int INITIAL_LIMIT_WIFI = 6;
+
+    private static final int INITIAL_LIMIT_MOBILE = 2;
+
+    /**
+     * 每个窗口最多登记的等待任务，超过时调用方直接失败
+     */
+    private static final int MAX_WAITERS = 32;
+
+    /**
+     * 保留的窗口数，超过时从最久没用的开始淘汰空闲窗口
+     */
+    private static final int MAX_WINDOWS = 32;
+
+    private final int mMinLimit;
+
+    private final int mMaxLimit;
+
+    /**
+     * 按访问顺序排列，所有窗口的状态都由它加锁保护
+     */
+    private final LinkedHashMap<String, Window> mWindows =
+            new LinkedHashMap<String, Window>(16, 0.75f, true);
+
+    public AdaptiveLimiter(int minLimit, int maxLimit) {
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+    }
+
+    /**
+     * 获取一个并发名额，不等待
+     *
+     * @param host  目标host
+     * @param state 当前网络类型
+     * @return 名额，请求结束后必须调用{@link Permit#release}；名额已满时返回null
+     */
+    public Permit tryAcquire(String host, HttpUtil.NetworkState state) {
+        synchronized (mWindows) {
+            Window window = getWindow(host, state);
+            if (window.inFlight >= (int) window.limit) {
+                return null;
+            }
+            window.inFlight++;
+            return new Permit(this, window);
+        }
+    }
+
+    /**
+     * 有空闲名额时立即在当前线程执行task，否则登记到名额归还时执行。
+     * task一般只是把任务重新提交到线程池，重新提交的任务需再调用{@link #tryAcquire}
+     *
+     * @return 等待的任务太多时不登记，返回false，调用方应直接按失败处理
+     */
+    public boolean runWhenAvailable(String host, HttpUtil.NetworkState state, Runnable task) {
+        synchronized (mWindows) {
+            Window window = getWindow(host, state);
+            if (window.inFlight >= (int) window.limit) {
+                if (window.waiters.size() >= MAX_WAITERS) {
+                    return false;
+                }
+                window.waiters.add(task);
+                return true;
+            }
+        }
+        task.run();
+        return true;
+    }
+
+    /**
+     * 当前的并发上限
+     */
+    public int getLimit(String host, HttpUtil.NetworkState state) {
+        synchronized (mWindows) {
+            return (int) getWindow(host, state).limit;
+        }
+    }
+
+    /**
+     * 需持有mWindows的锁
+     */
+    private Window getWindow(String host, HttpUtil.NetworkState state) {
+        String key = host + '|' + state;
+        Window window = mWindows.get(key);
+        if (window == null) {
+            // 移动网络从较低的并发开始探测
+            int initial = state == HttpUtil.NetworkState.WIFI ? INITIAL_LIMIT_WIFI
+                    : INITIAL_LIMIT_MOBILE;
+            window = new Window(mMinLimit, mMaxLimit, initial);
+            mWindows.put(key, window);
+            evictIdle();
+        }
+        return window;
+    }
+
+    /**
+     * 窗口数超过上限时淘汰最久没用、没有进行中和等待中请求的窗口，需持有mWindows的锁
+     */
+    private void evictIdle() {
+        Iterator<Map.Entry<String, Window>> it = mWindows.entrySet().iterator();
+        while (mWindows.size() > MAX_WINDOWS && it.hasNext()) {
+            Window window = it.next().getValue();
+            if (window.inFlight == 0 && window.waiters.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 归还名额，取出所有等待的任务在锁外执行，没抢到名额的会重新登记
+     */
+    private void onRelease(Window window, long latencyMs, boolean success, boolean sample) {
+        List<Runnable> waiters;
+        synchronized (mWindows) {
+            window.inFlight--;
+            if (sample) {
+                window.onSample(latencyMs, success);
+            }
+            if (window.waiters.isEmpty()) {
+                return;
+            }
+            waiters = new ArrayList<Runnable>(window.waiters);
+            window.waiters.clear();
+        }
+        for (Runnable waiter : waiters) {
+            waiter.run();
+        }
+    }
+
+    private static class Window {
+        final int minLimit;
+        final int maxLimit;
+        double limit;
+        int inFlight;
+        long baselineMs = Long.MAX_VALUE;
+        final List<Runnable> waiters = new ArrayList<Runnable>(2);
+
+        Window(int minLimit, int maxLimit, int initialLimit) {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        }
+
+        void onSample(long latencyMs, boolean success) {
+            if (!success) {
+                limit = Math.max(minLimit, limit * FAILURE_RATIO);
+                return;
+            }
+            if (latencyMs < baselineMs) {
+                baselineMs = latencyMs;
+            } else {
+                baselineMs += (long) ((latencyMs - baselineMs) * BASELINE_DECAY);
+            }
+            if (latencyMs > baselineMs * LATENCY_TOLERANCE) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            } else if ((int) limit <= inFlight + 1) {
+                // 只有并发数真正用满时才增加上限
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+    }
+
+    /**
+     * 一次下载占用的名额
+     */
+    public static class Permit {
+        private final AdaptiveLimiter mLimiter;
+        private final Window mWindow;
+        private final long mStartTime;
+        private long mFirstByteTime;
+        private boolean mReleased;
+
+        Permit(AdaptiveLimiter limiter, Window window) {
+            mLimiter = limiter;
+            mWindow = window;
+            mStartTime = System.currentTimeMillis();
+        }
+
+        /**
+         * 收到响应头时调用，记录首包时间
+         */
+        public void onResponse() {
+            if (mFirstByteTime == 0) {
+                mFirstByteTime = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * 归还名额，并把本次请求的结果反馈给限流器
+         *
+         * @param success 请求是否成功完成
+         */
+        public void release(boolean success) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            long latency = (mFirstByteTime == 0 ? System.currentTimeMillis() : mFirstByteTime)
+                    - mStartTime;
+            mLimiter.onRelease(mWindow, latency, success, true);
+        }
+
+        /**
+         * 请求被取消时归还名额，不作为样本反馈
+         */
+        public void cancel() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            mLimiter.onRelease(mWindow, 0, false, false);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.lorcan.base.network;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 包装响应体的输入流，记下读到的字节数和读取时抛出的IOException<br>
+ * 解析器会吞掉读流的异常，读完后据此判断响应体是否完整，
+ * 读失败的请求计入熔断器并交给重试策略
+ *
+ * @author lorcan
+ */
+public class BodyInputStream extends FilterInputStream {
+
+    private IOException mError;
+
+    private long mCount;
+
+    public BodyInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        try {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        } catch (IOException e) {
+            throw record(e);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        try {
+            int len = super.read(buffer, offset, count);
+            if (len > 0) {
+                mCount += len;
+            }
+            return len;
+        } catch (IOException e) {
+            throw record(e);
+        }
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        try {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        } catch (IOException e) {
+            throw record(e);
+        }
+    }
+
+    /**
+     * 已经读到（包括跳过）的字节数，读到一半失败时是失败前的部分
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * 读取时抛出的第一个异常，没有失败时为null
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    private IOException record(IOException e) {
+        if (mError == null) {
+            mError = e;
+        }
+        return e;
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.lorcan.base.network;
+
+import java.util.HashMap;
+
+/**
+ * 按host的熔断器<br>
+ * 1 关闭（CLOSED）：正常放行，连续失败达到阈值后打开<br>
+ * 2 打开（OPEN）：直接失败，不再连接，等待一段时间后进入半开<br>
+ * 3 半开（HALF_OPEN）：只放行一个探测请求，成功则关闭，失败则重新打开且等待时间加倍<br>
+ * 挂掉的host不会被十几个线程一起连到超时，其它host的请求也不会被拖慢
+ *
+ * @author lorcan
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * 连续失败多少次后打开
+     */
+    private static final int FAILURE_THRESHOLD = 5;
+
+    private static final long MIN_OPEN_MS = 5000;
+
+    private static final long MAX_OPEN_MS = 60000;
+
+    private static final HashMap<String, CircuitBreaker> sBreakers =
+            new HashMap<String, CircuitBreaker>();
+
+    private final String mHost;
+
+    private State mState = State.CLOSED;
+
+    private int mConsecutiveFailures;
+
+    /**
+     * 最近一次onSuccess清零前的连续失败数，响应体读取失败时恢复
+     */
+    private int mFailuresBeforeSuccess;
+
+    private long mOpenMs = MIN_OPEN_MS;
+
+    private long mOpenedAt;
+
+    private boolean mTrialInFlight;
+
+    private CircuitBreaker(String host) {
+        mHost = host;
+    }
+
+    public static CircuitBreaker forHost(String host) {
+        String key = host == null ? "" : host;
+        synchronized (sBreakers) {
+            CircuitBreaker breaker = sBreakers.get(key);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(key);
+                sBreakers.put(key, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * 网络切换后之前的失败不再有参考意义，全部关闭
+     */
+    static void resetAll() {
+        synchronized (sBreakers) {
+            for (CircuitBreaker breaker : sBreakers.values()) {
+                synchronized (breaker) {
+                    breaker.close();
+                    breaker.mFailuresBeforeSuccess = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * 请求前调用，不允许时应直接失败；允许时请求结束后必须调用
+     * {@link #onSuccess}、{@link #onFailure}或{@link #onIgnored}之一
+     */
+    public synchronized boolean allowRequest() {
+        switch (mState) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - mOpenedAt < mOpenMs) {
+                    return false;
+                }
+                mState = State.HALF_OPEN;
+                mTrialInFlight = true;
+                return true;
+            default:
+                // 半开状态只放行一个探测请求
+                if (mTrialInFlight) {
+                    return false;
+                }
+                mTrialInFlight = true;
+                return true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        mFailuresBeforeSuccess = mConsecutiveFailures;
+        close();
+    }
+
+    /**
+     * 响应头返回时已经按{@link #onSuccess}计为成功，之后读响应体失败时调用：
+     * 撤销那次清零再计一次失败，否则总是读到一半断开的host永远不会熔断
+     */
+    public synchronized void onBodyFailure() {
+        if (mState == State.CLOSED) {
+            mConsecutiveFailures = Math.max(mConsecutiveFailures, mFailuresBeforeSuccess);
+        }
+        onFailure();
+    }
+
+    public synchronized void onFailure() {
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN) {
+            mOpenMs = Math.min(mOpenMs * 2, MAX_OPEN_MS);
+            open();
+        } else if (mState == State.CLOSED && mConsecutiveFailures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    /**
+     * 请求被取消，结果不计入
+     */
+    public synchronized void onIgnored() {
+        if (mState == State.HALF_OPEN) {
+            mTrialInFlight = false;
+        }
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    private void open() {
+        mState = State.OPEN;
+        mOpenedAt = System.currentTimeMillis();
+        mTrialInFlight = false;
+    }
+
+    private void close() {
+        mState = State.CLOSED;
+        mConsecutiveFailures = 0;
+        mOpenMs = MIN_OPEN_MS;
+        mTrialInFlight = false;
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.lorcan.base.network;
+
+import java.io.IOException;
+
+/**
+ * host的熔断器处于打开状态，请求没有发出
+ *
+ * @author lorcan
+ */
+public class CircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String host) {
+        super("circuit open: " + host);
+    }
+}
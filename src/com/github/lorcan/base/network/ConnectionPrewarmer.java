@@ -0,0 +1,145 @@
+package com.github.lorcan.base.network;
+
+import android.content.Context;
+
+import com.github.lorcan.base.utils.LogUtil;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.params.HttpConnectionParams;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 连接预热：启动和网络切换后，对声明的host提前解析DNS，并用一个HEAD请求建好连接
+ * （包括TLS握手）放回共享连接池，首个正式请求省掉DNS、TCP和TLS的往返<br>
+ * 预热在自己的线程上执行，不占任务通道；HEAD使用较短的超时，失败不影响正式请求
+ *
+ * @author lorcan
+ */
+public class ConnectionPrewarmer implements INetworkChangeListener {
+
+    private static final String TAG = "ConnectionPrewarmer";
+
+    /**
+     * 建连、等待连接池和等待响应的超时，预热只为建好连接，慢的host不值得久等
+     */
+    private static final int PREWARM_TIMEOUT_MS = 5000;
+
+    private static ConnectionPrewarmer instance;
+
+    private final Context mContext;
+
+    /**
+     * 预热的url和使用的连接池
+     */
+    private final LinkedHashMap<String, HttpUtil.ClientType> mTargets =
+            new LinkedHashMap<String, HttpUtil.ClientType>();
+
+    private boolean mRunning;
+
+    private ConnectionPrewarmer(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * 第一次调用时开始监听网络变化
+     */
+    public static synchronized ConnectionPrewarmer getInstance(Context context) {
+        if (instance == null) {
+            instance = new ConnectionPrewarmer(context.getApplicationContext());
+            NetworkMonitor.getInstance(context).addListener(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * 声明需要预热的host，之后网络切换时自动预热，启动时声明完调用{@link #prewarm()}
+     *
+     * @param url  该host上的任意url，一般用根路径，预热时对它发HEAD请求
+     * @param type 正式请求使用的连接池，连接要放进同一个池才能被复用
+     */
+    public ConnectionPrewarmer addHost(String url, HttpUtil.ClientType type) {
+        synchronized (mTargets) {
+            mTargets.put(url, type);
+        }
+        return this;
+    }
+
+    /**
+     * 在后台预热所有声明过的host，正在预热时忽略
+     */
+    public void prewarm() {
+        synchronized (mTargets) {
+            if (mRunning || mTargets.isEmpty()) {
+                return;
+            }
+            mRunning = true;
+        }
+        // 阻塞的DNS和HEAD不放在单线程的BACKGROUND通道，避免挡住其它后台任务
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runPrewarm();
+                } finally {
+                    synchronized (mTargets) {
+                        mRunning = false;
+                    }
+                }
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void onNetworkChanged(HttpUtil.NetworkState state, boolean metered) {
+        if (state != HttpUtil.NetworkState.NOTHING) {
+            prewarm();
+        }
+    }
+
+    private void runPrewarm() {
+        List<Map.Entry<String, HttpUtil.ClientType>> targets;
+        synchronized (mTargets) {
+            targets = new ArrayList<Map.Entry<String, HttpUtil.ClientType>>(mTargets.entrySet());
+        }
+        // 先把所有域名解析好，再逐个建连
+        for (Map.Entry<String, HttpUtil.ClientType> target : targets) {
+            DnsCache.getInstance().prefetch(URI.create(target.getKey()).getHost());
+        }
+        for (Map.Entry<String, HttpUtil.ClientType> target : targets) {
+            connect(target.getKey(), target.getValue());
+        }
+    }
+
+    private void connect(String url, HttpUtil.ClientType type) {
+        HttpHead request = null;
+        HttpResponse response = null;
+        long start = System.currentTimeMillis();
+        try {
+            HttpClient client = HttpUtil.getHttpClient(mContext, type);
+            request = new HttpHead(url);
+            HttpConnectionParams.setConnectionTimeout(request.getParams(), PREWARM_TIMEOUT_MS);
+            HttpConnectionParams.setSoTimeout(request.getParams(), PREWARM_TIMEOUT_MS);
+            ConnManagerParams.setTimeout(request.getParams(), PREWARM_TIMEOUT_MS);
+            response = HttpUtil.execute(client, request);
+            LogUtil.d(TAG, "prewarmed %s in %dms, status %d", url,
+                    System.currentTimeMillis() - start, response.getStatusLine().getStatusCode());
+        } catch (IOException e) {
+            LogUtil.w(TAG, "prewarm " + url + ": " + e);
+        } finally {
+            // HEAD的响应没有实体，连接已经以keep-alive状态放回池中
+            HttpUtil.releaseConnection(request, response);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.lorcan.base.network;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * 统计请求体写出的字节数<br>
+ * 1 按进度回调，两次回调之间至少间隔1%且200毫秒，快速上传时也不会刷爆UI线程，写完时必定回调一次<br>
+ * 2 每次写出前检查是否已abort，取消上传不用等整个请求体写完<br>
+ * 3 可限制上传速率，避免大文件上传占满移动网络的上行带宽
+ *
+ * @author lorcan
+ */
+public class CountingEntity extends HttpEntityWrapper {
+
+    private static final long PROGRESS_INTERVAL_MS = 200;
+
+    private final long mBaseOffset;
+
+    private final long mTotal;
+
+    private final IProgressListener mCallback;
+
+    private final AbortHandle mAbortHandle;
+
+    private long mMaxBytesPerSecond;
+
+    /**
+     * @param wrapped     the entity
+     * @param baseOffset  分片上传时之前已上传的字节数，进度从这里开始计算
+     * @param total       总字节数
+     * @param callback    进度回调，在写请求体的线程调用，可为null
+     * @param abortHandle 可为null
+     */
+    public CountingEntity(HttpEntity wrapped, long baseOffset, long total, IProgressListener callback,
+                          AbortHandle abortHandle) {
+        super(wrapped);
+        mBaseOffset = baseOffset;
+        mTotal = total;
+        mCallback = callback;
+        mAbortHandle = abortHandle;
+    }
+
+    /**
+     * 限制上传速率，0为不限制
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        mMaxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        CountingOutputStream counting = new CountingOutputStream(out);
+        wrappedEntity.writeTo(counting);
+        counting.report(true);
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+        private final long mStartTime = System.currentTimeMillis();
+        private long mWritten;
+        private long mLastReported = -1;
+        private long mLastReportTime;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            beforeWrite(1);
+            out.write(b);
+            afterWrite(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            beforeWrite(len);
+            out.write(b, off, len);
+            afterWrite(len);
+        }
+
+        private void beforeWrite(int len) throws IOException {
+            if (mAbortHandle != null) {
+                mAbortHandle.checkAborted();
+            }
+            if (mMaxBytesPerSecond <= 0) {
+                return;
+            }
+            // 按已写出的字节数计算应到的时间，超前了就等一等
+            long expected = (mWritten + len) * 1000 / mMaxBytesPerSecond;
+            long elapsed = System.currentTimeMillis() - mStartTime;
+            if (expected > elapsed) {
+                try {
+                    Thread.sleep(expected - elapsed);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while throttling");
+                }
+            }
+        }
+
+        private void afterWrite(int len) {
+            mWritten += len;
+            report(false);
+        }
+
+        void report(boolean force) {
+            if (mCallback == null || mWritten == mLastReported) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long step = mTotal > 0 ? mTotal / 100 : 0;
+            boolean stepReached = step <= 0 || mWritten - mLastReported >= step;
+            if (force || (stepReached && now - mLastReportTime >= PROGRESS_INTERVAL_MS)) {
+                mLastReported = mWritten;
+                mLastReportTime = now;
+                mCallback.onProgress(mBaseOffset + mWritten, mTotal);
+            }
+        }
+    }
+}
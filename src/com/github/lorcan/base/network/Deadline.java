@@ -0,0 +1,51 @@
+package com.github.lorcan.base.network;
+
+/**
+ * 请求的截止时间，从取连接、建连、读响应到解析共用一个时间预算<br>
+ * 设置到{@link AbortHandle}上后，登记的请求的各项超时都不超过剩余时间，
+ * 到期时整个AbortHandle被abort，阻塞中的线程立刻返回
+ *
+ * @author lorcan
+ */
+public final class Deadline {
+
+    private final long mExpiresAtNanos;
+
+    private Deadline(long expiresAtNanos) {
+        mExpiresAtNanos = expiresAtNanos;
+    }
+
+    /**
+     * 从现在起timeoutMs毫秒后到期
+     */
+    public static Deadline after(long timeoutMs) {
+        return new Deadline(System.nanoTime() + timeoutMs * 1000000L);
+    }
+
+    /**
+     * 剩余毫秒数，已到期时返回0
+     */
+    public long remaining() {
+        long remain = (mExpiresAtNanos - System.nanoTime()) / 1000000L;
+        return remain > 0 ? remain : 0;
+    }
+
+    public boolean isExpired() {
+        return mExpiresAtNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * 两个截止时间中较早的一个
+     */
+    public Deadline min(Deadline other) {
+        if (other == null || mExpiresAtNanos - other.mExpiresAtNanos <= 0) {
+            return this;
+        }
+        return other;
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{remaining=" + remaining() + "ms}";
+    }
+}
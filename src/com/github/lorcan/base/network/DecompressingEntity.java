@@ -0,0 +1,105 @@
+package com.github.lorcan.base.network;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 对gzip/deflate压缩的响应体做透明解压，边读边解压，不会把整个响应读入内存
+ *
+ * @author lorcan
+ */
+public class DecompressingEntity extends HttpEntityWrapper {
+
+    public static final String ENCODING_GZIP = "gzip";
+
+    public static final String ENCODING_DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final String mEncoding;
+
+    private InputStream mContent;
+
+    public DecompressingEntity(HttpEntity wrapped, String encoding) {
+        super(wrapped);
+        this.mEncoding = encoding;
+    }
+
+    /**
+     * 是否支持该Content-Encoding
+     */
+    public static boolean isSupported(String encoding) {
+        return ENCODING_GZIP.equalsIgnoreCase(encoding)
+                || ENCODING_DEFLATE.equalsIgnoreCase(encoding);
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        // 与被包装的entity保持一致，非repeatable时只能取一次流
+        if (wrappedEntity.isStreaming()) {
+            if (mContent == null) {
+                mContent = decorate(wrappedEntity.getContent());
+            }
+            return mContent;
+        }
+        return decorate(wrappedEntity.getContent());
+    }
+
+    private InputStream decorate(InputStream in) throws IOException {
+        if (in == null) {
+            return null;
+        }
+        if (ENCODING_GZIP.equalsIgnoreCase(mEncoding)) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        // 部分服务器的deflate不带zlib头，先探测头部再决定是否nowrap
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] head = new byte[2];
+        int n = pushback.read(head);
+        if (n <= 0) {
+            return pushback;
+        }
+        pushback.unread(head, 0, n);
+        boolean zlibWrapped = n == 2 && (head[0] & 0x0f) == 8
+                && (((head[0] & 0xff) << 8) | (head[1] & 0xff)) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlibWrapped), BUFFER_SIZE);
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        // 已解压，对外不再暴露压缩编码
+        return null;
+    }
+
+    @Override
+    public long getContentLength() {
+        // 解压后的长度未知
+        return -1;
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        InputStream in = getContent();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                outstream.write(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
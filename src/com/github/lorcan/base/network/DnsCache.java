@@ -0,0 +1,97 @@
+package com.github.lorcan.base.network;
+
+import com.github.lorcan.base.utils.LogUtil;
+
+import org.apache.http.conn.scheme.HostNameResolver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+
+/**
+ * 进程内的DNS缓存，作为HttpClient的{@link HostNameResolver}使用<br>
+ * 1 解析结果缓存TTL_MS，预热时提前解析，首个请求不用再等DNS<br>
+ * 2 过期后重新解析失败时，在STALE_MS内继续使用旧结果<br>
+ * 3 网络切换后DNS服务器和解析结果都可能不同，全部清空
+ *
+ * @author lorcan
+ */
+public class DnsCache implements HostNameResolver {
+
+    private static final String TAG = "DnsCache";
+
+    private static final long TTL_MS = 5 * 60 * 1000;
+
+    private static final long STALE_MS = 60 * 60 * 1000;
+
+    private static final DnsCache sInstance = new DnsCache();
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    private DnsCache() {
+    }
+
+    public static DnsCache getInstance() {
+        return sInstance;
+    }
+
+    @Override
+    public InetAddress resolve(String hostname) throws IOException {
+        Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(hostname);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null && now < entry.expiresAt) {
+            return entry.address;
+        }
+        try {
+            return lookup(hostname);
+        } catch (UnknownHostException e) {
+            if (entry != null && now < entry.expiresAt - TTL_MS + STALE_MS) {
+                LogUtil.w(TAG, "use stale address for " + hostname + ": " + e);
+                return entry.address;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 提前解析，一般在后台线程调用
+     */
+    public void prefetch(String hostname) {
+        try {
+            lookup(hostname);
+        } catch (UnknownHostException e) {
+            LogUtil.w(TAG, "prefetch " + hostname + ": " + e);
+        }
+    }
+
+    /**
+     * 清空缓存，网络变化时调用
+     */
+    public void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    private InetAddress lookup(String hostname) throws UnknownHostException {
+        InetAddress address = InetAddress.getByName(hostname);
+        synchronized (mEntries) {
+            mEntries.put(hostname, new Entry(address, System.currentTimeMillis() + TTL_MS));
+        }
+        return address;
+    }
+
+    private static class Entry {
+        final InetAddress address;
+        final long expiresAt;
+
+        Entry(InetAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
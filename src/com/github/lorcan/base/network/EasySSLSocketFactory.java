@@ -1,5 +1,6 @@
 package com.github.lorcan.base.network;
 
+import org.apache.http.conn.scheme.HostNameResolver;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 
 import java.io.IOException;
@@ -19,7 +20,16 @@ public class EasySSLSocketFactory extends SSLSocketFactory {
 
     public EasySSLSocketFactory(KeyStore truststore) throws NoSuchAlgorithmException, KeyManagementException,
             KeyStoreException, UnrecoverableKeyException {
-        super(truststore);
+        this(truststore, null);
+    }
+
+    /**
+     * @param nameResolver 建连时用来解析域名，为null时使用系统解析
+     */
+    public EasySSLSocketFactory(KeyStore truststore, HostNameResolver nameResolver)
+            throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException,
+            UnrecoverableKeyException {
+        super(TLS, null, null, truststore, null, nameResolver);
         try {
             Cur_SSL_Context = SSLContext.getInstance("TLS");
         } catch (Exception e) {
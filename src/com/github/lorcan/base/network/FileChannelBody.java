@@ -0,0 +1,199 @@
+package com.github.lorcan.base.network;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 通过FileChannel流式读取文件的一段作为上传内容，不把文件读入内存，
+ * 可用于MultipartEntity的文件part，也可通过{@link #asEntity()}作为分片上传的请求体
+ *
+ * @author lorcan
+ */
+public class FileChannelBody extends AbstractContentBody {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final File mFile;
+
+    private final long mOffset;
+
+    private final long mLength;
+
+    private final String mFilename;
+
+    public FileChannelBody(File file, String mimeType) {
+        this(file, 0, file.length(), mimeType);
+    }
+
+    /**
+     * @param file     the file
+     * @param offset   起始位置
+     * @param length   长度
+     * @param mimeType the mime type
+     */
+    public FileChannelBody(File file, long offset, long length, String mimeType) {
+        super(mimeType);
+        mFile = file;
+        mOffset = offset;
+        mLength = length;
+        mFilename = file.getName();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(1, mLength)));
+            long position = mOffset;
+            long end = mOffset + mLength;
+            while (position < end) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) {
+                    buffer.limit((int) (end - position));
+                }
+                int len = channel.read(buffer, position);
+                if (len < 0) {
+                    throw new IOException("file truncated at " + position);
+                }
+                out.write(buffer.array(), 0, len);
+                position += len;
+            }
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String getFilename() {
+        return mFilename;
+    }
+
+    @Override
+    public String getCharset() {
+        return null;
+    }
+
+    @Override
+    public String getTransferEncoding() {
+        return MIME.ENC_BINARY;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mLength;
+    }
+
+    /**
+     * 打开这一段内容的输入流，用完需要close。上传时走{@link #writeTo}，这里供需要读内容的调用方使用
+     */
+    public InputStream openStream() throws IOException {
+        return new RangeInputStream(new FileInputStream(mFile), mOffset, mOffset + mLength);
+    }
+
+    /**
+     * 作为单独的请求体，用于分片上传，不可自动重发
+     */
+    public AbstractHttpEntity asEntity() {
+        AbstractHttpEntity entity = new AbstractHttpEntity() {
+            @Override
+            public boolean isRepeatable() {
+                // 服务端可能已经收到了一部分，不能让HttpClient自动重发，由分片协议查询后续传
+                return false;
+            }
+
+            @Override
+            public long getContentLength() {
+                return mLength;
+            }
+
+            @Override
+            public InputStream getContent() throws IOException {
+                return openStream();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                FileChannelBody.this.writeTo(out);
+            }
+
+            @Override
+            public boolean isStreaming() {
+                return false;
+            }
+        };
+        entity.setContentType(getMimeType());
+        return entity;
+    }
+
+    /**
+     * 按位置读取文件[position, end)的输入流，不移动共享的文件指针
+     */
+    private static class RangeInputStream extends InputStream {
+
+        private final FileInputStream mIn;
+
+        private final FileChannel mChannel;
+
+        private long mPosition;
+
+        private final long mEnd;
+
+        RangeInputStream(FileInputStream in, long start, long end) {
+            mIn = in;
+            mChannel = in.getChannel();
+            mPosition = start;
+            mEnd = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (mPosition >= mEnd) {
+                return -1;
+            }
+            int n = (int) Math.min(len, mEnd - mPosition);
+            int read = mChannel.read(ByteBuffer.wrap(b, off, n), mPosition);
+            if (read < 0) {
+                throw new IOException("file truncated at " + mPosition);
+            }
+            mPosition += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, mEnd - mPosition));
+            mPosition += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mEnd - mPosition);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -0,0 +1,825 @@
+package com.github.lorcan.base.network;
+
+import android.content.Context;
+
+import com.github.lorcan.base.utils.LogUtil;
+import com.github.lorcan.base.utils.Metrics;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 下载文件到本地，支持断点续传<br>
+ * 1 下载中的数据写到"文件名.part"，服务端的校验值（ETag/Last-Modified）和总长度写到"文件名.meta"<br>
+ * 2 再次下载时带上Range和If-Range，服务端返回206则接着写，返回200说明文件已变化，从头下载<br>
+ * 3 下载完成后校验长度，一致才改名为目标文件，不会留下不完整的缓存文件<br>
+ * 4 大文件可以分段并行下载，见{@link #download(String, File, int, AbortHandle)}<br>
+ * 5 同一目标文件的下载按路径串行，等待期间前一个下载了同一url时直接用它的结果，
+ * 不会两个线程同时写一个.part文件；进程被杀留下的.part/.meta由{@link #deleteStaleParts}清理
+ *
+ * @author lorcan
+ */
+public class FileDownloader {
+
+    private static final String TAG = "FileDownloader";
+
+    public static final String PART_SUFFIX = ".part";
+
+    public static final String META_SUFFIX = ".meta";
+
+    private static final String META_ETAG = "etag";
+
+    private static final String META_LAST_MODIFIED = "lastModified";
+
+    private static final String META_LENGTH = "length";
+
+    /**
+     * 同一次下载中，有进展时连接断开最多接着续传的次数
+     */
+    private static final int MAX_RESUME_ATTEMPTS = 3;
+
+    private static final int FAILED = -1;
+
+    /**
+     * 每段最小长度，文件小于两段时不分段
+     */
+    private static final long MIN_SEGMENT_SIZE = 256 * 1024;
+
+    private static final int SEGMENT_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * 等待同一目标的下载时，每隔这么久检查一次是否被abort
+     */
+    private static final long LOCK_POLL_MS = 200;
+
+    /**
+     * 按目标文件绝对路径的锁，没有下载在用时移除
+     */
+    private static final HashMap<String, TargetLock> sTargetLocks =
+            new HashMap<String, TargetLock>();
+
+    /**
+     * 实际写入本地的字节数，包括中途失败的部分
+     */
+    private static final Metrics.Counter sBytesDownloaded = Metrics.counter("download.bytes");
+
+    private final Context mContext;
+
+    private final AdaptiveLimiter mLimiter;
+
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+
+    /**
+     * @param context the context
+     * @param limiter 并发控制，可为null
+     */
+    public FileDownloader(Context context, AdaptiveLimiter limiter) {
+        mContext = context;
+        mLimiter = limiter;
+    }
+
+    /**
+     * 失败重试策略，默认{@link RetryPolicy#DEFAULT}
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy == null ? RetryPolicy.NONE : retryPolicy;
+    }
+
+    /**
+     * 下载url到target，中断后保留已下载部分，下次调用时续传
+     *
+     * @param url         the url
+     * @param target      目标文件
+     * @param abortHandle 取消时abort，可为null
+     * @return 是否下载完成
+     * @throws PermitUnavailableException 限流器没有空闲名额，不重试，由调用方重新排队
+     */
+    public boolean download(String url, File target, AbortHandle abortHandle) throws IOException {
+        boolean[] joined = new boolean[1];
+        TargetLock lock = lockTarget(url, target, abortHandle, joined);
+        try {
+            return joined[0] || lock.onResult(url, downloadLocked(url, target, abortHandle));
+        } finally {
+            unlockTarget(target, lock);
+        }
+    }
+
+    private boolean downloadLocked(String url, File target, AbortHandle abortHandle)
+            throws IOException {
+        String host = URI.create(url).getHost();
+        RetryBudget.onRequest(host);
+        int resumes = 0;
+        for (int attempt = 1; ; attempt++) {
+            File part = new File(target.getPath() + PART_SUFFIX);
+            long before = part.length();
+            long delay;
+            try {
+                int status = downloadOnce(url, target, abortHandle);
+                if (status == HttpStatus.SC_OK) {
+                    return true;
+                }
+                if (!mRetryPolicy.shouldRetry(attempt, "GET", host, status)) {
+                    return false;
+                }
+                delay = mRetryPolicy.getDelay(attempt, null);
+            } catch (PermitUnavailableException e) {
+                throw e;
+            } catch (IOException e) {
+                if (abortHandle != null && abortHandle.isAborted()) {
+                    throw e;
+                }
+                if (part.length() > before && ++resumes <= MAX_RESUME_ATTEMPTS) {
+                    // 有进展就马上接着续传，不算一次失败
+                    LogUtil.w(TAG, "resume " + url + " from " + part.length() + ": " + e);
+                    attempt--;
+                    continue;
+                }
+                if (!mRetryPolicy.shouldRetry(attempt, "GET", host, e)) {
+                    throw e;
+                }
+                delay = mRetryPolicy.getDelay(attempt, null);
+            }
+            LogUtil.w(TAG, "retry " + url + " in " + delay + "ms, attempt " + attempt);
+            RetryPolicy.sleep(delay, abortHandle);
+        }
+    }
+
+    /**
+     * 分段并行下载：先用Range: bytes=0-0探测总长度，再把文件分成segments段，
+     * 各段在共享线程池上并行请求，按位置直接写入.part文件<br>
+     * 整个分段下载（探测和各段）只占限流器的一个名额，不会因为段多挤占其它下载；
+     * 该host的并发窗口小于段数时链路撑不起这么多连接，按窗口减少段数<br>
+     * 服务端不支持Range、没有强校验值、文件太小或已有未完成的续传文件时，退回单连接下载
+     *
+     * @param url         the url
+     * @param target      目标文件
+     * @param segments    分段数，不大于1时等同于{@link #download(String, File, AbortHandle)}
+     * @param abortHandle 取消时abort，可为null
+     * @return 是否下载完成
+     * @throws PermitUnavailableException 限流器没有空闲名额，不重试，由调用方重新排队
+     */
+    public boolean download(String url, File target, int segments, AbortHandle abortHandle)
+            throws IOException {
+        boolean[] joined = new boolean[1];
+        TargetLock lock = lockTarget(url, target, abortHandle, joined);
+        try {
+            return joined[0] || lock.onResult(url,
+                    downloadLocked(url, target, segments, abortHandle));
+        } finally {
+            unlockTarget(target, lock);
+        }
+    }
+
+    private boolean downloadLocked(String url, File target, int segments,
+                                   AbortHandle abortHandle) throws IOException {
+        File part = new File(target.getPath() + PART_SUFFIX);
+        String host = URI.create(url).getHost();
+        if (segments > 1 && mLimiter != null) {
+            segments = Math.min(segments, mLimiter.getLimit(host, getNetworkState()));
+        }
+        if (segments <= 1 || part.exists()) {
+            return downloadLocked(url, target, abortHandle);
+        }
+        AdaptiveLimiter.Permit permit = acquirePermit(host);
+        boolean linkFailed = false;
+        try {
+            Probe probe = probe(url, abortHandle, permit);
+            if (probe != null && probe.length >= MIN_SEGMENT_SIZE * 2) {
+                segments = (int) Math.min(segments, probe.length / MIN_SEGMENT_SIZE);
+                return downloadSegments(url, target, probe, segments, abortHandle, permit);
+            }
+        } catch (IOException e) {
+            if (abortHandle != null && abortHandle.isAborted()) {
+                throw e;
+            }
+            linkFailed = true;
+            LogUtil.w(TAG, "segmented download failed, fallback: " + e);
+        } finally {
+            releasePermit(permit, abortHandle, linkFailed);
+        }
+        // 不能分段或分段失败时退回单连接下载，由重试策略处理，名额由它重新申请
+        return downloadLocked(url, target, abortHandle);
+    }
+
+    /**
+     * 删除dir下超过maxAgeMs没有更新的.part/.meta文件。下载中断后不再请求的目标，
+     * 这两个文件既不会被续传也不会被删除；正在下载的目标跳过
+     *
+     * @return 删除的文件数
+     */
+    public static int deleteStaleParts(File dir, long maxAgeMs) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        for (File file : files) {
+            String path = file.getAbsolutePath();
+            String targetPath;
+            if (path.endsWith(PART_SUFFIX)) {
+                targetPath = path.substring(0, path.length() - PART_SUFFIX.length());
+            } else if (path.endsWith(META_SUFFIX)) {
+                targetPath = path.substring(0, path.length() - META_SUFFIX.length());
+            } else {
+                continue;
+            }
+            // 两个文件按较新的一个判断，不会只删掉其中一个
+            long lastModified = Math.max(new File(targetPath + PART_SUFFIX).lastModified(),
+                    new File(targetPath + META_SUFFIX).lastModified());
+            if (now - lastModified < maxAgeMs) {
+                continue;
+            }
+            synchronized (sTargetLocks) {
+                if (!sTargetLocks.containsKey(targetPath) && file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * 取得目标文件的锁，等待期间前一个下载完成了同一url时joined[0]为true
+     */
+    private static TargetLock lockTarget(String url, File target, AbortHandle abortHandle,
+                                         boolean[] joined) throws IOException {
+        String key = target.getAbsolutePath();
+        TargetLock lock;
+        int completions;
+        synchronized (sTargetLocks) {
+            lock = sTargetLocks.get(key);
+            if (lock == null) {
+                lock = new TargetLock();
+                sTargetLocks.put(key, lock);
+            }
+            lock.users++;
+            completions = lock.completions;
+        }
+        boolean locked = false;
+        try {
+            while (!lock.lock.tryLock(LOCK_POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (abortHandle != null) {
+                    abortHandle.checkAborted();
+                }
+            }
+            locked = true;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for " + key);
+        } finally {
+            if (!locked) {
+                releaseUser(key, lock);
+            }
+        }
+        synchronized (sTargetLocks) {
+            joined[0] = lock.completions != completions && url.equals(lock.completedUrl)
+                    && target.exists();
+        }
+        return lock;
+    }
+
+    private static void unlockTarget(File target, TargetLock lock) {
+        lock.lock.unlock();
+        releaseUser(target.getAbsolutePath(), lock);
+    }
+
+    private static void releaseUser(String key, TargetLock lock) {
+        synchronized (sTargetLocks) {
+            if (--lock.users == 0) {
+                sTargetLocks.remove(key);
+            }
+        }
+    }
+
+    /**
+     * 探测总长度和校验值，不支持Range时返回null
+     */
+    private Probe probe(String url, AbortHandle abortHandle, AdaptiveLimiter.Permit permit)
+            throws IOException {
+        HttpClient client = HttpUtil.getHttpClient(mContext, HttpUtil.ClientType.IMAGE);
+        HttpGet request = HttpUtil.createGetRequest(url, null);
+        request.setHeader(HttpUtil.HEADER_ACCEPT_ENCODING, "identity");
+        request.setHeader("Range", "bytes=0-0");
+        if (abortHandle != null) {
+            abortHandle.register(request);
+        }
+        HttpResponse response = null;
+        try {
+            response = HttpUtil.execute(client, request);
+            if (permit != null) {
+                permit.onResponse();
+            }
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+                // 服务端忽略了Range，不读完整个响应体，直接断开
+                request.abort();
+                response = null;
+                return null;
+            }
+            long[] range = parseContentRange(response.getFirstHeader("Content-Range"));
+            String validator = getValidator(response);
+            if (range == null || range[2] <= 0 || validator == null) {
+                return null;
+            }
+            return new Probe(range[2], validator);
+        } finally {
+            if (abortHandle != null) {
+                abortHandle.unregister(request);
+            }
+            HttpUtil.releaseConnection(request, response);
+        }
+    }
+
+    private boolean downloadSegments(String url, File target, Probe probe, int segments,
+                                     AbortHandle abortHandle, AdaptiveLimiter.Permit permit)
+            throws IOException {
+        ensureParentDir(target);
+        File part = new File(target.getPath() + PART_SUFFIX);
+        File metaFile = new File(target.getPath() + META_SUFFIX);
+        RandomAccessFile file = new RandomAccessFile(part, "rw");
+        // 一段失败时abort其它段
+        AbortHandle group = new AbortHandle();
+        boolean completed = false;
+        try {
+            file.setLength(probe.length);
+            FileChannel channel = file.getChannel();
+            long segmentSize = probe.length / segments;
+            Segment[] tasks = new Segment[segments];
+            for (int i = 0; i < segments; i++) {
+                long start = i * segmentSize;
+                long end = i == segments - 1 ? probe.length - 1 : start + segmentSize - 1;
+                tasks[i] = new Segment(url, probe.validator, start, end, channel, abortHandle,
+                        group, permit);
+            }
+            for (int i = 1; i < segments; i++) {
+                TaskRuntime.executor().execute(tasks[i].future, TaskPriority.SEGMENT);
+            }
+            // 第一段在当前线程下载，之后还没开始执行的段也由当前线程接着下载，
+            // 线程池排满时不会互相等待
+            IOException error = tasks[0].runQuietly();
+            for (int i = 1; i < segments; i++) {
+                IOException e = tasks[i].await();
+                if (error == null) {
+                    error = e;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            completed = true;
+        } finally {
+            file.close();
+            if (!completed) {
+                discard(part, metaFile);
+            }
+        }
+        return commit(part, metaFile, target);
+    }
+
+    /**
+     * 下载一次
+     *
+     * @return 完成时返回200，http错误时返回状态码，其它失败返回-1
+     */
+    private int downloadOnce(String url, File target, AbortHandle abortHandle)
+            throws IOException {
+        // 调用方只计算目录路径，目录在这里（工作线程）创建
+        ensureParentDir(target);
+        File part = new File(target.getPath() + PART_SUFFIX);
+        File metaFile = new File(target.getPath() + META_SUFFIX);
+        Properties meta = readMeta(metaFile);
+        long offset = part.exists() && meta != null ? part.length() : 0;
+        if (offset == 0) {
+            part.delete();
+            metaFile.delete();
+            meta = null;
+        }
+
+        HttpClient client = HttpUtil.getHttpClient(mContext, HttpUtil.ClientType.IMAGE);
+        HttpGet request = HttpUtil.createGetRequest(url, null);
+        // 字节范围针对未压缩的实体，不能让服务端gzip
+        request.setHeader(HttpUtil.HEADER_ACCEPT_ENCODING, "identity");
+        if (offset > 0) {
+            request.setHeader("Range", "bytes=" + offset + "-");
+            String validator = meta.getProperty(META_ETAG, meta.getProperty(META_LAST_MODIFIED));
+            request.setHeader("If-Range", validator);
+        }
+
+        AdaptiveLimiter.Permit permit = acquirePermit(request.getURI().getHost());
+        if (abortHandle != null) {
+            abortHandle.register(request);
+        }
+        HttpResponse response = null;
+        boolean linkFailed = false;
+        try {
+            response = HttpUtil.execute(client, request);
+            if (permit != null) {
+                permit.onResponse();
+            }
+            int statusCode = response.getStatusLine().getStatusCode();
+            boolean append;
+            long total;
+            if (statusCode == HttpStatus.SC_PARTIAL_CONTENT && offset > 0) {
+                long[] range = parseContentRange(response.getFirstHeader("Content-Range"));
+                if (range == null || range[0] != offset) {
+                    // 服务端返回的范围和本地不一致，丢弃重来
+                    discard(part, metaFile);
+                    return FAILED;
+                }
+                append = true;
+                total = range[2];
+            } else if (statusCode == HttpStatus.SC_OK) {
+                append = false;
+                total = response.getEntity() == null ? -1 : response.getEntity().getContentLength();
+                writeMeta(metaFile, response, total);
+            } else if (statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && offset > 0) {
+                // 可能上次已经下载完整，只是没来得及改名
+                long length = Long.parseLong(meta.getProperty(META_LENGTH, "-1"));
+                if (length == offset) {
+                    return commit(part, metaFile, target) ? HttpStatus.SC_OK : FAILED;
+                }
+                discard(part, metaFile);
+                return FAILED;
+            } else {
+                LogUtil.w(TAG, "Error " + statusCode + " while downloading " + url);
+                return statusCode;
+            }
+
+            HttpEntity entity = response.getEntity();
+            InputStream in = entity == null ? null : entity.getContent();
+            if (in == null) {
+                return FAILED;
+            }
+            OutputStream out = new FileOutputStream(part, append);
+            long start = append ? offset : 0;
+            try {
+                AbortHandle.copy(in, out, abortHandle);
+            } finally {
+                sBytesDownloaded.add(part.length() - start);
+                out.close();
+                in.close();
+            }
+            if (total >= 0 && part.length() != total) {
+                LogUtil.w(TAG, "length mismatch " + part.length() + "/" + total + " " + url);
+                discard(part, metaFile);
+                return FAILED;
+            }
+            return commit(part, metaFile, target) ? HttpStatus.SC_OK : FAILED;
+        } catch (IOException e) {
+            linkFailed = true;
+            if (!metaFile.exists()) {
+                // 没有校验值无法安全续传
+                part.delete();
+            }
+            throw e;
+        } finally {
+            if (abortHandle != null) {
+                abortHandle.unregister(request);
+            }
+            HttpUtil.releaseConnection(request, response);
+            releasePermit(permit, abortHandle, linkFailed);
+        }
+    }
+
+    /**
+     * 不等待，没有空闲名额时抛出PermitUnavailableException
+     */
+    private AdaptiveLimiter.Permit acquirePermit(String host) throws PermitUnavailableException {
+        if (mLimiter == null) {
+            return null;
+        }
+        HttpUtil.NetworkState state = getNetworkState();
+        AdaptiveLimiter.Permit permit = mLimiter.tryAcquire(host, state);
+        if (permit == null) {
+            throw new PermitUnavailableException(host, state);
+        }
+        return permit;
+    }
+
+    private HttpUtil.NetworkState getNetworkState() {
+        return NetworkMonitor.getInstance(mContext).getNetworkState();
+    }
+
+    private static void releasePermit(AdaptiveLimiter.Permit permit, AbortHandle abortHandle,
+                                      boolean linkFailed) {
+        if (permit == null) {
+            return;
+        }
+        if (abortHandle != null && abortHandle.isAborted()) {
+            permit.cancel();
+        } else {
+            // http错误码不代表链路有问题，只有io失败才让限流器降并发
+            permit.release(!linkFailed);
+        }
+    }
+
+    /**
+     * 解析Content-Range: bytes start-end/total
+     *
+     * @return {start, end, total}，total未知时为-1，格式不对返回null
+     */
+    static long[] parseContentRange(Header header) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.getValue().trim();
+        if (!value.startsWith("bytes ")) {
+            return null;
+        }
+        try {
+            int dash = value.indexOf('-');
+            int slash = value.indexOf('/');
+            long start = Long.parseLong(value.substring(6, dash).trim());
+            long end = Long.parseLong(value.substring(dash + 1, slash).trim());
+            String totalStr = value.substring(slash + 1).trim();
+            long total = "*".equals(totalStr) ? -1 : Long.parseLong(totalStr);
+            return new long[]{start, end, total};
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean commit(File part, File metaFile, File target) {
+        if (target.exists()) {
+            target.delete();
+        }
+        boolean renamed = part.renameTo(target);
+        metaFile.delete();
+        return renamed;
+    }
+
+    private static void discard(File part, File metaFile) {
+        part.delete();
+        metaFile.delete();
+    }
+
+    private static Properties readMeta(File metaFile) {
+        if (!metaFile.exists()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(metaFile);
+            Properties meta = new Properties();
+            meta.load(in);
+            if (meta.getProperty(META_ETAG) == null && meta.getProperty(META_LAST_MODIFIED) == null) {
+                return null;
+            }
+            return meta;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    LogUtil.w(TAG, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void ensureParentDir(File file) {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+    }
+
+    /**
+     * 记录校验值，没有强校验值（弱ETag不能用于If-Range）时不记录，中断后从头下载
+     */
+    private static void writeMeta(File metaFile, HttpResponse response, long total)
+            throws IOException {
+        Header etag = response.getFirstHeader("ETag");
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        Properties meta = new Properties();
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            meta.setProperty(META_ETAG, etag.getValue());
+        }
+        if (lastModified != null) {
+            meta.setProperty(META_LAST_MODIFIED, lastModified.getValue());
+        }
+        if (meta.isEmpty()) {
+            metaFile.delete();
+            return;
+        }
+        meta.setProperty(META_LENGTH, String.valueOf(total));
+        ensureParentDir(metaFile);
+        OutputStream out = new FileOutputStream(metaFile);
+        try {
+            meta.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 取可用于If-Range的强校验值
+     */
+    private static String getValidator(HttpResponse response) {
+        Header etag = response.getFirstHeader("ETag");
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            return etag.getValue();
+        }
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified == null ? null : lastModified.getValue();
+    }
+
+    /**
+     * 一个目标文件的下载锁，users和完成记录由sTargetLocks保护
+     */
+    private static class TargetLock {
+        final ReentrantLock lock = new ReentrantLock();
+        int users;
+        int completions;
+        String completedUrl;
+
+        boolean onResult(String url, boolean completed) {
+            if (completed) {
+                synchronized (sTargetLocks) {
+                    completions++;
+                    completedUrl = url;
+                }
+            }
+            return completed;
+        }
+    }
+
+    private static class Probe {
+        final long length;
+        final String validator;
+
+        Probe(long length, String validator) {
+            this.length = length;
+            this.validator = validator;
+        }
+    }
+
+    /**
+     * 下载[start, end]区间并写入文件对应位置，各段共用整个下载的名额，只报告首包时间
+     */
+    private class Segment implements Callable<Void> {
+        final FutureTask<Void> future = new FutureTask<Void>(this);
+        private final String mUrl;
+        private final String mValidator;
+        private final long mStart;
+        private final long mEnd;
+        private final FileChannel mChannel;
+        private final AbortHandle mAbortHandle;
+        private final AbortHandle mGroup;
+        private final AdaptiveLimiter.Permit mPermit;
+        private final AtomicBoolean mStarted = new AtomicBoolean();
+
+        Segment(String url, String validator, long start, long end, FileChannel channel,
+                AbortHandle abortHandle, AbortHandle group, AdaptiveLimiter.Permit permit) {
+            mUrl = url;
+            mValidator = validator;
+            mStart = start;
+            mEnd = end;
+            mChannel = channel;
+            mAbortHandle = abortHandle;
+            mGroup = group;
+            mPermit = permit;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            if (!mStarted.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                fetch();
+                return null;
+            } catch (IOException e) {
+                mGroup.abort();
+                throw e;
+            } catch (RuntimeException e) {
+                mGroup.abort();
+                throw e;
+            }
+        }
+
+        IOException runQuietly() {
+            try {
+                call();
+                return null;
+            } catch (IOException e) {
+                return e;
+            }
+        }
+
+        /**
+         * 等待该段结束，还没开始的话在当前线程执行
+         */
+        IOException await() {
+            if (TaskRuntime.executor().remove(future) || future.isCancelled()) {
+                // 还在队列里，或者队列满时被挤掉了
+                return runQuietly();
+            }
+            try {
+                future.get();
+                return null;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    return (IOException) cause;
+                }
+                return new IOException(String.valueOf(cause));
+            } catch (CancellationException e) {
+                return runQuietly();
+            } catch (InterruptedException e) {
+                mGroup.abort();
+                return new InterruptedIOException("interrupted");
+            }
+        }
+
+        private void fetch() throws IOException {
+            mGroup.checkAborted();
+            HttpClient client = HttpUtil.getHttpClient(mContext, HttpUtil.ClientType.IMAGE);
+            HttpGet request = HttpUtil.createGetRequest(mUrl, null);
+            request.setHeader(HttpUtil.HEADER_ACCEPT_ENCODING, "identity");
+            request.setHeader("Range", "bytes=" + mStart + "-" + mEnd);
+            request.setHeader("If-Range", mValidator);
+            if (mAbortHandle != null) {
+                mAbortHandle.register(request);
+            }
+            mGroup.register(request);
+            HttpResponse response = null;
+            try {
+                response = HttpUtil.execute(client, request);
+                if (mPermit != null) {
+                    mPermit.onResponse();
+                }
+                long[] range = parseContentRange(response.getFirstHeader("Content-Range"));
+                if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT
+                        || range == null || range[0] != mStart) {
+                    // 文件在分段下载期间变化了
+                    throw new IOException("range not honored: " + response.getStatusLine());
+                }
+                InputStream in = response.getEntity().getContent();
+                try {
+                    write(in);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                mGroup.unregister(request);
+                if (mAbortHandle != null) {
+                    mAbortHandle.unregister(request);
+                }
+                HttpUtil.releaseConnection(request, response);
+            }
+        }
+
+        private void write(InputStream in) throws IOException {
+            byte[] buffer = new byte[SEGMENT_BUFFER_SIZE];
+            long position = mStart;
+            int len;
+            try {
+                while ((len = in.read(buffer, 0, buffer.length)) != -1) {
+                    if (mAbortHandle != null) {
+                        mAbortHandle.checkAborted();
+                    }
+                    mGroup.checkAborted();
+                    if (position + len > mEnd + 1) {
+                        throw new IOException("segment overflow at " + position);
+                    }
+                    ByteBuffer src = ByteBuffer.wrap(buffer, 0, len);
+                    while (src.hasRemaining()) {
+                        position += mChannel.write(src, position);
+                    }
+                }
+            } finally {
+                sBytesDownloaded.add(position - mStart);
+            }
+            if (position != mEnd + 1) {
+                throw new IOException("segment truncated at " + position + "/" + (mEnd + 1));
+            }
+        }
+    }
+}
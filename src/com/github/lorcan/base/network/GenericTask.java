@@ -4,6 +4,7 @@ public abstract class GenericTask extends
         AbsNormalAsyncTask<TaskParams, Object, TaskResult> {
 
 	private ITaskFinishListener mTaskFinishListener;
+	private IProgressListener mProgressListener;
 	protected TaskResult mResult = new TaskResult(-1, this, null);
 
 	@Override
@@ -14,9 +15,18 @@ public abstract class GenericTask extends
 		}
 	}
 
+	@Override
+	protected void onProgressUpdate(Object... values) {
+		super.onProgressUpdate(values);
+		if (mProgressListener != null && values.length == 2) {
+			mProgressListener.onProgress((Long) values[0], (Long) values[1]);
+		}
+	}
+
 	@Override
 	protected void onCancelled() {
 	    mTaskFinishListener = null;
+	    mProgressListener = null;
 		super.onCancelled();
 		//当任务被取消后，不再回调listener
 	}
@@ -29,6 +39,31 @@ public abstract class GenericTask extends
 		this.mTaskFinishListener = taskFinishListener;
 	}
 
+	public IProgressListener getProgressListener() {
+		return mProgressListener;
+	}
+
+	/**
+	 * 上传/下载进度，在{@link #setCallbackExecutor}指定的线程回调，默认UI线程
+	 */
+	public void setProgressListener(IProgressListener progressListener) {
+		this.mProgressListener = progressListener;
+	}
+
+	/**
+	 * 在后台线程上报进度，经publishProgress转到回调线程回调{@link IProgressListener}
+	 */
+	protected final IProgressListener progressPublisher() {
+		return new IProgressListener() {
+			@Override
+			public void onProgress(long current, long total) {
+				if (mProgressListener != null) {
+					publishProgress(current, total);
+				}
+			}
+		};
+	}
+
 	protected void sleepForSecond(long second) {
 		long time = System.currentTimeMillis();
 		while (true) {
@@ -0,0 +1,247 @@
+package com.github.lorcan.base.network;
+
+import com.github.lorcan.base.utils.LogUtil;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.TimerTask;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 对冲请求：幂等GET发出后，超过该host在当前网络下往返时间的p95还没有响应时，
+ * 在另一个连接上再发一份，先收到响应头的一方胜出，另一方被abort<br>
+ * 1 只对冲一次，该host样本不足无法估计p95时不对冲<br>
+ * 2 对冲数按host从令牌桶申请，每个请求存入HEDGE_RATIO个令牌，
+ * 服务端整体变慢时额外的请求量不超过HEDGE_RATIO；对冲最终没有发出时归还令牌<br>
+ * 3 对冲请求在普通通道执行，不占交互通道留给用户操作的线程
+ *
+ * @author lorcan
+ */
+class HedgedRequest {
+
+    private static final String TAG = "HedgedRequest";
+
+    /**
+     * 对冲请求数与请求数的比例上限
+     */
+    private static final double HEDGE_RATIO = 0.1;
+
+    private static final double MAX_TOKENS = 5;
+
+    /**
+     * 对冲延迟的下限，避免往返很快时几乎每个请求都对冲
+     */
+    private static final long MIN_HEDGE_DELAY = 50;
+
+    private static final HostBudget sBudget = new HostBudget(HEDGE_RATIO, MAX_TOKENS);
+
+    private final HttpClient mClient;
+
+    private final HttpUriRequest mPrimary;
+
+    private final HttpUriRequest mHedge;
+
+    private final AbortHandle mAbortHandle;
+
+    private final String mHost;
+
+    private HttpUriRequest mWinner;
+
+    private HttpResponse mHedgeResponse;
+
+    private IOException mHedgeError;
+
+    /**
+     * 对冲请求已开始执行，之后主请求失败时要等它的结果
+     */
+    private boolean mHedgeRunning;
+
+    private boolean mHedgeDone;
+
+    /**
+     * 主请求已有结果，还没开始的对冲请求不再执行
+     */
+    private boolean mClosed;
+
+    /**
+     * @param primary     主请求，调用前已登记到abortHandle
+     * @param hedge       内容相同的另一个请求
+     * @param abortHandle 任务的AbortHandle，对冲请求也会登记上去，不能为null
+     */
+    HedgedRequest(HttpClient client, HttpUriRequest primary, HttpUriRequest hedge,
+                  AbortHandle abortHandle) {
+        mClient = client;
+        mPrimary = primary;
+        mHedge = hedge;
+        mAbortHandle = abortHandle;
+        mHost = primary.getURI().getHost();
+    }
+
+    /**
+     * 执行请求，返回胜出一方的响应，通过{@link #getWinner()}取得对应的请求，
+     * 落败的请求已被abort并注销
+     */
+    HttpResponse execute() throws IOException {
+        sBudget.onRequest(mHost);
+        long delay = LatencyTracker.percentile(mHost, 95);
+        TimerTask timer = null;
+        if (delay >= 0) {
+            timer = new TimerTask() {
+                @Override
+                public void run() {
+                    startHedge();
+                }
+            };
+            TaskRuntime.schedule(timer, Math.max(delay, MIN_HEDGE_DELAY));
+        }
+        HttpResponse response;
+        try {
+            response = HttpUtil.execute(mClient, mPrimary);
+        } catch (IOException e) {
+            if (timer != null) {
+                timer.cancel();
+            }
+            synchronized (this) {
+                mClosed = true;
+                if (!mHedgeRunning) {
+                    throw e;
+                }
+            }
+            // 对冲请求在执行中，主请求被abort或失败时以对冲请求的结果为准
+            return awaitHedge(e);
+        }
+        if (timer != null) {
+            timer.cancel();
+        }
+        boolean won;
+        synchronized (this) {
+            mClosed = true;
+            if (mWinner == null) {
+                mWinner = mPrimary;
+            }
+            won = mWinner == mPrimary;
+        }
+        if (won) {
+            abortLoser(mHedge);
+            return response;
+        }
+        HttpUtil.releaseConnection(mPrimary, response);
+        return awaitHedge(null);
+    }
+
+    /**
+     * 胜出的请求，用完后由调用方注销和释放连接
+     */
+    synchronized HttpUriRequest getWinner() {
+        return mWinner != null ? mWinner : mPrimary;
+    }
+
+    private void startHedge() {
+        synchronized (this) {
+            if (mClosed || mAbortHandle.isAborted() || !sBudget.tryAcquire(mHost)) {
+                return;
+            }
+        }
+        LogUtil.d(TAG, "hedge %s", mPrimary.getURI());
+        // 计时线程不能阻塞；对冲只是投机的副本，放到普通通道执行
+        TaskRuntime.executor().execute(new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                runHedge();
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    // 通道满时被挤掉，对冲没发出，归还令牌
+                    sBudget.refund(mHost);
+                }
+            }
+        }, TaskPriority.NORMAL);
+    }
+
+    private void runHedge() {
+        HttpResponse response = null;
+        IOException error = null;
+        synchronized (this) {
+            if (mClosed) {
+                // 排队期间主请求已经有了结果，失败时由重试策略处理；对冲没发出，归还令牌
+                sBudget.refund(mHost);
+                return;
+            }
+            mHedgeRunning = true;
+        }
+        mAbortHandle.register(mHedge);
+        try {
+            response = HttpUtil.execute(mClient, mHedge);
+        } catch (IOException e) {
+            error = e;
+        }
+        boolean won = false;
+        synchronized (this) {
+            if (response != null && mWinner == null) {
+                mWinner = mHedge;
+                won = true;
+            }
+            finishHedge(won ? response : null, error);
+        }
+        if (won) {
+            abortLoser(mPrimary);
+        } else {
+            mAbortHandle.unregister(mHedge);
+            HttpUtil.releaseConnection(mHedge, response);
+        }
+    }
+
+    private void finishHedge(HttpResponse response, IOException error) {
+        mHedgeResponse = response;
+        mHedgeError = error;
+        mHedgeDone = true;
+        notifyAll();
+    }
+
+    /**
+     * 等待对冲请求结束，它也失败时抛出主请求的异常
+     */
+    private HttpResponse awaitHedge(IOException primaryError) throws IOException {
+        synchronized (this) {
+            while (!mHedgeDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    mHedge.abort();
+                    throw new InterruptedIOException("interrupted while waiting for hedge");
+                }
+            }
+            if (mHedgeResponse != null) {
+                return mHedgeResponse;
+            }
+            if (primaryError != null) {
+                throw primaryError;
+            }
+            throw mHedgeError != null ? mHedgeError : new IOException("hedge not executed");
+        }
+    }
+
+    private void abortLoser(HttpUriRequest loser) {
+        if (loser == mHedge) {
+            synchronized (this) {
+                if (!mHedgeRunning) {
+                    return;
+                }
+            }
+        }
+        try {
+            loser.abort();
+        } catch (UnsupportedOperationException e) {
+            // 不支持abort的请求只能等它自己结束
+        }
+        if (loser == mPrimary) {
+            mAbortHandle.unregister(mPrimary);
+        }
+    }
+}
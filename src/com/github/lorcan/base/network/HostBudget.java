@@ -0,0 +1,74 @@
+package com.github.lorcan.base.network;
+
+import java.util.HashMap;
+
+/**
+ * 按host的令牌桶，限制额外请求（重试、对冲）占请求量的比例<br>
+ * 每发出一个新请求存入ratio个令牌，每个额外请求取走1个，令牌不足时不再发。
+ * 桶的容量也是初始令牌数，允许启动时或空闲后的少量额外请求
+ *
+ * @author lorcan
+ */
+class HostBudget {
+
+    private final double mRatio;
+
+    private final double mMaxTokens;
+
+    private final HashMap<String, double[]> mBuckets = new HashMap<String, double[]>();
+
+    /**
+     * @param ratio     额外请求数与请求数的比例上限
+     * @param maxTokens 桶的容量
+     */
+    HostBudget(double ratio, double maxTokens) {
+        mRatio = ratio;
+        mMaxTokens = maxTokens;
+    }
+
+    /**
+     * 发出一个新请求（不含额外请求）时调用
+     */
+    void onRequest(String host) {
+        synchronized (mBuckets) {
+            double[] tokens = getBucket(host);
+            tokens[0] = Math.min(mMaxTokens, tokens[0] + mRatio);
+        }
+    }
+
+    /**
+     * 申请一个额外请求
+     *
+     * @return 是否还有余量
+     */
+    boolean tryAcquire(String host) {
+        synchronized (mBuckets) {
+            double[] tokens = getBucket(host);
+            if (tokens[0] < 1) {
+                return false;
+            }
+            tokens[0] -= 1;
+            return true;
+        }
+    }
+
+    /**
+     * 申请到的额外请求最终没有发出时归还
+     */
+    void refund(String host) {
+        synchronized (mBuckets) {
+            double[] tokens = getBucket(host);
+            tokens[0] = Math.min(mMaxTokens, tokens[0] + 1);
+        }
+    }
+
+    private double[] getBucket(String host) {
+        String key = host == null ? "" : host;
+        double[] tokens = mBuckets.get(key);
+        if (tokens == null) {
+            tokens = new double[]{mMaxTokens};
+            mBuckets.put(key, tokens);
+        }
+        return tokens;
+    }
+}
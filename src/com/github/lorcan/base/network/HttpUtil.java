@@ -10,17 +10,32 @@ import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.github.lorcan.base.utils.MainThreadWatchdog;
+import com.github.lorcan.base.utils.Metrics;
+import com.github.lorcan.base.utils.Tracer;
 
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
+import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerPNames;
 import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.params.ConnRouteParams;
@@ -28,6 +43,7 @@ import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.ContentBody;
@@ -37,10 +53,14 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
 import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
@@ -49,7 +69,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.KeyStore;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * http请求相关的工具方法
@@ -61,12 +86,63 @@ public class HttpUtil {
 
     private static final String TAG = "HttpUtil";
 
-    private static final int TIME_MAX_WAIT_OUT_CONNECTION = 60000;
-
-    private static final int TIME_OUT_CONNECTION = 60000;
+    /**
+     * 从连接池取连接的最长等待，池被占满多半是同一host的请求都卡住了，不必等太久
+     */
+    private static final int TIME_MAX_WAIT_OUT_CONNECTION = 10000;
 
+    /**
+     * 上传请求体时服务端处理较久，读超时单独放宽
+     */
     private static final int TIME_OUT_SOCKET = 60000;
 
+    /**
+     * 请求发出时刻，用于统计往返时间
+     */
+    private static final String ATTR_SENT_AT = "com.github.lorcan.sent_at";
+
+    /**
+     * 被采样请求的追踪和开始执行的时刻，用于记录connect和ttfb阶段
+     */
+    private static final String ATTR_TRACE = "com.github.lorcan.trace";
+
+    private static final String ATTR_TRACE_START = "com.github.lorcan.trace_start";
+
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 8;
+
+    private static final int MAX_TOTAL_CONNECTIONS = 16;
+
+    /**
+     * 图片下载的并发由AdaptiveLimiter按链路情况控制，这里只是上限
+     */
+    private static final int IMAGE_MAX_CONNECTIONS_PER_ROUTE = 16;
+
+    private static final int IMAGE_MAX_TOTAL_CONNECTIONS = 24;
+
+    /**
+     * 从取连接到收到响应头，包括等连接池、DNS、建连和服务端处理
+     */
+    private static final Metrics.Histogram sExecuteTime = Metrics.histogram("http.execute");
+
+    /**
+     * 请求发出到收到响应头，只统计没有请求体的请求
+     */
+    private static final Metrics.Histogram sRoundTripTime = Metrics.histogram("http.rtt");
+
+    private static final Metrics.Counter sCircuitOpen = Metrics.counter("http.circuit_open");
+
+    /**
+     * 因截止时间到期被abort的请求，弱引用，不在请求自己的参数上标记以免和执行线程竞争
+     */
+    private static final Map<HttpUriRequest, Boolean> sDeadlineAborted =
+            Collections.synchronizedMap(new WeakHashMap<HttpUriRequest, Boolean>());
+
+    private static final Metrics.Counter sFailures = Metrics.counter("http.failure");
+
+    private static HttpClient sHttpClient;
+
+    private static HttpClient sImageHttpClient;
+
     public static final String BOUNDARY = "7cd4a6d158c";
 
     public static final String MP_BOUNDARY = "--" + BOUNDARY;
@@ -75,6 +151,17 @@ public class HttpUtil {
 
     public static final String MULTIPART_FORM_DATA = "multipart/form-data";
 
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    public static final String ACCEPT_ENCODING_VALUE = "gzip, deflate";
+
+    public static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    /**
+     * 请求体小于该长度时不做gzip压缩，压缩收益抵不过开销
+     */
+    public static final int GZIP_MIN_BODY_LENGTH = 1024;
+
 
     public static String inputStream2String(InputStream in) throws IOException {
         if (in == null)
@@ -121,28 +208,196 @@ public class HttpUtil {
     }
 
     /**
-     * 获取httpclient进行网络请求
+     * 连接池的用途，不同用途各用一个client，连接数互不占用
+     */
+    public enum ClientType {
+        /**
+         * 接口请求
+         */
+        API,
+        /**
+         * 图片等大文件下载
+         */
+        IMAGE
+    }
+
+    /**
+     * 获取httpclient进行接口请求<br>
+     * 返回的是全局共享的client，连接池跨请求复用，调用方不能shutdown，
+     * 请求结束后调用{@link #releaseConnection}归还连接
      */
     public static HttpClient getHttpClient(Context context) throws IOException {
-        NetworkState state = getNetworkState(context);
-        HttpClient client = createHttpClient();
+        return getHttpClient(context, ClientType.API);
+    }
 
-        if (state == NetworkState.NOTHING) {
+    /**
+     * 获取对应用途的共享client，图片下载和接口请求分开，慢的图片CDN占满连接池时不影响接口
+     */
+    public static HttpClient getHttpClient(Context context, ClientType type) throws IOException {
+        // 网络状态和APN代理取缓存值，网络变化时由NetworkMonitor刷新
+        NetworkMonitor.Snapshot snapshot = NetworkMonitor.getInstance(context).getSnapshot();
+        if (snapshot.state == NetworkState.NOTHING) {
             throw new IOException("NoSignalException");
-        } else if (state == NetworkState.MOBILE) {
-            APNWrapper wrapper = null;
-            wrapper = getAPN(context);
-            if (!TextUtils.isEmpty(wrapper.proxy)) {
-                client.getParams().setParameter(ConnRouteParams.DEFAULT_PROXY,
-                        new HttpHost(wrapper.proxy, wrapper.port));
+        }
+
+        // 代理在execute时设置到各自请求上，共享client的参数创建后不再修改
+        return getSharedHttpClient(type);
+    }
+
+    private static synchronized HttpClient getSharedHttpClient(ClientType type) {
+        if (type == ClientType.IMAGE) {
+            if (sImageHttpClient == null) {
+                sImageHttpClient = createHttpClient(IMAGE_MAX_CONNECTIONS_PER_ROUTE,
+                        IMAGE_MAX_TOTAL_CONNECTIONS);
             }
+            return sImageHttpClient;
+        }
+        if (sHttpClient == null) {
+            sHttpClient = createHttpClient(MAX_CONNECTIONS_PER_ROUTE, MAX_TOTAL_CONNECTIONS);
         }
+        return sHttpClient;
+    }
 
-        // HttpConnectionParamBean paramHelper = new
-        // HttpConnectionParamBean(client.getParams());
-        // paramHelper.setSoTimeout(TIME_OUT_CONNECTION);
-        // paramHelper.setConnectionTimeout(TIME_OUT_SOCKET);
-        return client;
+    /**
+     * 当前APN需要代理时把代理设置到请求自己的参数上，请求参数优先于client参数，
+     * 网络切换不影响已经在执行的请求
+     */
+    private static void applyProxy(HttpUriRequest request) {
+        NetworkMonitor.Snapshot snapshot = NetworkMonitor.peekSnapshot();
+        if (snapshot != null && snapshot.proxy != null) {
+            request.getParams().setParameter(ConnRouteParams.DEFAULT_PROXY, snapshot.proxy);
+        }
+    }
+
+    /**
+     * 按网络的往返时间设置请求的超时，deadline不为null时各项超时都不超过剩余时间<br>
+     * 请求上已单独设置的超时只会被deadline缩短
+     */
+    static void applyTimeouts(HttpUriRequest request, Deadline deadline) {
+        HttpParams params = request.getParams();
+        long remaining = deadline == null ? Long.MAX_VALUE : Math.max(1, deadline.remaining());
+        params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, (int) Math.min(remaining,
+                params.getIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT,
+                        LatencyTracker.getConnectTimeout())));
+        params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, (int) Math.min(remaining,
+                params.getIntParameter(CoreConnectionPNames.SO_TIMEOUT,
+                        LatencyTracker.getSocketTimeout())));
+        params.setLongParameter(ConnManagerPNames.TIMEOUT, Math.min(remaining,
+                params.getLongParameter(ConnManagerPNames.TIMEOUT,
+                        TIME_MAX_WAIT_OUT_CONNECTION)));
+    }
+
+    /**
+     * 执行请求，经过目标host的熔断器：熔断打开时直接抛出{@link CircuitOpenException}，
+     * 连接失败、超时、截止时间到期被abort和502/503/504计为失败，请求被取消abort不计入。
+     * 响应头返回即计为成功，之后读响应体失败由调用方通过onBodyFailure补记
+     */
+    public static HttpResponse execute(HttpClient client, HttpUriRequest request)
+            throws IOException {
+        CircuitBreaker breaker = CircuitBreaker.forHost(request.getURI().getHost());
+        if (!breaker.allowRequest()) {
+            sCircuitOpen.inc();
+            throw new CircuitOpenException(breaker.getHost());
+        }
+        applyProxy(request);
+        applyTimeouts(request, null);
+        boolean reported = false;
+        long start = System.currentTimeMillis();
+        long mainThreadStart = MainThreadWatchdog.begin();
+        Tracer.Trace trace = Tracer.current();
+        try {
+            HttpResponse response;
+            if (trace.isSampled()) {
+                HttpContext context = new BasicHttpContext();
+                context.setAttribute(ATTR_TRACE, trace);
+                context.setAttribute(ATTR_TRACE_START, trace.now());
+                response = client.execute(request, context);
+            } else {
+                response = client.execute(request);
+            }
+            sExecuteTime.recordSince(start);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_BAD_GATEWAY
+                    || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE
+                    || statusCode == HttpStatus.SC_GATEWAY_TIMEOUT) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess();
+            }
+            reported = true;
+            return response;
+        } catch (IOException e) {
+            // 截止时间到期的abort说明host一直没有响应，要计入失败，否则卡死的host永远不会熔断
+            boolean byDeadline = sDeadlineAborted.remove(request) != null;
+            if (request.isAborted() && !byDeadline) {
+                breaker.onIgnored();
+            } else {
+                breaker.onFailure();
+                sFailures.inc();
+            }
+            reported = true;
+            throw e;
+        } finally {
+            if (!reported) {
+                breaker.onIgnored();
+            }
+            MainThreadWatchdog.end("http", mainThreadStart);
+        }
+    }
+
+    /**
+     * execute返回后读响应体失败时调用，和execute一样计入熔断器，请求被取消abort不计入
+     */
+    static void onBodyFailure(HttpUriRequest request) {
+        boolean byDeadline = sDeadlineAborted.remove(request) != null;
+        if (request.isAborted() && !byDeadline) {
+            return;
+        }
+        CircuitBreaker.forHost(request.getURI().getHost()).onBodyFailure();
+        sFailures.inc();
+    }
+
+    /**
+     * AbortHandle因截止时间到期abort请求前调用，execute据此把这次失败计入熔断器
+     */
+    static void markDeadlineAborted(HttpUriRequest request) {
+        sDeadlineAborted.put(request, Boolean.TRUE);
+    }
+
+    /**
+     * 网络切换后池中的空闲连接已经不可用，全部关闭
+     */
+    static void closeIdleConnections() {
+        HttpClient[] clients;
+        synchronized (HttpUtil.class) {
+            clients = new HttpClient[]{sHttpClient, sImageHttpClient};
+        }
+        for (HttpClient client : clients) {
+            if (client != null) {
+                client.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * 归还请求占用的连接：响应体未读完时读完以便连接复用，失败则abort断开
+     */
+    public static void releaseConnection(HttpUriRequest request, HttpResponse response) {
+        if (response != null) {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return;
+            }
+            try {
+                entity.consumeContent();
+                return;
+            } catch (IOException e) {
+                // 连接已不可用，下面abort
+            }
+        }
+        if (request != null) {
+            request.abort();
+        }
     }
 
     /**
@@ -150,62 +405,183 @@ public class HttpUtil {
      */
     public static HttpResponse doFilePostRequest(HttpClient client, String url, MultipartEntity multipartEntity,
                                                  Header[] headers) throws Exception {
+        return execute(client, createFilePostRequest(url, multipartEntity, headers));
+    }
+
+    public static HttpResponse doJsonPostRequest(HttpClient client, String url,
+                                             JSONObject postJSON, Header[] headers) throws IOException {
+        return doJsonPostRequest(client, url, postJSON, headers, false);
+    }
+
+    /**
+     * post json，gzipBody为true且body足够大时，以Content-Encoding: gzip压缩请求体<br>
+     * 需要服务端支持解压请求体
+     */
+    public static HttpResponse doJsonPostRequest(HttpClient client, String url,
+                                             JSONObject postJSON, Header[] headers, boolean gzipBody)
+            throws IOException {
+        return execute(client, createJsonPostRequest(url, postJSON, headers, gzipBody));
+    }
+
+    public static HttpResponse doPostRequest(HttpClient client, String url,
+                                             List<NameValuePair> postParams, Header[] headers) throws IOException {
+        return execute(client, createPostRequest(url, postParams, headers));
+    }
+
+    /**
+     * 使用httpclient进行get请求
+     */
+    public static HttpResponse doGetRequest(HttpClient client, String url, Header[] headers)
+            throws IOException {
+        return execute(client, createGetRequest(url, headers));
+    }
+
+    /**
+     * 按Request构造http请求，请求体取自request
+     */
+    public static HttpUriRequest createRequest(Request request) throws IOException {
+        Request.Body body = request.getBody();
+        return createRequest(request, body == null ? null : body.getEntity());
+    }
+
+    /**
+     * 按Request构造http请求，每次尝试都要新建，已abort或执行过的请求不能再用
+     *
+     * @param entity 请求体，一般为request.getBody().getEntity()，需要进度时可用{@link CountingEntity}包装
+     */
+    public static HttpUriRequest createRequest(Request request, HttpEntity entity) {
+        HttpUriRequest httpRequest;
+        if (request.getMethod() == Request.Method.POST) {
+            HttpPost httpPostRequest = new HttpPost(request.getUrl());
+            if (entity != null) {
+                httpPostRequest.setEntity(entity);
+            }
+            httpRequest = httpPostRequest;
+        } else {
+            httpRequest = new HttpGet(request.getUrl());
+        }
+        request.applyHeaders(httpRequest);
+        if (request.isStreaming()) {
+            // 只对该请求生效，不修改共享client的参数
+            HttpConnectionParams.setSoTimeout(httpRequest.getParams(), TIME_OUT_SOCKET);
+        }
+        return httpRequest;
+    }
+
+    /**
+     * 构造get请求，调用方持有请求对象以便取消时abort
+     */
+    public static HttpGet createGetRequest(String url, Header[] headers) {
+        HttpGet httpGetRequest = new HttpGet(url);
+        if (headers != null) {
+            httpGetRequest.setHeaders(headers);
+        }
+        return httpGetRequest;
+    }
+
+    public static HttpPost createPostRequest(String url, List<NameValuePair> postParams,
+                                             Header[] headers) throws IOException {
         HttpPost httpPostRequest = new HttpPost(url);
+
         if (headers != null) {
             httpPostRequest.setHeaders(headers);
         }
-        client.getParams().setParameter(HttpConnectionParams.SO_TIMEOUT, 60000);
-        httpPostRequest.setEntity(multipartEntity);
 
-        return client.execute(httpPostRequest);
+        HttpEntity entity = null;
+        if (postParams != null && postParams.size() > 0) {
+            entity = new UrlEncodedFormEntity(postParams, HTTP.UTF_8);
+            httpPostRequest.setEntity(entity);
+        }
+        return httpPostRequest;
     }
 
-    public static HttpResponse doJsonPostRequest(HttpClient client, String url,
-                                             JSONObject postJSON, Header[] headers) throws IOException {
+    public static HttpPost createJsonPostRequest(String url, JSONObject postJSON,
+                                                 Header[] headers, boolean gzipBody) throws IOException {
         HttpPost httpPostRequest = new HttpPost(url);
         if (headers != null) {
             httpPostRequest.setHeaders(headers);
         }
         HttpEntity entity = null;
         if (postJSON != null) {
-            entity = new StringEntity(postJSON.toString());
+            String body = postJSON.toString();
+            if (gzipBody && body.length() >= GZIP_MIN_BODY_LENGTH) {
+                entity = createGzipEntity(body, HTTP.DEFAULT_CONTENT_CHARSET);
+            } else {
+                entity = new StringEntity(body);
+            }
             httpPostRequest.setEntity(entity);
         }
-        return client.execute(httpPostRequest);
+        return httpPostRequest;
     }
 
-    public static HttpResponse doPostRequest(HttpClient client, String url,
-                                             List<NameValuePair> postParams, Header[] headers) throws IOException {
+    /**
+     * @param multipartEntity 一般为MultipartEntity，需要进度时可用{@link CountingEntity}包装
+     */
+    public static HttpPost createFilePostRequest(String url, HttpEntity multipartEntity,
+                                                 Header[] headers) {
         HttpPost httpPostRequest = new HttpPost(url);
-
         if (headers != null) {
             httpPostRequest.setHeaders(headers);
         }
+        httpPostRequest.setEntity(multipartEntity);
+        // 只对该请求生效，不修改共享client的参数
+        HttpConnectionParams.setSoTimeout(httpPostRequest.getParams(), TIME_OUT_SOCKET);
+        return httpPostRequest;
+    }
 
-        HttpEntity entity = null;
-        if (postParams != null && postParams.size() > 0) {
-            entity = new UrlEncodedFormEntity(postParams, HTTP.UTF_8);
-            httpPostRequest.setEntity(entity);
+    /**
+     * 分片上传请求，带Content-Range: bytes start-end/total<br>
+     * chunk为null时是空请求体的查询请求（Content-Range: bytes *&#47;total），
+     * 服务端以308和Range头返回已收到的范围
+     *
+     * @param url     上传会话的url
+     * @param chunk   本片内容
+     * @param offset  本片在文件中的起始位置
+     * @param total   文件总长度
+     * @param headers the headers
+     */
+    public static HttpPut createChunkUploadRequest(String url, HttpEntity chunk, long offset,
+                                                   long total, Header[] headers) {
+        HttpPut httpPutRequest = new HttpPut(url);
+        if (headers != null) {
+            httpPutRequest.setHeaders(headers);
         }
-        return client.execute(httpPostRequest);
+        if (chunk == null) {
+            httpPutRequest.setHeader(HEADER_CONTENT_RANGE, "bytes */" + total);
+        } else {
+            long end = offset + chunk.getContentLength() - 1;
+            httpPutRequest.setHeader(HEADER_CONTENT_RANGE,
+                    "bytes " + offset + "-" + end + "/" + total);
+            httpPutRequest.setEntity(chunk);
+        }
+        HttpConnectionParams.setSoTimeout(httpPutRequest.getParams(), TIME_OUT_SOCKET);
+        return httpPutRequest;
     }
 
     /**
-     * 使用httpclient进行get请求
+     * 将文本压缩为gzip的请求体，Content-Type与StringEntity默认值一致
      */
-    public static HttpResponse doGetRequest(HttpClient client, String url, Header[] headers)
-            throws IOException {
-        HttpGet httpGetRequest = new HttpGet(url);
-        if (headers != null) {
-            httpGetRequest.setHeaders(headers);
+    public static HttpEntity createGzipEntity(String body, String charset) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(body.length() / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(baos);
+        try {
+            gzip.write(body.getBytes(charset));
+        } finally {
+            gzip.close();
         }
-        return client.execute(httpGetRequest);
+        ByteArrayEntity entity = new ByteArrayEntity(baos.toByteArray());
+        entity.setContentType(HTTP.PLAIN_TEXT_TYPE + HTTP.CHARSET_PARAM + charset);
+        entity.setContentEncoding(DecompressingEntity.ENCODING_GZIP);
+        return entity;
     }
 
     public enum NetworkState {
         NOTHING, MOBILE, WIFI
     }
 
+    /**
+     * 实时查询网络类型，需要频繁获取时用{@link NetworkMonitor#getNetworkState()}
+     */
     public static NetworkState getNetworkState(Context ctx) {
         ConnectivityManager cm = (ConnectivityManager) ctx
                 .getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -324,7 +700,7 @@ public class HttpUtil {
         return wrapper;
     }
 
-    protected static DefaultHttpClient createHttpClient() {
+    protected static DefaultHttpClient createHttpClient(int maxPerRoute, int maxTotal) {
 
         // sets up parameters
         HttpParams params = new BasicHttpParams();
@@ -334,26 +710,29 @@ public class HttpUtil {
 
         // 从这里开始是进行下载，使用了多线程执行请求
         ConnManagerParams.setMaxConnectionsPerRoute(params,
-                new ConnPerRouteBean(50));// 设置并发数
+                new ConnPerRouteBean(maxPerRoute));// 设置并发数
+        ConnManagerParams.setMaxTotalConnections(params, maxTotal);
 
         // 设置连接最大等待时间
         ConnManagerParams.setTimeout(params, TIME_MAX_WAIT_OUT_CONNECTION);
+        // 不经过execute直接使用client时的超时，经过execute的请求按往返时间单独设置
         /* 连接超时 */
-        HttpConnectionParams.setConnectionTimeout(params, TIME_OUT_CONNECTION);
+        HttpConnectionParams.setConnectionTimeout(params, LatencyTracker.getConnectTimeout());
         /* 请求读取超时 */
-        HttpConnectionParams.setSoTimeout(params, TIME_OUT_SOCKET);
+        HttpConnectionParams.setSoTimeout(params, LatencyTracker.getSocketTimeout());
 
         // registers schemes for both http and https
+        // 域名解析走DnsCache，预热时解析过的host建连不用再等DNS
         SchemeRegistry registry = new SchemeRegistry();
-        registry.register(new Scheme("http", PlainSocketFactory
-                .getSocketFactory(), 80));
+        registry.register(new Scheme("http", new PlainSocketFactory(DnsCache.getInstance()), 80));
         try {
 
             KeyStore trustStore = KeyStore.getInstance(KeyStore
                     .getDefaultType());
             trustStore.load(null, null);
 
-            EasySSLSocketFactory sf = new EasySSLSocketFactory(trustStore);
+            EasySSLSocketFactory sf = new EasySSLSocketFactory(trustStore,
+                    DnsCache.getInstance());
             sf.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
 
             registry.register(new Scheme("https", sf, 443));
@@ -362,6 +741,115 @@ public class HttpUtil {
         }
         ThreadSafeClientConnManager manager = new ThreadSafeClientConnManager(
                 params, registry);
-        return new DefaultHttpClient(manager, params);
+        DefaultHttpClient client = new DefaultHttpClient(manager, params);
+        client.setHttpRequestRetryHandler(STALE_CONNECTION_RETRY_HANDLER);
+        addCompressionSupport(client);
+        addLatencySampling(client);
+        return client;
+    }
+
+    /**
+     * 统计请求发出到收到响应头的时间，不含等连接和建连。
+     * 带请求体的请求包含上传时间，不计入
+     */
+    private static void addLatencySampling(DefaultHttpClient client) {
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            public void process(HttpRequest request, HttpContext context)
+                    throws HttpException, IOException {
+                long now = System.nanoTime();
+                if (request instanceof HttpEntityEnclosingRequest
+                        && ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+                    context.removeAttribute(ATTR_SENT_AT);
+                } else {
+                    context.setAttribute(ATTR_SENT_AT, now);
+                }
+                // 拦截器在连接建好后执行，之前为等连接池、DNS、建连和TLS握手
+                Tracer.Trace trace = (Tracer.Trace) context.getAttribute(ATTR_TRACE);
+                Long traceStart = (Long) context.getAttribute(ATTR_TRACE_START);
+                if (trace != null && traceStart != null) {
+                    trace.span("connect", traceStart);
+                    context.setAttribute(ATTR_TRACE_START, now);
+                }
+            }
+        });
+        client.addResponseInterceptor(new HttpResponseInterceptor() {
+            public void process(HttpResponse response, HttpContext context)
+                    throws HttpException, IOException {
+                Long sentAt = (Long) context.getAttribute(ATTR_SENT_AT);
+                if (sentAt != null) {
+                    long rtt = (System.nanoTime() - sentAt) / 1000000L;
+                    HttpHost target = (HttpHost) context.getAttribute(
+                            ExecutionContext.HTTP_TARGET_HOST);
+                    LatencyTracker.record(target == null ? null : target.getHostName(), rtt);
+                    sRoundTripTime.record(rtt);
+                }
+                Tracer.Trace trace = (Tracer.Trace) context.getAttribute(ATTR_TRACE);
+                Long traceStart = (Long) context.getAttribute(ATTR_TRACE_START);
+                if (trace != null && traceStart != null) {
+                    // 包括上传请求体
+                    trace.span("ttfb", traceStart);
+                    context.removeAttribute(ATTR_TRACE_START);
+                }
+            }
+        });
+    }
+
+    /**
+     * 重试由RetryPolicy负责，这里只在复用到已被服务端关闭的连接时补发一次，
+     * 非幂等请求只有在还没发出去时才补发，避免重复提交
+     */
+    private static final HttpRequestRetryHandler STALE_CONNECTION_RETRY_HANDLER =
+            new HttpRequestRetryHandler() {
+                @Override
+                public boolean retryRequest(IOException exception, int executionCount,
+                                            HttpContext context) {
+                    if (executionCount > 1 || !(exception instanceof NoHttpResponseException)) {
+                        return false;
+                    }
+                    HttpRequest request = (HttpRequest) context.getAttribute(
+                            ExecutionContext.HTTP_REQUEST);
+                    if (request != null
+                            && RetryPolicy.isIdempotent(request.getRequestLine().getMethod())) {
+                        return true;
+                    }
+                    Boolean sent = (Boolean) context.getAttribute(ExecutionContext.HTTP_REQ_SENT);
+                    return sent == null || !sent;
+                }
+            };
+
+    /**
+     * 请求时声明支持gzip/deflate，响应压缩时替换为边读边解压的entity，
+     * 对parser透明
+     */
+    private static void addCompressionSupport(DefaultHttpClient client) {
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            public void process(HttpRequest request, HttpContext context)
+                    throws HttpException, IOException {
+                if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
+                    request.addHeader(HEADER_ACCEPT_ENCODING, ACCEPT_ENCODING_VALUE);
+                }
+            }
+        });
+        client.addResponseInterceptor(new HttpResponseInterceptor() {
+            public void process(HttpResponse response, HttpContext context)
+                    throws HttpException, IOException {
+                HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    return;
+                }
+                Header encoding = entity.getContentEncoding();
+                if (encoding == null) {
+                    return;
+                }
+                for (HeaderElement element : encoding.getElements()) {
+                    if (DecompressingEntity.isSupported(element.getName())) {
+                        response.setEntity(new DecompressingEntity(entity, element.getName()));
+                        response.removeHeaders(HTTP.CONTENT_LEN);
+                        response.removeHeaders(HTTP.CONTENT_ENCODING);
+                        return;
+                    }
+                }
+            }
+        });
     }
 }
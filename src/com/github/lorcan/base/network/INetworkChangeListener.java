@@ -0,0 +1,17 @@
+package com.github.lorcan.base.network;
+
+/**
+ * 网络连接变化的回调，在主线程执行
+ *
+ * @author lorcan
+ */
+public interface INetworkChangeListener {
+
+    /**
+     * 网络状态发生变化
+     *
+     * @param state   新的网络类型
+     * @param metered 是否计流量的网络
+     */
+    void onNetworkChanged(HttpUtil.NetworkState state, boolean metered);
+}
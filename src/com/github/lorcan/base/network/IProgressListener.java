@@ -0,0 +1,15 @@
+package com.github.lorcan.base.network;
+
+/**
+ * 上传/下载进度回调
+ *
+ * @author lorcan
+ */
+public interface IProgressListener {
+
+    /**
+     * @param current 已传输的字节数
+     * @param total   总字节数，未知时为-1
+     */
+    void onProgress(long current, long total);
+}
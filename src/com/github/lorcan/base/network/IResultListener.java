@@ -0,0 +1,11 @@
+package com.github.lorcan.base.network;
+
+/**
+ * 异步操作的结果回调，在UI线程调用
+ *
+ * @author lorcan
+ */
+public interface IResultListener<T> {
+
+    void onResult(T result);
+}
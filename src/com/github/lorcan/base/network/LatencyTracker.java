@@ -0,0 +1,192 @@
+package com.github.lorcan.base.network;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按网络类型统计请求的往返时间（请求发出到收到响应头），并据此给出默认超时<br>
+ * 样本不足时用各网络类型的保守默认值；样本足够后，建连超时取p95的3倍，
+ * 读超时取p99的4倍，再限制在上下限之间。wifi下坏掉的请求几秒内失败，
+ * 慢的移动网络也不会被过早断开。另外按host和网络类型单独统计，供对冲请求这类
+ * 只关心某个服务的场景使用，图片CDN和上传的往返时间不会混进API的统计
+ *
+ * @author lorcan
+ */
+public class LatencyTracker {
+
+    /**
+     * 每种网络保留最近的样本数
+     */
+    private static final int WINDOW = 64;
+
+    /**
+     * 样本数少于这个值时使用默认超时
+     */
+    private static final int MIN_SAMPLES = 10;
+
+    private static final int MIN_CONNECT_TIMEOUT = 3000;
+
+    private static final int MAX_CONNECT_TIMEOUT = 20000;
+
+    private static final int MIN_SOCKET_TIMEOUT = 5000;
+
+    private static final int MAX_SOCKET_TIMEOUT = 30000;
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_WIFI = 10000;
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_MOBILE = 20000;
+
+    private static final int DEFAULT_SOCKET_TIMEOUT_WIFI = 15000;
+
+    private static final int DEFAULT_SOCKET_TIMEOUT_MOBILE = 30000;
+
+    /**
+     * 单独统计的host数，超过时丢掉最久没用的
+     */
+    private static final int MAX_HOSTS = 32;
+
+    private static final EnumMap<HttpUtil.NetworkState, Samples> sSamples =
+            new EnumMap<HttpUtil.NetworkState, Samples>(HttpUtil.NetworkState.class);
+
+    /**
+     * key为host|网络类型，按访问顺序淘汰，由sSamples加锁保护
+     */
+    private static final LinkedHashMap<String, Samples> sHostSamples =
+            new LinkedHashMap<String, Samples>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Samples> eldest) {
+                    return size() > MAX_HOSTS;
+                }
+            };
+
+    private static volatile HttpUtil.NetworkState sNetworkState = HttpUtil.NetworkState.MOBILE;
+
+    private LatencyTracker() {
+    }
+
+    /**
+     * 当前网络类型，由{@link NetworkMonitor}在网络变化时更新
+     */
+    static void setNetworkState(HttpUtil.NetworkState state) {
+        if (state != HttpUtil.NetworkState.NOTHING) {
+            sNetworkState = state;
+        }
+    }
+
+    /**
+     * 记录一次往返时间，计入当前网络类型
+     */
+    public static void record(long rttMs) {
+        record(null, rttMs);
+    }
+
+    /**
+     * 记录一次往返时间，计入当前网络类型，host不为null时同时计入该host
+     */
+    public static void record(String host, long rttMs) {
+        HttpUtil.NetworkState state = sNetworkState;
+        synchronized (sSamples) {
+            Samples samples = sSamples.get(state);
+            if (samples == null) {
+                samples = new Samples();
+                sSamples.put(state, samples);
+            }
+            samples.add(rttMs);
+            if (host != null) {
+                String key = host + '|' + state;
+                Samples hostSamples = sHostSamples.get(key);
+                if (hostSamples == null) {
+                    hostSamples = new Samples();
+                    sHostSamples.put(key, hostSamples);
+                }
+                hostSamples.add(rttMs);
+            }
+        }
+    }
+
+    /**
+     * 当前网络的往返时间百分位数，样本不足时返回-1
+     *
+     * @param percent 0到100
+     */
+    public static long percentile(int percent) {
+        long[] values;
+        synchronized (sSamples) {
+            values = copyIfEnough(sSamples.get(sNetworkState));
+        }
+        return percentile(values, percent);
+    }
+
+    /**
+     * 当前网络下某个host的往返时间百分位数，该host样本不足时返回-1
+     *
+     * @param percent 0到100
+     */
+    public static long percentile(String host, int percent) {
+        long[] values;
+        synchronized (sSamples) {
+            values = copyIfEnough(sHostSamples.get(host + '|' + sNetworkState));
+        }
+        return percentile(values, percent);
+    }
+
+    private static long[] copyIfEnough(Samples samples) {
+        return samples == null || samples.count < MIN_SAMPLES ? null : samples.copy();
+    }
+
+    private static long percentile(long[] values, int percent) {
+        if (values == null) {
+            return -1;
+        }
+        Arrays.sort(values);
+        int index = (int) Math.ceil(values.length * percent / 100.0) - 1;
+        return values[Math.max(0, Math.min(index, values.length - 1))];
+    }
+
+    public static int getConnectTimeout() {
+        long p95 = percentile(95);
+        if (p95 < 0) {
+            return sNetworkState == HttpUtil.NetworkState.WIFI ? DEFAULT_CONNECT_TIMEOUT_WIFI
+                    : DEFAULT_CONNECT_TIMEOUT_MOBILE;
+        }
+        return clamp(p95 * 3, MIN_CONNECT_TIMEOUT, MAX_CONNECT_TIMEOUT);
+    }
+
+    public static int getSocketTimeout() {
+        long p99 = percentile(99);
+        if (p99 < 0) {
+            return sNetworkState == HttpUtil.NetworkState.WIFI ? DEFAULT_SOCKET_TIMEOUT_WIFI
+                    : DEFAULT_SOCKET_TIMEOUT_MOBILE;
+        }
+        return clamp(p99 * 4, MIN_SOCKET_TIMEOUT, MAX_SOCKET_TIMEOUT);
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(value, max));
+    }
+
+    /**
+     * 定长的环形缓冲
+     */
+    private static class Samples {
+        final long[] values = new long[WINDOW];
+        int next;
+        int count;
+
+        void add(long value) {
+            values[next] = value;
+            next = (next + 1) % WINDOW;
+            if (count < WINDOW) {
+                count++;
+            }
+        }
+
+        long[] copy() {
+            long[] copy = new long[count];
+            System.arraycopy(values, 0, copy, 0, count);
+            return copy;
+        }
+    }
+}
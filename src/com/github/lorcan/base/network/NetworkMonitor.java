@@ -0,0 +1,238 @@
+package com.github.lorcan.base.network;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+
+import org.apache.http.HttpHost;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 缓存网络类型、APN代理和是否计流量，只在收到网络变化广播时刷新<br>
+ * 请求的关键路径上不再做ConnectivityManager调用和APN的ContentResolver查询<br>
+ * 第一次调用只用getActiveNetworkInfo得到网络类型，APN代理的查询和之后的广播
+ * 都在专用的NetworkMonitor线程上执行，不占任务通道，也不在UI线程查询APN
+ *
+ * @author lorcan
+ */
+public class NetworkMonitor {
+
+    private static volatile NetworkMonitor instance;
+
+    private final Context mContext;
+
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * 监听线程上第一次完整查询（包括APN代理）完成
+     */
+    private final CountDownLatch mReady = new CountDownLatch(1);
+
+    private final List<INetworkChangeListener> mListeners = new ArrayList<INetworkChangeListener>();
+
+    /**
+     * 某一时刻的网络状态，不可变
+     */
+    public static class Snapshot {
+        public final HttpUtil.NetworkState state;
+
+        /**
+         * 仅移动网络时有值
+         */
+        public final HttpUtil.APNWrapper apn;
+
+        /**
+         * wap等需要走代理的APN，否则为null
+         */
+        public final HttpHost proxy;
+
+        public final boolean metered;
+
+        Snapshot(HttpUtil.NetworkState state, HttpUtil.APNWrapper apn, HttpHost proxy,
+                 boolean metered) {
+            this.state = state;
+            this.apn = apn;
+            this.proxy = proxy;
+            this.metered = metered;
+        }
+
+        @Override
+        public String toString() {
+            return "{state=" + state + ";apn=" + apn + ";metered=" + metered + "}";
+        }
+    }
+
+    private NetworkMonitor(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * 第一次调用时只查询网络类型作为初始状态，之后启动监听线程并注册网络变化广播，
+     * APN代理在监听线程上查询，可以在UI线程调用
+     */
+    public static synchronized NetworkMonitor getInstance(Context context) {
+        if (instance == null) {
+            NetworkMonitor monitor = new NetworkMonitor(context.getApplicationContext());
+            HttpUtil.NetworkState state = HttpUtil.getNetworkState(monitor.mContext);
+            // 是否计流量和APN代理在监听线程上补全
+            monitor.mSnapshot = new Snapshot(state, null, null,
+                    state == HttpUtil.NetworkState.MOBILE);
+            LatencyTracker.setNetworkState(state);
+            monitor.start();
+            instance = monitor;
+        }
+        return instance;
+    }
+
+    /**
+     * 已创建时返回当前的网络状态，否则返回null，不等待也不需要Context
+     */
+    static Snapshot peekSnapshot() {
+        NetworkMonitor monitor = instance;
+        return monitor == null ? null : monitor.mSnapshot;
+    }
+
+    /**
+     * 当前网络状态。移动网络下APN代理还没查出来时，后台线程等待查询完成，
+     * 否则wap接入点的请求会直连失败；UI线程不等待，直接返回已知的状态
+     */
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot.state != HttpUtil.NetworkState.MOBILE || mReady.getCount() == 0
+                || TaskRuntime.isMainThread()) {
+            return snapshot;
+        }
+        try {
+            mReady.await();
+        } catch (InterruptedException e) {
+            // 任务被取消，保留中断状态，用已知的状态
+            Thread.currentThread().interrupt();
+        }
+        return mSnapshot;
+    }
+
+    public HttpUtil.NetworkState getNetworkState() {
+        return getSnapshot().state;
+    }
+
+    public boolean isMetered() {
+        return getSnapshot().metered;
+    }
+
+    public void addListener(INetworkChangeListener listener) {
+        synchronized (mListeners) {
+            if (!mListeners.contains(listener)) {
+                mListeners.add(listener);
+            }
+        }
+    }
+
+    public void removeListener(INetworkChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * 立即重新查询网络状态，一般不需要调用
+     */
+    public synchronized Snapshot refresh() {
+        Snapshot snapshot = query();
+        Snapshot old = mSnapshot;
+        mSnapshot = snapshot;
+        LatencyTracker.setNetworkState(snapshot.state);
+        boolean changed = old.state != snapshot.state || old.metered != snapshot.metered;
+        if (changed || !sameProxy(old.proxy, snapshot.proxy)) {
+            // 包括初始状态补全APN代理时：之前的空闲连接是直连的
+            HttpUtil.closeIdleConnections();
+            CircuitBreaker.resetAll();
+            DnsCache.getInstance().clear();
+        }
+        if (changed) {
+            // 监听方只关心网络类型和是否计流量
+            notifyListeners(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * 广播在监听线程上回调，刷新不会被任务通道丢弃，也不会排在预热等慢任务后面
+     */
+    private void start() {
+        HandlerThread thread = new HandlerThread("NetworkMonitor",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } finally {
+                    mReady.countDown();
+                }
+            }
+        });
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                refresh();
+            }
+        }, filter, null, handler);
+    }
+
+    private Snapshot query() {
+        HttpUtil.NetworkState state = HttpUtil.getNetworkState(mContext);
+        HttpUtil.APNWrapper apn = null;
+        HttpHost proxy = null;
+        if (state == HttpUtil.NetworkState.MOBILE) {
+            apn = HttpUtil.getAPN(mContext);
+            if (!TextUtils.isEmpty(apn.proxy)) {
+                proxy = new HttpHost(apn.proxy, apn.port);
+            }
+        }
+        return new Snapshot(state, apn, proxy, queryMetered(state));
+    }
+
+    private boolean queryMetered(HttpUtil.NetworkState state) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            ConnectivityManager cm = (ConnectivityManager) mContext
+                    .getSystemService(Context.CONNECTIVITY_SERVICE);
+            return cm.isActiveNetworkMetered();
+        }
+        return state == HttpUtil.NetworkState.MOBILE;
+    }
+
+    private void notifyListeners(final Snapshot snapshot) {
+        final INetworkChangeListener[] listeners;
+        synchronized (mListeners) {
+            if (mListeners.isEmpty()) {
+                return;
+            }
+            listeners = mListeners.toArray(new INetworkChangeListener[mListeners.size()]);
+        }
+        TaskRuntime.postToMain(new Runnable() {
+            @Override
+            public void run() {
+                for (INetworkChangeListener listener : listeners) {
+                    listener.onNetworkChanged(snapshot.state, snapshot.metered);
+                }
+            }
+        });
+    }
+
+    private static boolean sameProxy(HttpHost a, HttpHost b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
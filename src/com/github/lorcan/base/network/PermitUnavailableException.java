@@ -0,0 +1,32 @@
+package com.github.lorcan.base.network;
+
+import java.io.IOException;
+
+/**
+ * {@link AdaptiveLimiter}没有空闲的下载名额，请求没有发出。
+ * 调用方可以用{@link AdaptiveLimiter#runWhenAvailable}在名额归还后重新排队
+ *
+ * @author lorcan
+ */
+public class PermitUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String mHost;
+
+    private final HttpUtil.NetworkState mState;
+
+    public PermitUnavailableException(String host, HttpUtil.NetworkState state) {
+        super("no download permit: " + host);
+        mHost = host;
+        mState = state;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public HttpUtil.NetworkState getState() {
+        return mState;
+    }
+}
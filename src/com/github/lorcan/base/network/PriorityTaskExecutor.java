@@ -0,0 +1,318 @@
+package com.github.lorcan.base.network;
+
+import com.github.lorcan.base.utils.Metrics;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按优先级通道调度的线程池<br>
+ * 1 每个通道一个有界队列，空闲线程总是先取高优先级通道的任务<br>
+ * 2 每个通道有并发上限，另外可以给某个通道预留若干线程，比它优先级低的通道不能占用，
+ * 如给最高优先级通道预留，其它通道再忙交互请求也总有线程可用<br>
+ * 3 队列满时丢弃该通道最老的任务（Future会被cancel，回调onCancelled），不抛异常。
+ * 这是过载时的降载（load shedding）而不是背压：提交方不会被阻塞或减速，
+ * 需要限流的调用方自己控制提交速度，如图片下载的{@link AdaptiveLimiter}<br>
+ * 4 按通道统计排队时间和丢弃数，见{@link Metrics}
+ *
+ * @author lorcan
+ */
+public class PriorityTaskExecutor implements Executor {
+
+    private static final int LANE_COUNT = TaskPriority.values().length;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private static final Metrics.Histogram[] sQueueWait = new Metrics.Histogram[LANE_COUNT];
+
+    private static final Metrics.Counter[] sDiscards = new Metrics.Counter[LANE_COUNT];
+
+    static {
+        for (TaskPriority priority : TaskPriority.values()) {
+            String lane = priority.name().toLowerCase();
+            sQueueWait[priority.ordinal()] = Metrics.histogram("executor.queue_wait." + lane);
+            sDiscards[priority.ordinal()] = Metrics.counter("executor.discard." + lane);
+        }
+    }
+
+    private final Condition mHasWork = mLock.newCondition();
+
+    private final List<LinkedList<Queued>> mQueues = new ArrayList<LinkedList<Queued>>(LANE_COUNT);
+
+    private final int[] mQueueCapacity = new int[LANE_COUNT];
+
+    private final int[] mMaxRunning = new int[LANE_COUNT];
+
+    private final int[] mRunning = new int[LANE_COUNT];
+
+    private final int mCorePoolSize;
+
+    private final int mMaxPoolSize;
+
+    private final long mKeepAliveNanos;
+
+    private final ThreadFactory mThreadFactory;
+
+    private final int[] mReserved = new int[LANE_COUNT];
+
+    private int mTotalRunning;
+
+    private int mPoolSize;
+
+    private int mIdleCount;
+
+    private int mDiscardCount;
+
+    /**
+     * @param corePoolSize  常驻线程数
+     * @param maxPoolSize   最大线程数
+     * @param keepAlive     超出常驻数的线程空闲多久后退出，单位秒
+     * @param threadFactory 线程工厂
+     */
+    public PriorityTaskExecutor(int corePoolSize, int maxPoolSize, long keepAlive,
+                                ThreadFactory threadFactory) {
+        mCorePoolSize = corePoolSize;
+        mMaxPoolSize = maxPoolSize;
+        mKeepAliveNanos = TimeUnit.SECONDS.toNanos(keepAlive);
+        mThreadFactory = threadFactory;
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mQueues.add(new LinkedList<Queued>());
+            mQueueCapacity[i] = Integer.MAX_VALUE;
+            mMaxRunning[i] = maxPoolSize;
+        }
+    }
+
+    /**
+     * 设置某通道的队列长度和最大并发数
+     */
+    public void setLaneLimit(TaskPriority priority, int queueCapacity, int maxRunning) {
+        mLock.lock();
+        try {
+            mQueueCapacity[priority.ordinal()] = queueCapacity;
+            mMaxRunning[priority.ordinal()] = maxRunning;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 预留给最高优先级通道的线程数，其它通道合计最多使用maxPoolSize - reserved个线程
+     */
+    public void setReservedForTopLane(int reserved) {
+        setReservedForLane(TaskPriority.values()[0], reserved);
+    }
+
+    /**
+     * 预留给某通道的线程数，比它优先级低的通道合计最多使用
+     * maxPoolSize减去它和更高优先级通道预留数之后的线程。
+     * 优先级更高的通道仍然可以使用这些线程
+     */
+    public void setReservedForLane(TaskPriority priority, int reserved) {
+        mLock.lock();
+        try {
+            mReserved[priority.ordinal()] = reserved;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(command, TaskPriority.NORMAL);
+    }
+
+    /**
+     * 提交任务到对应的通道
+     */
+    public void execute(Runnable command, TaskPriority priority) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        int lane = priority.ordinal();
+        Runnable discarded = null;
+        Thread newWorker = null;
+        mLock.lock();
+        try {
+            LinkedList<Queued> queue = mQueues.get(lane);
+            if (queue.size() >= mQueueCapacity[lane]) {
+                discarded = queue.removeFirst().command;
+                mDiscardCount++;
+                sDiscards[lane].inc();
+            }
+            queue.addLast(new Queued(command));
+            if (mIdleCount == 0 && mPoolSize < mMaxPoolSize) {
+                mPoolSize++;
+                newWorker = mThreadFactory.newThread(new Worker());
+            } else {
+                mHasWork.signal();
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (newWorker != null) {
+            newWorker.start();
+        }
+        if (discarded instanceof Future) {
+            // 被挤掉的任务走取消流程，调用方会收到onCancelled
+            ((Future<?>) discarded).cancel(false);
+        }
+    }
+
+    /**
+     * 从队列中移除还未执行的任务
+     *
+     * @return 是否移除成功
+     */
+    public boolean remove(Runnable command) {
+        mLock.lock();
+        try {
+            for (LinkedList<Queued> queue : mQueues) {
+                Iterator<Queued> iterator = queue.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().command == command) {
+                        iterator.remove();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 清空某通道中等待执行的任务
+     */
+    public void clear(TaskPriority priority) {
+        mLock.lock();
+        try {
+            mQueues.get(priority.ordinal()).clear();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 队列满被丢弃的任务数
+     */
+    public int getDiscardCount() {
+        mLock.lock();
+        try {
+            return mDiscardCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 在锁内调用，取出可执行的最高优先级任务
+     */
+    private Runnable pollLocked(int[] laneOut) {
+        // 当前通道及之后的通道合计可以使用的线程数，每过一个通道减去它的预留
+        int available = mMaxPoolSize;
+        for (int i = 0; i < LANE_COUNT; i++) {
+            if (i > 0 && mTotalRunning >= available) {
+                return null;
+            }
+            available -= mReserved[i];
+            if (mRunning[i] < mMaxRunning[i] && !mQueues.get(i).isEmpty()) {
+                mRunning[i]++;
+                mTotalRunning++;
+                laneOut[0] = i;
+                Queued queued = mQueues.get(i).removeFirst();
+                sQueueWait[i].recordSince(queued.enqueuedAt);
+                return queued.command;
+            }
+        }
+        return null;
+    }
+
+    private static class Queued {
+        final Runnable command;
+        final long enqueuedAt = System.currentTimeMillis();
+
+        Queued(Runnable command) {
+            this.command = command;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            int[] lane = new int[1];
+            boolean completedAbruptly = true;
+            try {
+                Runnable task;
+                while ((task = takeTask(lane)) != null) {
+                    // 清掉上一个任务被cancel(true)留下的中断状态，避免新任务一开始就被中断
+                    Thread.interrupted();
+                    try {
+                        task.run();
+                    } finally {
+                        mLock.lock();
+                        try {
+                            mRunning[lane[0]]--;
+                            mTotalRunning--;
+                            // 通道并发数释放，可能有等待中的任务可以执行了
+                            mHasWork.signal();
+                        } finally {
+                            mLock.unlock();
+                        }
+                    }
+                }
+                completedAbruptly = false;
+            } finally {
+                if (completedAbruptly) {
+                    // 任务抛出异常，线程退出，异常交给默认的UncaughtExceptionHandler
+                    mLock.lock();
+                    try {
+                        mPoolSize--;
+                    } finally {
+                        mLock.unlock();
+                    }
+                }
+            }
+        }
+
+        private Runnable takeTask(int[] lane) {
+            mLock.lock();
+            try {
+                long nanos = mKeepAliveNanos;
+                while (true) {
+                    Runnable task = pollLocked(lane);
+                    if (task != null) {
+                        return task;
+                    }
+                    if (nanos <= 0 && mPoolSize > mCorePoolSize) {
+                        mPoolSize--;
+                        return null;
+                    }
+                    mIdleCount++;
+                    try {
+                        if (mPoolSize > mCorePoolSize) {
+                            nanos = mHasWork.awaitNanos(nanos);
+                        } else {
+                            mHasWork.await();
+                        }
+                    } catch (InterruptedException e) {
+                        // 任务cancel(true)时残留的中断标志，忽略
+                    } finally {
+                        mIdleCount--;
+                    }
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+}
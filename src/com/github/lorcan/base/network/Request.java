@@ -0,0 +1,430 @@
+package com.github.lorcan.base.network;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.mime.FormBodyPart;
+import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 不可变的请求描述，由{@link Builder}构造<br>
+ * 1 方法、url、请求头、请求体和优先级、缓存提示一次确定，{@link HttpUtil#createRequest}直接据此构造http请求<br>
+ * 2 表单和json请求体第一次使用时生成entity并缓存，重试和共享同一个Request的任务都复用它<br>
+ * 3 equals和hashCode只比较方法、url、请求头和请求体，可以作为去重和缓存的key
+ *
+ * @author lorcan
+ */
+public final class Request {
+
+    public enum Method {
+        GET, POST
+    }
+
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    private static final Header[] NO_HEADERS = new Header[0];
+
+    private final Method mMethod;
+
+    private final String mUrl;
+
+    private final Header[] mHeaders;
+
+    private final Body mBody;
+
+    private final TaskPriority mPriority;
+
+    private final boolean mNoCache;
+
+    private int mHash;
+
+    private Request(Builder builder) {
+        mMethod = builder.mBody == null ? Method.GET : Method.POST;
+        mUrl = builder.mUrl;
+        mHeaders = builder.mHeaders.toArray(new Header[builder.mHeaders.size()]);
+        mBody = builder.mBody;
+        mPriority = builder.mPriority;
+        mNoCache = builder.mNoCache;
+    }
+
+    /**
+     * 不带请求头的get请求
+     */
+    public static Request get(String url) {
+        return new Builder(url).build();
+    }
+
+    public Method getMethod() {
+        return mMethod;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * 返回副本，没有请求头时为空数组
+     */
+    public Header[] getHeaders() {
+        return mHeaders.length == 0 ? NO_HEADERS : mHeaders.clone();
+    }
+
+    /**
+     * get请求为null
+     */
+    public Body getBody() {
+        return mBody;
+    }
+
+    /**
+     * 执行的优先级提示，null时由任务决定
+     */
+    public TaskPriority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * 是否要求绕过中间缓存，为true时带Cache-Control: no-cache
+     */
+    public boolean isNoCache() {
+        return mNoCache;
+    }
+
+    /**
+     * 请求体是否流式写出，如文件上传，这类请求不设默认截止时间
+     */
+    public boolean isStreaming() {
+        return mBody != null && mBody.isStreaming();
+    }
+
+    /**
+     * 为一次执行创建multipart请求体，extra可为null，加在请求自带的part之后，不修改Request。
+     * 兼容旧接口包装的MultipartEntity时extra直接加入其中；不是multipart请求体时返回null
+     */
+    MultipartEntity newMultipartEntity(FormBodyPart extra) {
+        if (mBody instanceof MultipartBody) {
+            return ((MultipartBody) mBody).newEntity(extra);
+        }
+        if (mBody instanceof EntityBody) {
+            MultipartEntity entity = ((EntityBody) mBody).mEntity;
+            if (extra != null) {
+                entity.addPart(extra);
+            }
+            return entity;
+        }
+        return null;
+    }
+
+    /**
+     * 按顺序设置到http请求上，HttpUtil构造请求时调用
+     */
+    void applyHeaders(HttpRequest request) {
+        for (Header header : mHeaders) {
+            request.addHeader(header);
+        }
+        if (mNoCache) {
+            request.setHeader(HEADER_CACHE_CONTROL, "no-cache");
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Request)) {
+            return false;
+        }
+        Request other = (Request) o;
+        if (mMethod != other.mMethod || !mUrl.equals(other.mUrl)
+                || mHeaders.length != other.mHeaders.length) {
+            return false;
+        }
+        for (int i = 0; i < mHeaders.length; i++) {
+            if (!mHeaders[i].getName().equalsIgnoreCase(other.mHeaders[i].getName())
+                    || !equal(mHeaders[i].getValue(), other.mHeaders[i].getValue())) {
+                return false;
+            }
+        }
+        return equal(mBody, other.mBody);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = mHash;
+        if (hash == 0) {
+            hash = mMethod.hashCode() * 31 + mUrl.hashCode();
+            for (Header header : mHeaders) {
+                String value = header.getValue();
+                hash = hash * 31 + header.getName().toLowerCase().hashCode();
+                hash = hash * 31 + (value == null ? 0 : value.hashCode());
+            }
+            hash = hash * 31 + (mBody == null ? 0 : mBody.hashCode());
+            mHash = hash;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return mMethod + " " + mUrl;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * 请求体
+     */
+    public static abstract class Body {
+
+        /**
+         * url编码的表单，参数列表被复制
+         */
+        public static Body form(List<? extends NameValuePair> pairs) {
+            return new FormBody(pairs);
+        }
+
+        /**
+         * json请求体，构造时就序列化，之后修改json不影响请求
+         *
+         * @param gzip 超过{@link HttpUtil#GZIP_MIN_BODY_LENGTH}时gzip压缩，需服务端支持
+         */
+        public static Body json(JSONObject json, boolean gzip) {
+            return new JsonBody(json.toString(), gzip);
+        }
+
+        /**
+         * multipart请求体，part列表被复制，每次执行新建entity，流式写出。
+         * part的内容需可重复写出（如文件），按part引用比较
+         */
+        public static Body multipart(List<FormBodyPart> parts) {
+            return new MultipartBody(parts);
+        }
+
+        /**
+         * 包装调用方的MultipartEntity，只用于兼容旧的RequestTask构造方法，不能在任务间共享
+         */
+        static Body wrap(MultipartEntity entity) {
+            return new EntityBody(entity);
+        }
+
+        /**
+         * 创建或返回缓存的entity，可重复写出的entity在重试间复用
+         */
+        public abstract HttpEntity getEntity() throws IOException;
+
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    private static final class FormBody extends Body {
+
+        private final List<NameValuePair> mPairs;
+
+        private volatile HttpEntity mEntity;
+
+        FormBody(List<? extends NameValuePair> pairs) {
+            mPairs = pairs == null || pairs.isEmpty() ? Collections.<NameValuePair>emptyList()
+                    : Collections.unmodifiableList(new ArrayList<NameValuePair>(pairs));
+        }
+
+        @Override
+        public HttpEntity getEntity() throws IOException {
+            if (mPairs.isEmpty()) {
+                return null;
+            }
+            HttpEntity entity = mEntity;
+            if (entity == null) {
+                entity = new UrlEncodedFormEntity(mPairs, HTTP.UTF_8);
+                mEntity = entity;
+            }
+            return entity;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FormBody && mPairs.equals(((FormBody) o).mPairs);
+        }
+
+        @Override
+        public int hashCode() {
+            return mPairs.hashCode();
+        }
+    }
+
+    private static final class JsonBody extends Body {
+
+        private final String mJson;
+
+        private final boolean mGzip;
+
+        private volatile HttpEntity mEntity;
+
+        JsonBody(String json, boolean gzip) {
+            mJson = json;
+            mGzip = gzip;
+        }
+
+        @Override
+        public HttpEntity getEntity() throws IOException {
+            HttpEntity entity = mEntity;
+            if (entity == null) {
+                if (mGzip && mJson.length() >= HttpUtil.GZIP_MIN_BODY_LENGTH) {
+                    entity = HttpUtil.createGzipEntity(mJson, HTTP.DEFAULT_CONTENT_CHARSET);
+                } else {
+                    entity = new StringEntity(mJson);
+                }
+                mEntity = entity;
+            }
+            return entity;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof JsonBody)) {
+                return false;
+            }
+            JsonBody other = (JsonBody) o;
+            return mGzip == other.mGzip && mJson.equals(other.mJson);
+        }
+
+        @Override
+        public int hashCode() {
+            return mJson.hashCode() * 31 + (mGzip ? 1 : 0);
+        }
+    }
+
+    private static final class MultipartBody extends Body {
+
+        private final List<FormBodyPart> mParts;
+
+        MultipartBody(List<FormBodyPart> parts) {
+            mParts = parts == null || parts.isEmpty() ? Collections.<FormBodyPart>emptyList()
+                    : Collections.unmodifiableList(new ArrayList<FormBodyPart>(parts));
+        }
+
+        /**
+         * 每次返回新的entity
+         */
+        @Override
+        public HttpEntity getEntity() {
+            return newEntity(null);
+        }
+
+        MultipartEntity newEntity(FormBodyPart extra) {
+            MultipartEntity entity = new MultipartEntity();
+            for (FormBodyPart part : mParts) {
+                entity.addPart(part);
+            }
+            if (extra != null) {
+                entity.addPart(extra);
+            }
+            return entity;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MultipartBody && mParts.equals(((MultipartBody) o).mParts);
+        }
+
+        @Override
+        public int hashCode() {
+            return mParts.hashCode();
+        }
+    }
+
+    private static final class EntityBody extends Body {
+
+        private final MultipartEntity mEntity;
+
+        EntityBody(MultipartEntity entity) {
+            mEntity = entity;
+        }
+
+        @Override
+        public HttpEntity getEntity() {
+            return mEntity;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+    }
+
+    public static final class Builder {
+
+        private final String mUrl;
+
+        private final List<Header> mHeaders = new ArrayList<Header>(2);
+
+        private Body mBody;
+
+        private TaskPriority mPriority;
+
+        private boolean mNoCache;
+
+        public Builder(String url) {
+            if (url == null) {
+                throw new IllegalArgumentException("url is null");
+            }
+            mUrl = url;
+        }
+
+        public Builder header(String name, String value) {
+            mHeaders.add(new BasicHeader(name, value));
+            return this;
+        }
+
+        /**
+         * 追加请求头，可为null
+         */
+        public Builder headers(Header[] headers) {
+            if (headers != null) {
+                Collections.addAll(mHeaders, headers);
+            }
+            return this;
+        }
+
+        /**
+         * 设置请求体，方法变为POST
+         */
+        public Builder post(Body body) {
+            mBody = body;
+            return this;
+        }
+
+        public Builder priority(TaskPriority priority) {
+            mPriority = priority;
+            return this;
+        }
+
+        public Builder noCache() {
+            mNoCache = true;
+            return this;
+        }
+
+        public Request build() {
+            return new Request(this);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.lorcan.base.network;
+
+/**
+ * 请求没有得到解析结果时{@link RequestFuture}的失败原因，带上http状态码和解析出的错误信息
+ *
+ * @author lorcan
+ */
+public class RequestException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int mStateCode;
+
+    private final Object mErrorObject;
+
+    public RequestException(int stateCode, Object errorObject) {
+        super("request failed, state code " + stateCode);
+        mStateCode = stateCode;
+        mErrorObject = errorObject;
+    }
+
+    /**
+     * http状态码，网络错误时为-1
+     */
+    public int getStateCode() {
+        return mStateCode;
+    }
+
+    /**
+     * 400时服务端返回的错误信息的解析结果，可为null
+     */
+    public Object getErrorObject() {
+        return mErrorObject;
+    }
+}
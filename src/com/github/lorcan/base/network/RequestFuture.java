@@ -0,0 +1,459 @@
+package com.github.lorcan.base.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 可组合的异步结果<br>
+ * 1 {@link #map}、{@link #flatMap}在上游完成的线程上执行转换，串联请求不经过UI线程<br>
+ * 2 {@link #allOf}并行等待多个请求，总耗时为其中最慢的一个；{@link #anyOf}取最先成功的一个<br>
+ * 3 取消向上游传递：取消组合出来的结果会取消它依赖的请求，不再需要的请求（anyOf落败的、
+ * allOf中其它请求失败后剩下的、超时的）也会被取消，abort掉进行中的连接<br>
+ * 4 结果通过{@link #addCallback}回调，默认在UI线程
+ *
+ * @author lorcan
+ */
+public class RequestFuture<T> implements Future<T>, ICancelable {
+
+    /**
+     * 结果回调
+     */
+    public interface Callback<T> {
+
+        void onSuccess(T result);
+
+        /**
+         * 失败、超时或被取消，取消时error为{@link CancellationException}
+         */
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * 结果转换，抛出的异常作为转换后结果的失败原因
+     */
+    public interface Function<A, B> {
+
+        B apply(A input) throws Exception;
+    }
+
+    private static final int PENDING = 0;
+
+    private static final int SUCCEEDED = 1;
+
+    private static final int FAILED = 2;
+
+    private static final int CANCELLED = 3;
+
+    private int mState = PENDING;
+
+    private T mValue;
+
+    private Throwable mError;
+
+    private List<Runnable> mListeners = new ArrayList<Runnable>(2);
+
+    /**
+     * 取消时一起取消的上游请求
+     */
+    private final List<ICancelable> mUpstream = new ArrayList<ICancelable>(1);
+
+    /**
+     * 在任务通道上执行callable，结果写入返回的future，取消时中断执行
+     */
+    public static <T> RequestFuture<T> submit(Callable<T> callable, TaskPriority priority) {
+        final RequestFuture<T> future = new RequestFuture<T>();
+        final FutureTask<T> task = new FutureTask<T>(callable) {
+            @Override
+            protected void done() {
+                try {
+                    future.set(get());
+                } catch (ExecutionException e) {
+                    future.setException(e.getCause());
+                } catch (CancellationException e) {
+                    // 包括通道队列满被丢弃
+                    future.cancel(false);
+                } catch (InterruptedException e) {
+                    future.setException(e);
+                }
+            }
+        };
+        future.dependsOn(new ICancelable() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                TaskRuntime.executor().remove(task);
+                return task.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return task.isCancelled();
+            }
+        });
+        TaskRuntime.executor().execute(task, priority);
+        return future;
+    }
+
+    /**
+     * 全部成功时按顺序返回各自的结果；任意一个失败或被取消时立即失败，并取消其余的
+     */
+    public static <T> RequestFuture<List<T>> allOf(final List<? extends RequestFuture<? extends T>> futures) {
+        final RequestFuture<List<T>> result = new RequestFuture<List<T>>();
+        if (futures.isEmpty()) {
+            result.set(Collections.<T>emptyList());
+            return result;
+        }
+        final Object[] values = new Object[futures.size()];
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            final RequestFuture<? extends T> future = futures.get(i);
+            final int index = i;
+            result.dependsOn(future);
+            future.addListener(new Runnable() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void run() {
+                    if (future.isSucceeded()) {
+                        values[index] = future.mValue;
+                        if (remaining.decrementAndGet() == 0) {
+                            result.set((List<T>) Arrays.asList(values));
+                        }
+                    } else if (result.setException(future.failureCause())) {
+                        result.cancelUpstream();
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * 返回最先成功的结果并取消其余的；全部失败时以最后一个失败原因失败
+     */
+    public static <T> RequestFuture<T> anyOf(final List<? extends RequestFuture<? extends T>> futures) {
+        final RequestFuture<T> result = new RequestFuture<T>();
+        if (futures.isEmpty()) {
+            result.setException(new IllegalArgumentException("no futures"));
+            return result;
+        }
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (final RequestFuture<? extends T> future : futures) {
+            result.dependsOn(future);
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isSucceeded()) {
+                        if (result.set(future.mValue)) {
+                            result.cancelUpstream();
+                        }
+                    } else if (remaining.decrementAndGet() == 0) {
+                        result.setException(future.failureCause());
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * 成功时用fn转换结果，在完成的线程上执行，fn应该很轻
+     */
+    public <R> RequestFuture<R> map(final Function<? super T, ? extends R> fn) {
+        final RequestFuture<R> result = new RequestFuture<R>();
+        result.dependsOn(this);
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (!isSucceeded()) {
+                    result.propagateFailure(RequestFuture.this);
+                    return;
+                }
+                try {
+                    result.set(fn.apply(mValue));
+                } catch (Throwable e) {
+                    result.setException(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 成功时用结果发起下一个异步操作，如用第一个请求的返回值请求第二个接口
+     */
+    public <R> RequestFuture<R> flatMap(final Function<? super T, RequestFuture<R>> fn) {
+        final RequestFuture<R> result = new RequestFuture<R>();
+        result.dependsOn(this);
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (!isSucceeded()) {
+                    result.propagateFailure(RequestFuture.this);
+                    return;
+                }
+                final RequestFuture<R> next;
+                try {
+                    next = fn.apply(mValue);
+                } catch (Throwable e) {
+                    result.setException(e);
+                    return;
+                }
+                if (!result.dependsOn(next)) {
+                    // 转换期间result已被取消，next已随之取消
+                    return;
+                }
+                next.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (next.isSucceeded()) {
+                            result.set(next.mValue);
+                        } else {
+                            result.propagateFailure(next);
+                        }
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 超过timeoutMs还没完成时以{@link TimeoutException}失败，并取消上游。
+     * 超时后的回调链在{@link TaskRuntime#backgroundExecutor()}上执行，不占用共享的计时线程
+     */
+    public RequestFuture<T> withTimeout(long timeoutMs) {
+        final RequestFuture<T> result = new RequestFuture<T>();
+        result.dependsOn(this);
+        final Runnable expire = new Runnable() {
+            @Override
+            public void run() {
+                if (result.setException(new TimeoutException("timed out"))) {
+                    result.cancelUpstream();
+                }
+            }
+        };
+        final TimerTask timer = new TimerTask() {
+            @Override
+            public void run() {
+                // 下游的listener和direct回调可能抛异常，抛在计时线程上会让Timer永久失效
+                TaskRuntime.backgroundExecutor().execute(expire);
+            }
+        };
+        TaskRuntime.schedule(timer, timeoutMs);
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                timer.cancel();
+                if (isSucceeded()) {
+                    result.set(mValue);
+                } else {
+                    result.propagateFailure(RequestFuture.this);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 在UI线程回调
+     */
+    public RequestFuture<T> addCallback(Callback<? super T> callback) {
+        return addCallback(callback, TaskRuntime.mainExecutor());
+    }
+
+    /**
+     * 完成后在executor上回调，已完成时立即投递
+     */
+    public RequestFuture<T> addCallback(final Callback<? super T> callback, final Executor executor) {
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isSucceeded()) {
+                            callback.onSuccess(mValue);
+                        } else {
+                            callback.onFailure(failureCause());
+                        }
+                    }
+                });
+            }
+        });
+        return this;
+    }
+
+    /**
+     * 设置成功结果
+     *
+     * @return 已经完成时返回false
+     */
+    public boolean set(T value) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mState != PENDING) {
+                return false;
+            }
+            mValue = value;
+            mState = SUCCEEDED;
+            listeners = finishLocked();
+        }
+        runListeners(listeners);
+        return true;
+    }
+
+    /**
+     * 设置失败原因
+     *
+     * @return 已经完成时返回false
+     */
+    public boolean setException(Throwable error) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mState != PENDING) {
+                return false;
+            }
+            mError = error;
+            mState = FAILED;
+            listeners = finishLocked();
+        }
+        runListeners(listeners);
+        return true;
+    }
+
+    /**
+     * 取消并取消所有上游请求，进行中的连接会被abort
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mState != PENDING) {
+                return false;
+            }
+            mState = CANCELLED;
+            listeners = finishLocked();
+        }
+        cancelUpstream();
+        runListeners(listeners);
+        return true;
+    }
+
+    /**
+     * 取消时一起取消task，一般为产生该结果的请求任务
+     *
+     * @return 已被取消时返回false，同时取消task
+     */
+    public boolean dependsOn(ICancelable task) {
+        synchronized (this) {
+            if (mState != CANCELLED) {
+                mUpstream.add(task);
+                return true;
+            }
+        }
+        task.cancel(true);
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (mState == PENDING) {
+            wait();
+        }
+        return getLocked();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState == PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getLocked();
+    }
+
+    private T getLocked() throws ExecutionException {
+        if (mState == CANCELLED) {
+            throw new CancellationException();
+        }
+        if (mState == FAILED) {
+            throw new ExecutionException(mError);
+        }
+        return mValue;
+    }
+
+    private synchronized boolean isSucceeded() {
+        return mState == SUCCEEDED;
+    }
+
+    private synchronized Throwable failureCause() {
+        return mState == CANCELLED ? new CancellationException() : mError;
+    }
+
+    private void propagateFailure(RequestFuture<?> source) {
+        if (source.isCancelled()) {
+            cancel(false);
+        } else {
+            setException(source.failureCause());
+        }
+    }
+
+    private void cancelUpstream() {
+        ICancelable[] upstream;
+        synchronized (this) {
+            upstream = mUpstream.toArray(new ICancelable[mUpstream.size()]);
+        }
+        for (ICancelable task : upstream) {
+            task.cancel(true);
+        }
+    }
+
+    private List<Runnable> finishLocked() {
+        List<Runnable> listeners = mListeners;
+        mListeners = null;
+        notifyAll();
+        return listeners;
+    }
+
+    private void addListener(Runnable listener) {
+        synchronized (this) {
+            if (mState == PENDING) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private static void runListeners(List<Runnable> listeners) {
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+}
@@ -2,8 +2,11 @@ package com.github.lorcan.base.network;
 
 import android.content.Context;
 
+import com.github.lorcan.base.image.ImageUtil;
 import com.github.lorcan.base.parser.IParser;
 import com.github.lorcan.base.utils.LogUtil;
+import com.github.lorcan.base.utils.Metrics;
+import com.github.lorcan.base.utils.Tracer;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -11,11 +14,15 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.mime.FormBodyPart;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.List;
 
 
@@ -25,28 +32,57 @@ public class RequestTask extends GenericTask {
 
     /**
      * 一般get请求
+     *
+     * @deprecated 用{@link #setRequest}设置{@link Request}
      */
+    @Deprecated
     public static final String HTTP_GET = "GET";
 
     /**
      * 一般post请求
+     *
+     * @deprecated 用{@link Request.Body#form}
      */
+    @Deprecated
     public static final String HTTP_POST = "POST";
 
     /**
      * post请求,传json参数
+     *
+     * @deprecated 用{@link Request.Body#json}
      */
+    @Deprecated
     public static final String HTTP_POST_JSON = "POST_JSON";
 
     /**
      * post请求，传递文件
+     *
+     * @deprecated 用{@link Request.Body#multipart}
      */
+    @Deprecated
     public static final String HTTP_POST_FILE = "POST_FILE";
 
     public static final String PARAM_URL = "url";
 
+    /**
+     * 未设置截止时间时，普通请求从开始执行算起的总时限，文件上传不限
+     */
+    public static final long DEFAULT_TIMEOUT_MS = 30000;
+
+    /**
+     * @deprecated 用{@link #setRequest}设置{@link Request}
+     */
+    @Deprecated
     public static final String PARAM_HTTP_METHOD = "httpmethod";
 
+    /**
+     * 开始执行到得到结果，包括重试和退避等待
+     */
+    private static final Metrics.Histogram sTotalTime = Metrics.histogram("request.total");
+
+    private static final Metrics.Histogram sParseTime = Metrics.histogram("request.parse");
+
+    private static final Metrics.Counter sRetries = Metrics.counter("request.retry");
 
     /**
      * 解析器
@@ -59,6 +95,8 @@ public class RequestTask extends GenericTask {
 
     private TaskParams mParams;
 
+    private Request mRequest;
+
     private String mType;
 
     private String mUrl;
@@ -76,19 +114,66 @@ public class RequestTask extends GenericTask {
 
     private MultipartEntity mMultipartEntity;
 
+    private String mImageField;
+
+    private File mImageFile;
+
+    private int mImageMaxSide;
+
+    private int mImageQuality;
+
+    /**
+     * json请求体是否gzip压缩
+     */
+    private boolean mGzipRequestBody;
+
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+
+    private Deadline mDeadline;
+
+    /**
+     * GET请求是否对冲
+     */
+    private boolean mHedged;
+
     public RequestTask(Context context, IParser parser, Header[] headers) {
         super();
         this.mContext = context;
         this.mParser = parser;
         this.mHeaders = headers;
+        // 默认按发起请求的Context分组，Activity退出时可整组取消
+        setTag(context);
     }
 
+    /**
+     * @deprecated 用{@link #setRequest}设置{@link Request}，请求体用{@link Request.Body#multipart}
+     */
+    @Deprecated
     public RequestTask(Context context, IParser parser, MultipartEntity multipartEntity, Header[] headers) {
         this(context, parser, headers);
         this.mMultipartEntity = multipartEntity;
     }
 
 
+    public Request getRequest() {
+        return mRequest;
+    }
+
+    /**
+     * 设置要执行的请求，之后不带参数调用execute()；Request带优先级提示时同时设置任务优先级。
+     * 设置后TaskParams和setPostParams等旧的参数不再生效
+     */
+    public void setRequest(Request request) {
+        mRequest = request;
+        if (request != null && request.getPriority() != null) {
+            setPriority(request.getPriority());
+        }
+    }
+
+    /**
+     * @deprecated 用{@link Request.Body#form}
+     */
+    @Deprecated
     public void setPostParams(List<NameValuePair> params) {
         mPostParams = params;
     }
@@ -97,14 +182,91 @@ public class RequestTask extends GenericTask {
         return mParams;
     }
 
+    /**
+     * @deprecated 用{@link Request.Body#json}
+     */
+    @Deprecated
     public JSONObject getmJSONParams() {
         return mJSONParams;
     }
 
+    /**
+     * @deprecated 用{@link Request.Body#json}
+     */
+    @Deprecated
     public void setmJSONParams(JSONObject mJSONParams) {
         this.mJSONParams = mJSONParams;
     }
 
+    /**
+     * @deprecated 用{@link Request.Body#json}
+     */
+    @Deprecated
+    public boolean isGzipRequestBody() {
+        return mGzipRequestBody;
+    }
+
+    /**
+     * 大的json请求体使用gzip压缩上传，需服务端支持Content-Encoding: gzip
+     *
+     * @deprecated 用{@link Request.Body#json}
+     */
+    @Deprecated
+    public void setGzipRequestBody(boolean gzipRequestBody) {
+        this.mGzipRequestBody = gzipRequestBody;
+    }
+
+    /**
+     * 上传图片，执行时在后台缩放并重新压缩后作为mImageField加入本次执行的multipart请求体，
+     * 请求体需为{@link Request.Body#multipart}，Request本身不被修改
+     *
+     * @param field   表单字段名
+     * @param image   原图
+     * @param maxSide 长边的最大像素
+     * @param quality JPEG质量
+     */
+    public void setUploadImage(String field, File image, int maxSide, int quality) {
+        mImageField = field;
+        mImageFile = image;
+        mImageMaxSide = maxSide;
+        mImageQuality = quality;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * 失败重试策略，默认{@link RetryPolicy#DEFAULT}，非幂等的POST只在连接失败时重试
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.mRetryPolicy = retryPolicy == null ? RetryPolicy.NONE : retryPolicy;
+    }
+
+    public Deadline getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * 截止时间，取连接、建连、读响应、解析和重试等待都在这之内，到期时abort请求。
+     * 不设置时普通请求为开始执行后{@link #DEFAULT_TIMEOUT_MS}，在提交前创建则包括排队时间
+     */
+    public void setDeadline(Deadline deadline) {
+        this.mDeadline = deadline;
+    }
+
+    public boolean isHedged() {
+        return mHedged;
+    }
+
+    /**
+     * 对延迟敏感的GET请求开启对冲：超过p95还没有响应时在另一个连接上再发一份，
+     * 先响应的一方胜出，对冲总量有上限
+     */
+    public void setHedged(boolean hedged) {
+        this.mHedged = hedged;
+    }
+
     public String getType() {
         return mType;
     }
@@ -133,49 +295,145 @@ public class RequestTask extends GenericTask {
         }
     }
 
+    /**
+     * 取消任务，不再回调listener，进行中的请求会被abort
+     */
     public void cancel() {
+        cancel(true);
         onCancelled();
     }
 
     @Override
     protected TaskResult doInBackground(TaskParams... params) {
         TaskResult result = new TaskResult(-1, this, null);
-        mParams = params[0];
-        if (mParams == null) {
-            LogUtil.e(TAG, "params is null");
-            return result;
+        mParams = params.length > 0 ? params[0] : null;
+        Request request = mRequest;
+        if (request == null) {
+            if (mParams == null) {
+                LogUtil.e(TAG, "params is null");
+                return result;
+            }
+            request = toRequest(mParams);
+            if (request == null) {
+                return result;
+            }
+            mRequest = request;
         }
 
+        mUrl = request.getUrl();
+        LogUtil.i(TAG, "request url: %s", mUrl);
+        getTrace().setLabel(mUrl);
+
+        Deadline deadline = mDeadline;
+        if (deadline == null && !request.isStreaming()) {
+            deadline = Deadline.after(DEFAULT_TIMEOUT_MS);
+        }
+        getAbortHandle().setDeadline(deadline);
+        long start = System.currentTimeMillis();
+        File uploadImage = null;
+        try {
+            // 流式请求体每次执行新建一个，重试时复用，Request本身不被修改
+            HttpEntity streamEntity = null;
+            if (request.isStreaming()) {
+                FormBodyPart imagePart = null;
+                if (mImageFile != null) {
+                    // 只压缩一次，重试时复用
+                    uploadImage = ImageUtil.compressForUpload(mImageFile, mContext.getCacheDir(),
+                            mImageMaxSide, mImageQuality);
+                    if (uploadImage == null) {
+                        // 去不掉元数据时不上传原图
+                        LogUtil.e(TAG, "cannot prepare image for upload: " + mImageFile);
+                        return result;
+                    }
+                    imagePart = new FormBodyPart(mImageField,
+                            new FileChannelBody(uploadImage, "image/jpeg"));
+                }
+                streamEntity = request.newMultipartEntity(imagePart);
+            }
+            for (int attempt = 1; ; attempt++) {
+                long delay = execute(request, streamEntity, attempt, result);
+                if (delay < 0 || isCancelled()) {
+                    break;
+                }
+                LogUtil.w(TAG, "retry " + mUrl + " in " + delay + "ms, attempt " + attempt);
+                sRetries.inc();
+                RetryPolicy.sleep(delay, getAbortHandle());
+            }
+        } catch (InterruptedIOException e) {
+            LogUtil.d(TAG, "cancelled while waiting to retry");
+        } finally {
+            if (uploadImage != null) {
+                uploadImage.delete();
+            }
+            if (deadline != null && deadline.isExpired()) {
+                LogUtil.w(TAG, "deadline exceeded: " + mUrl);
+            }
+            getAbortHandle().setDeadline(null);
+            sTotalTime.recordSince(start);
+        }
 
-        mUrl = mParams.getString(PARAM_URL);
-        LogUtil.i(TAG, "request url: " + mUrl);
+        return result;
+    }
 
+    /**
+     * 执行一次请求，结果写入result
+     *
+     * @param streamEntity 流式请求体，非流式请求为null
+     * @return 需要重试时返回等待时间，否则返回-1
+     */
+    private long execute(Request req, HttpEntity streamEntity, int attempt, TaskResult result) {
         HttpClient client = null;
-        HttpResponse response;
+        HttpUriRequest request = null;
+        HttpResponse response = null;
         HttpEntity entity;
+        BodyInputStream body = null;
+        String host = null;
+        Tracer.Trace trace = getTrace();
+        result.stateCode = -1;
         try {
-
+            long clientStart = trace.now();
             client = HttpUtil.getHttpClient(mContext);
-            String method = mParams.getString(PARAM_HTTP_METHOD);
-            if (HTTP_POST.equals(method)) {
-                response = HttpUtil.doPostRequest(client, mUrl, mPostParams, mHeaders);
-            } else if (HTTP_POST_JSON.equals(method)) {
-                response = HttpUtil.doJsonPostRequest(client, mUrl, mJSONParams, mHeaders);
-            } else if (HTTP_POST_FILE.equals(method)) {
-                response = HttpUtil.doFilePostRequest(client, mUrl, mMultipartEntity, mHeaders);
-            } else if (HTTP_GET.equals(method)) {
-                response = HttpUtil.doGetRequest(client, mUrl, mHeaders);
+            request = createRequest(req, streamEntity);
+            trace.span("client", clientStart);
+            host = request.getURI().getHost();
+            if (attempt == 1) {
+                RetryBudget.onRequest(host);
+            }
+            // 登记后cancel(true)会abort该请求，阻塞的读写立刻返回
+            getAbortHandle().register(request);
+            if (mHedged && req.getMethod() == Request.Method.GET) {
+                HedgedRequest hedged = new HedgedRequest(client, request, createRequest(req, null),
+                        getAbortHandle());
+                try {
+                    response = hedged.execute();
+                } finally {
+                    // 之后按胜出的请求注销和释放连接
+                    request = hedged.getWinner();
+                }
             } else {
-                throw new NoSuchMethodException("没有该方法：" + method);
+                response = HttpUtil.execute(client, request);
             }
             int stateCode = response.getStatusLine().getStatusCode();
             result.stateCode = stateCode;
+            if (mRetryPolicy.shouldRetry(attempt, request.getMethod(), host, stateCode)) {
+                return mRetryPolicy.getDelay(attempt, response);
+            }
             if (stateCode == HttpStatus.SC_OK
                     || stateCode == HttpStatus.SC_PARTIAL_CONTENT) {
                 entity = response.getEntity();
                 InputStream inputStream = entity.getContent();
                 if (inputStream != null && mParser != null) {
-                    Object obj = mParser.parse(inputStream);
+                    // 解析边读边解，包括读响应体的时间
+                    long parseStart = System.currentTimeMillis();
+                    long traceStart = trace.now();
+                    body = new BodyInputStream(inputStream);
+                    Object obj = mParser.parse(body);
+                    trace.span("read+parse", traceStart);
+                    sParseTime.recordSince(parseStart);
+                    if (body.getError() != null) {
+                        // 解析器吞掉了读流的异常，响应体不完整，按io失败处理
+                        throw body.getError();
+                    }
                     result.stateCode = HttpStatus.SC_OK;
                     result.retObj = obj;
                 }
@@ -184,23 +442,77 @@ public class RequestTask extends GenericTask {
                     entity = response.getEntity();
                     InputStream inputStream = entity.getContent();
                     if (inputStream != null && mParser != null) {
-                        Object obj = mParser.parse(inputStream);
+                        body = new BodyInputStream(inputStream);
+                        Object obj = mParser.parse(body);
+                        if (body.getError() != null) {
+                            throw body.getError();
+                        }
                         result.retObj = obj;
                     }
                 }
             }
-            LogUtil.d(TAG, "result.stateCode:" + stateCode);
+            LogUtil.d(TAG, "result.stateCode:%d", stateCode);
         } catch (IOException e) {
             LogUtil.e(TAG, e.toString());
+            // 没有网络时request为null，不重试
+            if (request != null && !getAbortHandle().isAborted() && !isCancelled()
+                    && mRetryPolicy.shouldRetry(attempt, request.getMethod(), host, e)) {
+                return mRetryPolicy.getDelay(attempt, null);
+            }
         } catch (Exception e) {
             LogUtil.e(TAG, e.toString());
         } finally {
-            if (client != null) {
-                client.getConnectionManager().shutdown();
+            if (request != null) {
+                if (body != null && body.getError() != null) {
+                    // 响应头已计为成功，读响应体失败要补记到熔断器，对冲时request是胜出的一方
+                    HttpUtil.onBodyFailure(request);
+                }
+                getAbortHandle().unregister(request);
+                HttpUtil.releaseConnection(request, response);
             }
         }
+        return -1;
+    }
 
-        return result;
+    /**
+     * 每次尝试都新建请求，已abort或执行过的请求不能再用，请求体在重试间复用
+     */
+    private HttpUriRequest createRequest(Request request, HttpEntity streamEntity)
+            throws IOException {
+        if (streamEntity != null) {
+            // 流式写出请求体，按写出的字节数上报进度
+            HttpEntity body = new CountingEntity(streamEntity, 0, streamEntity.getContentLength(),
+                    progressPublisher(), getAbortHandle());
+            return HttpUtil.createRequest(request, body);
+        }
+        return HttpUtil.createRequest(request);
+    }
+
+    /**
+     * 按旧的TaskParams和setPostParams等参数构造Request，不认识的方法返回null
+     */
+    private Request toRequest(TaskParams params) {
+        String url = params.getString(PARAM_URL);
+        String method = params.getString(PARAM_HTTP_METHOD);
+        if (url == null) {
+            LogUtil.e(TAG, "url is null");
+            return null;
+        }
+        Request.Builder builder = new Request.Builder(url).headers(mHeaders);
+        if (HTTP_POST.equals(method)) {
+            builder.post(Request.Body.form(mPostParams));
+        } else if (HTTP_POST_JSON.equals(method)) {
+            // 没有json时和以前一样发空请求体
+            builder.post(mJSONParams == null ? Request.Body.form(null)
+                    : Request.Body.json(mJSONParams, mGzipRequestBody));
+        } else if (HTTP_POST_FILE.equals(method)) {
+            builder.post(Request.Body.wrap(mMultipartEntity != null ? mMultipartEntity
+                    : new MultipartEntity()));
+        } else if (!HTTP_GET.equals(method)) {
+            LogUtil.e(TAG, "没有该方法：" + method);
+            return null;
+        }
+        return builder.build();
     }
 
 }
@@ -0,0 +1,43 @@
+package com.github.lorcan.base.network;
+
+/**
+ * 按host限制重试量，防止服务端故障时所有客户端一起重试把它压垮<br>
+ * 每个host一个令牌桶（{@link HostBudget}）：每发出一个新请求存入RETRY_RATIO个令牌，
+ * 每次重试取走1个，令牌不足时不再重试。正常情况下偶发的失败都能重试，大面积失败时重试量
+ * 不超过请求量的RETRY_RATIO
+ *
+ * @author lorcan
+ */
+public class RetryBudget {
+
+    /**
+     * 重试量与请求量的比例上限
+     */
+    private static final double RETRY_RATIO = 0.2;
+
+    /**
+     * 桶的容量，也是初始令牌数，允许启动时或空闲后的少量连续重试
+     */
+    private static final double MAX_TOKENS = 10;
+
+    private static final HostBudget sBudget = new HostBudget(RETRY_RATIO, MAX_TOKENS);
+
+    private RetryBudget() {
+    }
+
+    /**
+     * 发出一个新请求（不含重试）时调用
+     */
+    public static void onRequest(String host) {
+        sBudget.onRequest(host);
+    }
+
+    /**
+     * 申请一次重试
+     *
+     * @return 是否还有重试余量
+     */
+    public static boolean tryAcquire(String host) {
+        return sBudget.tryAcquire(host);
+    }
+}
@@ -0,0 +1,201 @@
+package com.github.lorcan.base.network;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * 请求失败后的重试策略<br>
+ * 1 指数退避加随机抖动（full jitter），第n次重试前等待[0, min(maxDelay, baseDelay * 2^n))，
+ * 避免大量客户端同一时刻重试<br>
+ * 2 只自动重试幂等方法；POST等非幂等请求只有在请求还没发出去（连接失败）时才重试<br>
+ * 3 只对连接失败、超时和502/503/504/408/429这类暂时性错误重试，服务端给了Retry-After时按它等待<br>
+ * 4 每次重试都要从{@link RetryBudget}申请，同一host的重试总量有上限
+ *
+ * @author lorcan
+ */
+public class RetryPolicy {
+
+    /**
+     * 不重试
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, false);
+
+    /**
+     * 一般接口请求
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 500, 8000, false);
+
+    /**
+     * 图片下载，失败了用户多半已经滑走，重试间隔短一些
+     */
+    public static final RetryPolicy IMAGE = new RetryPolicy(3, 300, 3000, false);
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private static final long SLEEP_SLICE_MS = 100;
+
+    private static final Random sRandom = new Random();
+
+    private final int mMaxAttempts;
+
+    private final long mBaseDelayMs;
+
+    private final long mMaxDelayMs;
+
+    private final boolean mRetryNonIdempotent;
+
+    /**
+     * @param maxAttempts        最多尝试次数，包括第一次
+     * @param baseDelayMs        第一次重试的退避上限
+     * @param maxDelayMs         退避上限
+     * @param retryNonIdempotent 请求已发出后非幂等方法是否也重试，只有服务端能去重时才设为true
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs,
+                       boolean retryNonIdempotent) {
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mRetryNonIdempotent = retryNonIdempotent;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * 请求抛出异常后是否重试，同意重试时会消耗host的重试余量
+     *
+     * @param attempt 已经尝试的次数，从1开始
+     * @param method  请求方法
+     * @param host    目标host
+     * @param e       异常
+     */
+    public boolean shouldRetry(int attempt, String method, String host, IOException e) {
+        if (attempt >= mMaxAttempts || !isTransient(e)) {
+            return false;
+        }
+        if (!isIdempotent(method) && !mRetryNonIdempotent && !isNotSent(e)) {
+            return false;
+        }
+        return RetryBudget.tryAcquire(host);
+    }
+
+    /**
+     * 收到响应后是否重试，同意重试时会消耗host的重试余量
+     */
+    public boolean shouldRetry(int attempt, String method, String host, int statusCode) {
+        if (attempt >= mMaxAttempts || !isRetryableStatus(statusCode)) {
+            return false;
+        }
+        if (!isIdempotent(method) && !mRetryNonIdempotent) {
+            return false;
+        }
+        return RetryBudget.tryAcquire(host);
+    }
+
+    /**
+     * 第attempt次失败后的等待时间
+     *
+     * @param response 有响应时读取Retry-After，可为null
+     */
+    public long getDelay(int attempt, HttpResponse response) {
+        long retryAfter = parseRetryAfter(response);
+        if (retryAfter >= 0) {
+            return Math.min(retryAfter, mMaxDelayMs);
+        }
+        long ceiling = mBaseDelayMs << Math.min(attempt - 1, 16);
+        ceiling = Math.min(ceiling, mMaxDelayMs);
+        if (ceiling <= 0) {
+            return 0;
+        }
+        synchronized (sRandom) {
+            return (long) (sRandom.nextDouble() * ceiling);
+        }
+    }
+
+    /**
+     * 退避等待，每100毫秒检查一次是否已abort；等完已超过abortHandle的截止时间时直接放弃
+     */
+    public static void sleep(long delayMs, AbortHandle abortHandle) throws InterruptedIOException {
+        Deadline deadline = abortHandle == null ? null : abortHandle.getDeadline();
+        if (deadline != null && deadline.remaining() <= delayMs) {
+            throw new InterruptedIOException("deadline exceeded");
+        }
+        long wakeAt = System.currentTimeMillis() + delayMs;
+        long remain = delayMs;
+        while (remain > 0) {
+            if (abortHandle != null) {
+                abortHandle.checkAborted();
+            }
+            try {
+                Thread.sleep(Math.min(remain, SLEEP_SLICE_MS));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while backing off");
+            }
+            remain = wakeAt - System.currentTimeMillis();
+        }
+        if (abortHandle != null) {
+            abortHandle.checkAborted();
+        }
+    }
+
+    public static boolean isIdempotent(String method) {
+        return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method)
+                || "DELETE".equals(method) || "OPTIONS".equals(method);
+    }
+
+    public static boolean isRetryableStatus(int statusCode) {
+        return statusCode == HttpStatus.SC_BAD_GATEWAY
+                || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE
+                || statusCode == HttpStatus.SC_GATEWAY_TIMEOUT
+                || statusCode == HttpStatus.SC_REQUEST_TIMEOUT
+                || statusCode == SC_TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * 协议错误和证书错误重试也不会好，熔断打开时应快速失败
+     */
+    private static boolean isTransient(IOException e) {
+        return !(e instanceof ClientProtocolException) && !(e instanceof SSLPeerUnverifiedException)
+                && !(e instanceof CircuitOpenException);
+    }
+
+    /**
+     * 请求还没有发到服务端，非幂等请求重试也是安全的
+     */
+    private static boolean isNotSent(IOException e) {
+        return e instanceof ConnectException || e instanceof ConnectTimeoutException
+                || e instanceof UnknownHostException;
+    }
+
+    /**
+     * 只支持秒数格式的Retry-After
+     *
+     * @return 毫秒，没有或无法解析时返回-1
+     */
+    private static long parseRetryAfter(HttpResponse response) {
+        if (response == null) {
+            return -1;
+        }
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.getValue().trim()) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
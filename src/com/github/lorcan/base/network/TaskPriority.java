@@ -0,0 +1,30 @@
+package com.github.lorcan.base.network;
+
+/**
+ * 任务的优先级通道
+ *
+ * @author lorcan
+ */
+public enum TaskPriority {
+    /**
+     * 用户触发、正在等待结果的请求
+     */
+    INTERACTIVE,
+    /**
+     * 一般请求，默认值
+     */
+    NORMAL,
+    /**
+     * 图片加载
+     */
+    IMAGE,
+    /**
+     * 大文件分段下载中并行的段，单独的通道，队列满时挤掉的段由发起下载的线程自己执行，
+     * 不会挤掉图片通道里的任务
+     */
+    SEGMENT,
+    /**
+     * 后台任务，如写日志、预加载
+     */
+    BACKGROUND
+}
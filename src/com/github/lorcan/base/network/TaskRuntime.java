@@ -0,0 +1,162 @@
+package com.github.lorcan.base.network;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 所有异步任务共用的运行时：一个按优先级通道调度的线程池和一个主线程分发器<br>
+ * {@link AbsNormalAsyncTask}和图片加载任务都跑在这里，线程总数受全局预算限制，
+ * 每个通道再按配额分配，避免两个线程池各自扩张到上百个线程
+ *
+ * @author lorcan
+ */
+public final class TaskRuntime {
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 全局线程预算，任务以网络io为主，按cpu核数的2倍左右，限制在6到10之间
+     */
+    private static final int MAXIMUM_POOL_SIZE = Math.max(6, Math.min(CPU_COUNT * 2 + 2, 10));
+
+    private static final int CORE_POOL_SIZE = 2;
+
+    private static final int KEEP_ALIVE = 30;
+
+    /**
+     * 只给交互请求使用的线程数
+     */
+    private static final int RESERVED_FOR_INTERACTIVE = 2;
+
+    /**
+     * 图片、分段下载、后台任务不能占用的线程数，一般请求至少有这些线程可用
+     */
+    private static final int RESERVED_FOR_NORMAL = 2;
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "TaskRuntime #" + mCount.getAndIncrement());
+        }
+    };
+
+    private static final PriorityTaskExecutor sExecutor = new PriorityTaskExecutor(
+            CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE, sThreadFactory);
+
+    static {
+        int shared = MAXIMUM_POOL_SIZE - RESERVED_FOR_INTERACTIVE;
+        sExecutor.setReservedForTopLane(RESERVED_FOR_INTERACTIVE);
+        sExecutor.setReservedForLane(TaskPriority.NORMAL, RESERVED_FOR_NORMAL);
+        sExecutor.setLaneLimit(TaskPriority.INTERACTIVE, 64, MAXIMUM_POOL_SIZE);
+        sExecutor.setLaneLimit(TaskPriority.NORMAL, 32, shared);
+        // 图片通道沿用原图片线程池的队列长度，满了丢弃最老的任务。
+        // 和分段下载、后台任务合计最多shared - RESERVED_FOR_NORMAL个线程，图片再多一般请求也有线程可用
+        sExecutor.setLaneLimit(TaskPriority.IMAGE, 15, shared - RESERVED_FOR_NORMAL);
+        // 分段下载的段单独一个通道，最多占两个线程，满了挤掉的段由下载线程自己执行
+        sExecutor.setLaneLimit(TaskPriority.SEGMENT, 8, 2);
+        sExecutor.setLaneLimit(TaskPriority.BACKGROUND, 16, 1);
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private static final Executor sMainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            postToMain(command);
+        }
+    };
+
+    private static final Executor sDirectExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * 后台回调线程，队列不限长，回调不会像任务通道那样被丢弃。
+     * API 8没有allowCoreThreadTimeOut，线程常驻
+     */
+    private static final ExecutorService sCallbackExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TaskRuntime-callback");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * 截止时间、对冲请求等定时动作共用的计时线程，只做投递和abort这类轻量操作
+     */
+    private static Timer sTimer;
+
+    private TaskRuntime() {
+    }
+
+    /**
+     * 共享的任务线程池
+     */
+    public static PriorityTaskExecutor executor() {
+        return sExecutor;
+    }
+
+    /**
+     * 在主线程执行的Executor
+     */
+    public static Executor mainExecutor() {
+        return sMainExecutor;
+    }
+
+    /**
+     * 在调用线程直接执行的Executor，作为任务回调时在工作线程上回调，
+     * 适合在回调里马上发起下一个请求
+     */
+    public static Executor directExecutor() {
+        return sDirectExecutor;
+    }
+
+    /**
+     * 在一个后台线程按提交顺序执行的Executor，队列不限长，提交的任务不会被丢弃。
+     * 用于不需要UI线程、又要按顺序执行的短小回调，如更新内存缓存、写一两条数据库记录<br>
+     * 所有回调共用这一个线程，一个回调卡住后面的全部回调都要等：
+     * 批量写数据库、读写大文件、网络请求等耗时操作提交到{@link #executor()}的NORMAL或BACKGROUND通道
+     */
+    public static Executor backgroundExecutor() {
+        return sCallbackExecutor;
+    }
+
+    /**
+     * 投递到主线程执行，默认所有任务的结果都经过这一个Handler分发
+     */
+    public static void postToMain(Runnable runnable) {
+        sMainHandler.post(runnable);
+    }
+
+    /**
+     * delayMs毫秒后在计时线程执行task，task不能阻塞
+     */
+    public static void schedule(TimerTask task, long delayMs) {
+        timer().schedule(task, Math.max(0, delayMs));
+    }
+
+    private static synchronized Timer timer() {
+        if (sTimer == null) {
+            sTimer = new Timer("TaskRuntime-timer", true);
+        }
+        return sTimer;
+    }
+
+    public static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+}
@@ -0,0 +1,272 @@
+package com.github.lorcan.base.network;
+
+import android.content.Context;
+
+import com.github.lorcan.base.image.ImageUtil;
+import com.github.lorcan.base.parser.IParser;
+import com.github.lorcan.base.utils.LogUtil;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 分片可续传的文件上传<br>
+ * 1 文件按片PUT到上传会话的url，每片带Content-Range: bytes start-end/total，
+ * 文件通过FileChannel流式读取，不读入内存<br>
+ * 2 服务端每收到一片返回308，Range头为已收到的范围；全部收到后返回200/201和结果<br>
+ * 3 中途断开时先用空请求体（Content-Range: bytes *&#47;total）查询服务端已收到的位置，
+ * 从那里接着传，不会从头开始<br>
+ * 进度通过publishProgress回调{@link IProgressListener}
+ *
+ * @author lorcan
+ */
+public class UploadTask extends GenericTask {
+
+    private static final String TAG = "UploadTask";
+
+    /**
+     * 服务端已收到部分内容，等待后续分片
+     */
+    public static final int SC_RESUME_INCOMPLETE = 308;
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * 没有进展的连续失败次数上限
+     */
+    private static final int MAX_FAILURES_WITHOUT_PROGRESS = 3;
+
+    private static final long FAILURE_DELAY_MS = 1000;
+
+    private final Context mContext;
+
+    private final IParser mParser;
+
+    private final File mFile;
+
+    private final String mMimeType;
+
+    private Header[] mHeaders;
+
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+
+    private long mMaxBytesPerSecond;
+
+    private boolean mResume;
+
+    private int mImageMaxSide;
+
+    private int mImageQuality;
+
+    /**
+     * @param context  the context
+     * @param parser   解析最后一片的响应
+     * @param file     要上传的文件
+     * @param mimeType 文件类型
+     */
+    public UploadTask(Context context, IParser parser, File file, String mimeType) {
+        super();
+        mContext = context;
+        mParser = parser;
+        mFile = file;
+        mMimeType = mimeType;
+        setTag(context);
+    }
+
+    public void setHeaders(Header[] headers) {
+        mHeaders = headers;
+    }
+
+    /**
+     * 每片的大小，移动网络上小一些，失败时重传的代价更小
+     */
+    public void setChunkSize(int chunkSize) {
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * 限制上传速率，0为不限制
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        mMaxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * 继续之前中断的上传会话，开始前先查询服务端已收到的位置
+     */
+    public void setResume(boolean resume) {
+        mResume = resume;
+    }
+
+    /**
+     * 上传前在后台把图片缩放到长边不超过maxSide并重新压缩，见{@link ImageUtil#compressForUpload}<br>
+     * 压缩结果每次重新生成，跨任务续传（setResume）时不要开启
+     */
+    public void setCompressImage(int maxSide, int quality) {
+        mImageMaxSide = maxSide;
+        mImageQuality = quality;
+    }
+
+    /**
+     * 取消任务，不再回调listener，进行中的请求会被abort
+     */
+    public void cancel() {
+        cancel(true);
+        onCancelled();
+    }
+
+    @Override
+    protected TaskResult doInBackground(TaskParams... params) {
+        TaskResult result = new TaskResult(-1, this, null);
+        String url = params[0] == null ? null : params[0].getString(RequestTask.PARAM_URL);
+        if (url == null || !mFile.isFile()) {
+            LogUtil.e(TAG, "invalid upload: " + url + " " + mFile);
+            return result;
+        }
+        File file = mFile;
+        if (mImageMaxSide > 0) {
+            file = ImageUtil.compressForUpload(mFile, mContext.getCacheDir(), mImageMaxSide,
+                    mImageQuality);
+            if (file == null) {
+                // 去不掉元数据时不上传原图
+                LogUtil.e(TAG, "cannot prepare image for upload: " + mFile);
+                return result;
+            }
+            LogUtil.d(TAG, "compress %d -> %d", mFile.length(), file.length());
+        }
+        try {
+            return upload(url, file, result);
+        } finally {
+            if (file != mFile) {
+                file.delete();
+            }
+        }
+    }
+
+    private TaskResult upload(String url, File file, TaskResult result) {
+        long total = file.length();
+        long offset = 0;
+        boolean query = mResume;
+        int failures = 0;
+        boolean wait = false;
+        while (!isCancelled()) {
+            // 在归还连接之后再退避等待
+            if (wait) {
+                wait = false;
+                if (!backoff(failures)) {
+                    return result;
+                }
+            }
+            HttpUriRequest request;
+            if (query) {
+                request = HttpUtil.createChunkUploadRequest(url, null, offset, total, mHeaders);
+            } else {
+                long length = Math.min(mChunkSize, total - offset);
+                CountingEntity chunk = new CountingEntity(
+                        new FileChannelBody(file, offset, length, mMimeType).asEntity(),
+                        offset, total, progressPublisher(), getAbortHandle());
+                chunk.setMaxBytesPerSecond(mMaxBytesPerSecond);
+                request = HttpUtil.createChunkUploadRequest(url, chunk, offset, total, mHeaders);
+            }
+            HttpResponse response = null;
+            getAbortHandle().register(request);
+            try {
+                HttpClient client = HttpUtil.getHttpClient(mContext);
+                response = HttpUtil.execute(client, request);
+                int stateCode = response.getStatusLine().getStatusCode();
+                if (stateCode == SC_RESUME_INCOMPLETE) {
+                    long received = parseReceived(response);
+                    if (received >= total && query) {
+                        LogUtil.w(TAG, "server reports all bytes received but no result");
+                        return result;
+                    }
+                    if (received < offset) {
+                        // 服务端确认过的位置不会后退，范围不一致时不再继续
+                        LogUtil.w(TAG, "server range moved back " + offset + " -> " + received);
+                        return result;
+                    }
+                    if (received > offset) {
+                        failures = 0;
+                    } else if (!query) {
+                        // 发了一片却没有进展，和失败一样计数并退避，避免一直重发同一片
+                        if (++failures > MAX_FAILURES_WITHOUT_PROGRESS) {
+                            LogUtil.w(TAG, "no progress at " + offset + "/" + total);
+                            return result;
+                        }
+                        wait = true;
+                    }
+                    offset = received;
+                    // 最后一片发完仍是308，查询一次拿结果
+                    query = offset >= total;
+                    continue;
+                }
+                result.stateCode = stateCode;
+                if (stateCode == HttpStatus.SC_OK || stateCode == HttpStatus.SC_CREATED) {
+                    result.stateCode = HttpStatus.SC_OK;
+                    HttpEntity entity = response.getEntity();
+                    InputStream inputStream = entity == null ? null : entity.getContent();
+                    if (inputStream != null && mParser != null) {
+                        result.retObj = mParser.parse(inputStream);
+                    }
+                } else {
+                    LogUtil.w(TAG, "upload failed: " + stateCode + " at " + offset + "/" + total);
+                }
+                return result;
+            } catch (IOException e) {
+                if (isCancelled() || getAbortHandle().isAborted()
+                        || ++failures > MAX_FAILURES_WITHOUT_PROGRESS) {
+                    LogUtil.e(TAG, e.toString());
+                    return result;
+                }
+                LogUtil.w(TAG, "upload interrupted at " + offset + ", " + e);
+                // 不知道这一片服务端收到了多少，下次先查询
+                query = true;
+                wait = true;
+            } catch (Exception e) {
+                LogUtil.e(TAG, e.toString());
+                return result;
+            } finally {
+                getAbortHandle().unregister(request);
+                HttpUtil.releaseConnection(request, response);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 第failures次失败后等待，被取消时返回false
+     */
+    private static boolean backoff(int failures) {
+        try {
+            Thread.sleep(FAILURE_DELAY_MS * failures);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 解析308响应的Range: bytes=0-n，返回下一片的起始位置
+     */
+    private static long parseReceived(HttpResponse response) {
+        Header range = response.getFirstHeader("Range");
+        if (range == null) {
+            return 0;
+        }
+        String value = range.getValue();
+        int dash = value.lastIndexOf('-');
+        try {
+            return Long.parseLong(value.substring(dash + 1).trim()) + 1;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.github.lorcan.base.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import com.github.lorcan.base.network.TaskPriority;
+import com.github.lorcan.base.network.TaskRuntime;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 日志文件的单线程批量写入<br>
+ * 1 调用线程只把日志放入无锁的环形缓冲，不做文件io，缓冲满时丢弃并计数<br>
+ * 2 一个后台线程取出日志，按文件攒到缓冲区，满了或每隔FLUSH_INTERVAL_MS
+ * 通过一直打开的FileChannel追加写入<br>
+ * 3 崩溃日志立即唤醒写线程，崩溃处理中可以调用{@link #flush(long)}等待写完<br>
+ * 4 每个文件按{@link LogFile}分段滚动，超出上限时只丢最老的一段。
+ * 写满的段交给TaskRuntime的BACKGROUND通道压缩，写线程直接写新的一段
+ *
+ * @author lorcan
+ */
+public class AsyncFileLogger {
+
+    private static final String TAG = "AsyncFileLogger";
+
+    /**
+     * 环形缓冲的容量，必须是2的幂
+     */
+    private static final int CAPACITY = 1024;
+
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * 每放入这么多条唤醒一次写线程，避免每条日志都unpark
+     */
+    private static final int WAKE_UP_INTERVAL = CAPACITY / 4;
+
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    /**
+     * 超过这么久没有写入的文件关闭FileChannel并移除，下次写入时重新打开
+     */
+    private static final long IDLE_CLOSE_MS = 60 * 1000;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private static final AsyncFileLogger sInstance = new AsyncFileLogger();
+
+    private final AtomicReferenceArray<Record> mSlots = new AtomicReferenceArray<Record>(CAPACITY);
+
+    /**
+     * 每个槽位的序号：等于写入位置时可写，等于写入位置+1时可读
+     */
+    private final AtomicLongArray mSequences = new AtomicLongArray(CAPACITY);
+
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * 只由写线程修改
+     */
+    private volatile long mHead;
+
+    /**
+     * 已经写入文件的位置，用于flush等待
+     */
+    private volatile long mWritten;
+
+    private volatile boolean mFlushRequested;
+
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private volatile Thread mWriter;
+
+    /**
+     * 写线程私有，按文件名区分，同名的LogFile写同一个文件
+     */
+    private final HashMap<String, Target> mTargets = new HashMap<String, Target>();
+
+    private long mReportedDropped;
+
+    private AsyncFileLogger() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    public static AsyncFileLogger getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * 追加一条日志，不阻塞
+     *
+     * @param file   写入的日志文件
+     * @param text   日志内容，需自带换行
+     * @param urgent 是否立即唤醒写线程
+     * @return 缓冲已满被丢弃时返回false
+     */
+    public boolean append(LogFile file, String text, boolean urgent) {
+        long pos = mTail.get();
+        int index;
+        while (true) {
+            index = (int) (pos & MASK);
+            long diff = mSequences.get(index) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = mTail.get();
+            } else if (diff < 0) {
+                // 写线程跟不上，丢弃
+                mDropped.incrementAndGet();
+                return false;
+            } else {
+                pos = mTail.get();
+            }
+        }
+        mSlots.set(index, new Record(file, text));
+        mSequences.set(index, pos + 1);
+        Thread writer = ensureWriter();
+        if (urgent || (pos & (WAKE_UP_INTERVAL - 1)) == 0) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * 因缓冲满丢弃的日志条数
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * 等待调用前放入的日志全部写入文件
+     *
+     * @return 是否在超时前写完
+     */
+    public boolean flush(long timeoutMs) {
+        long target = mTail.get();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        mFlushRequested = true;
+        LockSupport.unpark(ensureWriter());
+        while (mWritten < target) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Thread ensureWriter() {
+        Thread writer = mWriter;
+        return writer != null ? writer : startWriter();
+    }
+
+    private synchronized Thread startWriter() {
+        if (mWriter == null) {
+            mWriter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, "LogWriter");
+            mWriter.setDaemon(true);
+            mWriter.setPriority(Thread.MIN_PRIORITY);
+            mWriter.start();
+        }
+        return mWriter;
+    }
+
+    private void writeLoop() {
+        long lastFlush = System.currentTimeMillis();
+        while (true) {
+            boolean drained = false;
+            long now = System.currentTimeMillis();
+            try {
+                Record record;
+                while ((record = poll()) != null) {
+                    drained = true;
+                    buffer(record, now);
+                }
+                if (mFlushRequested || now - lastFlush >= FLUSH_INTERVAL_MS) {
+                    mFlushRequested = false;
+                    lastFlush = now;
+                    flushAll(now);
+                    mWritten = mHead;
+                }
+            } catch (RuntimeException e) {
+                // 出错的这一批日志丢弃，关闭所有文件后继续，写线程不能退出
+                LogUtil.e(TAG, "write file log fail", e);
+                closeAll();
+                mWritten = mHead;
+                drained = false;
+            }
+            if (!drained) {
+                LockSupport.parkNanos(
+                        Math.max(1, FLUSH_INTERVAL_MS - (now - lastFlush)) * 1000000L);
+            }
+        }
+    }
+
+    /**
+     * 只有写线程调用
+     */
+    private Record poll() {
+        long head = mHead;
+        int index = (int) (head & MASK);
+        if (mSequences.get(index) != head + 1) {
+            return null;
+        }
+        Record record = mSlots.get(index);
+        mSlots.set(index, null);
+        mSequences.set(index, head + CAPACITY);
+        mHead = head + 1;
+        return record;
+    }
+
+    private void buffer(Record record, long now) {
+        Target target = mTargets.get(record.file.name);
+        if (target == null) {
+            target = new Target(record.file);
+            mTargets.put(record.file.name, target);
+        }
+        target.lastUsed = now;
+        long dropped = mDropped.get();
+        if (dropped > mReportedDropped) {
+            // 有日志被丢弃时在下一条日志前记一笔
+            put(target, "[" + TAG + "] " + (dropped - mReportedDropped)
+                    + " log lines dropped\n");
+            mReportedDropped = dropped;
+        }
+        put(target, record.text);
+    }
+
+    private static void put(Target target, String text) {
+        byte[] bytes;
+        try {
+            bytes = text.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            bytes = text.getBytes();
+        }
+        if (bytes.length > target.pending.remaining()) {
+            target.flush();
+        }
+        if (bytes.length > target.pending.capacity()) {
+            target.write(ByteBuffer.wrap(bytes));
+        } else {
+            target.pending.put(bytes);
+        }
+    }
+
+    /**
+     * 写出所有缓冲，空闲超过IDLE_CLOSE_MS的文件关闭并移除
+     */
+    private void flushAll(long now) {
+        Iterator<Target> iterator = mTargets.values().iterator();
+        while (iterator.hasNext()) {
+            Target target = iterator.next();
+            target.flush();
+            if (now - target.lastUsed >= IDLE_CLOSE_MS) {
+                target.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (Target target : mTargets.values()) {
+            target.close();
+        }
+        mTargets.clear();
+    }
+
+    /**
+     * 一个日志文件的分段配置：当前段写满segmentSize后依次后移为name.1、name.2……，
+     * 最多保留segmentCount段（包括当前段），最老的一段被删除
+     */
+    public static class LogFile {
+        final String name;
+        final int segmentSize;
+        final int segmentCount;
+        final boolean compress;
+
+        /**
+         * @param name         日志目录下的文件名
+         * @param segmentSize  每段的字节数
+         * @param segmentCount 段数，包括正在写的一段
+         * @param compress     写满的段是否gzip压缩
+         */
+        public LogFile(String name, int segmentSize, int segmentCount, boolean compress) {
+            this.name = name;
+            this.segmentSize = segmentSize;
+            this.segmentCount = Math.max(1, segmentCount);
+            this.compress = compress;
+        }
+    }
+
+    private static class Record {
+        final LogFile file;
+        final String text;
+
+        Record(LogFile file, String text) {
+            this.file = file;
+            this.text = text;
+        }
+    }
+
+    /**
+     * 一个日志文件，只在写线程访问。当前段的大小在内存中累计，写日志时不查询文件长度。
+     * 段的改名和压缩结果的落盘在后台压缩线程也会发生，用Target自身加锁
+     */
+    private static class Target {
+        final LogFile file;
+        final ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+        FileChannel channel;
+        long size;
+        long lastUsed;
+
+        /**
+         * 滚动次数，压缩任务据此算出待压缩的段现在后移到了第几段
+         */
+        long rotations;
+
+        Target(LogFile file) {
+            this.file = file;
+        }
+
+        void flush() {
+            if (pending.position() == 0) {
+                return;
+            }
+            pending.flip();
+            write(pending);
+            pending.clear();
+        }
+
+        void write(ByteBuffer buffer) {
+            try {
+                if (channel != null && !segment(0).exists()) {
+                    // 文件在外部被删除，重新打开，不再写入已删除的文件
+                    close();
+                }
+                if (channel == null && !open()) {
+                    return;
+                }
+                while (buffer.hasRemaining()) {
+                    size += channel.write(buffer);
+                }
+                if (size >= file.segmentSize) {
+                    close();
+                    rotate();
+                }
+            } catch (IOException e) {
+                LogUtil.e(TAG, "write file log fail", e);
+                close();
+            }
+        }
+
+        private boolean open() throws IOException {
+            if (!StorageUtil.isSDCardExist()) {
+                return false;
+            }
+            File current = segment(0);
+            current.getParentFile().mkdirs();
+            channel = new FileOutputStream(current, true).getChannel();
+            size = channel.size();
+            if (size >= file.segmentSize) {
+                close();
+                rotate();
+                channel = new FileOutputStream(current, true).getChannel();
+                size = 0;
+            }
+            return true;
+        }
+
+        /**
+         * 删除最老的一段，其余依次后移，当前段变为第1段，需要压缩时交给后台通道
+         */
+        private void rotate() {
+            int last = file.segmentCount - 1;
+            if (last == 0) {
+                segment(0).delete();
+                return;
+            }
+            final long rotation;
+            synchronized (this) {
+                segment(last).delete();
+                compressed(last).delete();
+                for (int i = last - 1; i >= 1; i--) {
+                    segment(i).renameTo(segment(i + 1));
+                    compressed(i).renameTo(compressed(i + 1));
+                }
+                rotation = ++rotations;
+                if (!segment(0).renameTo(segment(1)) || !file.compress) {
+                    return;
+                }
+            }
+            // 通道满时任务被丢弃，这一段保留不压缩
+            TaskRuntime.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    compress(rotation);
+                }
+            }, TaskPriority.BACKGROUND);
+        }
+
+        /**
+         * 在后台通道压缩第rotation次滚动产生的段。压缩期间写线程可能继续滚动，
+         * 只在打开源文件和落盘结果时加锁，按滚动次数的差找到这一段当前的位置
+         */
+        private void compress(long rotation) {
+            FileInputStream in = null;
+            synchronized (this) {
+                File source = segment(currentIndex(rotation));
+                try {
+                    if (source.exists()) {
+                        in = new FileInputStream(source);
+                    }
+                } catch (IOException e) {
+                    LogUtil.e(TAG, "compress file log fail", e);
+                }
+            }
+            if (in == null) {
+                // 已经被滚动删除
+                return;
+            }
+            byte[] buffer = new byte[8192];
+            File temp = null;
+            GZIPOutputStream out = null;
+            boolean ok = false;
+            try {
+                temp = File.createTempFile(file.name + ".", ".tmp", segment(0).getParentFile());
+                out = new GZIPOutputStream(new FileOutputStream(temp));
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+                out.finish();
+                ok = true;
+            } catch (IOException e) {
+                LogUtil.e(TAG, "compress file log fail", e);
+            } finally {
+                closeQuietly(in);
+                closeQuietly(out);
+            }
+            synchronized (this) {
+                int index = currentIndex(rotation);
+                // 压缩失败时保留原文件
+                if (ok && index < file.segmentCount && temp.renameTo(compressed(index))) {
+                    segment(index).delete();
+                } else if (temp != null) {
+                    temp.delete();
+                }
+            }
+        }
+
+        /**
+         * 第rotation次滚动产生的段现在的序号，大于等于segmentCount时已被删除
+         */
+        private int currentIndex(long rotation) {
+            return (int) Math.min(file.segmentCount, 1 + rotations - rotation);
+        }
+
+        private File segment(int index) {
+            String name = index == 0 ? file.name : file.name + "." + index;
+            return new File(StorageUtil.getDirByType(StorageUtil.DIR_TYPE_LOG), name);
+        }
+
+        private File compressed(int index) {
+            return new File(segment(index).getPath() + GZIP_SUFFIX);
+        }
+
+        private void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LogUtil.e(TAG, "close file log fail", e);
+                }
+                channel = null;
+            }
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            if (closeable != null) {
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
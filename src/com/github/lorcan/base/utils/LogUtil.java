@@ -1,15 +1,14 @@
 package com.github.lorcan.base.utils;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IllegalFormatException;
+import java.util.Map;
 
 import android.util.Log;
-import com.github.lorcan.base.network.GenericTask;
-import com.github.lorcan.base.network.TaskParams;
-import com.github.lorcan.base.network.TaskResult;
 
 /**
  * 日志工具类
@@ -28,15 +27,68 @@ public class LogUtil {
 
     private static final String LOG_FILE_PATH = "background.log";
     private static final int MAX_LOG_FILE_LENGTH = 1024 * 500;
+    private static final int LOG_FILE_SEGMENTS = 5;
 
     private static final String EXCEPTION_LOG_FILE_PATH = "crash.log";
     public static final int MAX_CRASHLOG_FILE_LENGTH = 1024 * 500;
+    private static final int CRASHLOG_FILE_SEGMENTS = 2;
+
+    /**
+     * 普通日志分段滚动，写满的段压缩保存
+     */
+    private static final AsyncFileLogger.LogFile LOG_FILE = new AsyncFileLogger.LogFile(
+            LOG_FILE_PATH, MAX_LOG_FILE_LENGTH / LOG_FILE_SEGMENTS, LOG_FILE_SEGMENTS, true);
+
+    /**
+     * 崩溃日志按自己的上限滚动，不压缩方便直接查看
+     */
+    private static final AsyncFileLogger.LogFile CRASHLOG_FILE = new AsyncFileLogger.LogFile(
+            EXCEPTION_LOG_FILE_PATH, MAX_CRASHLOG_FILE_LENGTH / CRASHLOG_FILE_SEGMENTS,
+            CRASHLOG_FILE_SEGMENTS, false);
 
     /**
      * log 标志位，false关闭
      */
     public static boolean gLogFlag = true;
 
+    /**
+     * 没有单独设置的tag输出的最低级别
+     */
+    private static volatile int sMinLevel = LOG_D;
+
+    /**
+     * 按tag设置的最低级别，修改时整体替换，读时不加锁
+     */
+    private static volatile Map<String, Integer> sTagLevels = Collections.emptyMap();
+
+    /**
+     * 设置默认的最低输出级别
+     */
+    public static void setLevel(int level) {
+        sMinLevel = level;
+    }
+
+    /**
+     * 单独设置某个tag的最低输出级别
+     */
+    public static synchronized void setLevel(String tag, int level) {
+        Map<String, Integer> levels = new HashMap<String, Integer>(sTagLevels);
+        levels.put(tag, level);
+        sTagLevels = levels;
+    }
+
+    /**
+     * 该级别的日志是否会输出，参数需要额外计算时先用它判断
+     */
+    public static boolean isLoggable(String tag, int level) {
+        if (!gLogFlag) {
+            return false;
+        }
+        Map<String, Integer> levels = sTagLevels;
+        Integer min = levels.isEmpty() ? null : levels.get(tag);
+        return level >= (min != null ? min : sMinLevel);
+    }
+
     public static void d(String tag, String msg) {
         log(tag, msg, LOG_D);
     }
@@ -45,6 +97,36 @@ public class LogUtil {
         log(DEF_TAG, msg, LOG_D);
     }
 
+    /**
+     * 按{@link String#format}格式化，不输出时不格式化
+     */
+    public static void d(String tag, String format, Object arg) {
+        if (isLoggable(tag, LOG_D)) {
+            log(tag, format(format, arg), LOG_D);
+        }
+    }
+
+    /**
+     * 基本类型参数不装箱
+     */
+    public static void d(String tag, String format, long arg) {
+        if (isLoggable(tag, LOG_D)) {
+            log(tag, format(format, arg), LOG_D);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, LOG_D)) {
+            log(tag, format(format, arg1, arg2), LOG_D);
+        }
+    }
+
+    public static void d(String tag, String format, Object... args) {
+        if (isLoggable(tag, LOG_D)) {
+            log(tag, format(format, args), LOG_D);
+        }
+    }
+
     public static void i(String tag, String msg) {
         log(tag, msg, LOG_I);
     }
@@ -53,6 +135,30 @@ public class LogUtil {
         log(DEF_TAG, msg, LOG_I);
     }
 
+    public static void i(String tag, String format, Object arg) {
+        if (isLoggable(tag, LOG_I)) {
+            log(tag, format(format, arg), LOG_I);
+        }
+    }
+
+    public static void i(String tag, String format, long arg) {
+        if (isLoggable(tag, LOG_I)) {
+            log(tag, format(format, arg), LOG_I);
+        }
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, LOG_I)) {
+            log(tag, format(format, arg1, arg2), LOG_I);
+        }
+    }
+
+    public static void i(String tag, String format, Object... args) {
+        if (isLoggable(tag, LOG_I)) {
+            log(tag, format(format, args), LOG_I);
+        }
+    }
+
     public static void w(String tag, String msg, Throwable tr) {
         log(tag, msg, tr, LOG_W);
     }
@@ -78,8 +184,8 @@ public class LogUtil {
     }
 
     private static void log(String tag, String msg, int logType) {
-        // 如果关闭log，直接返回
-        if (!gLogFlag) {
+        // 如果关闭log或低于tag的级别，直接返回
+        if (!isLoggable(tag, logType)) {
             return;
         }
         if (msg == null) {
@@ -111,7 +217,7 @@ public class LogUtil {
         if (msg == null) {
             msg = "null";
         }
-        writeLogInfoToFile(LOG_FILE_PATH, MAX_LOG_FILE_LENGTH, msg + "\n");
+        writeLogInfoToFile(LOG_FILE, msg + "\n", false);
     }
 
     /**
@@ -121,63 +227,28 @@ public class LogUtil {
      * @param msg
      */
     public static void fileLogE(String msg) {
-        writeLogInfoToFile(EXCEPTION_LOG_FILE_PATH, MAX_CRASHLOG_FILE_LENGTH,
-                msg);
+        writeLogInfoToFile(CRASHLOG_FILE, msg, true);
     }
 
     private static void log(String tag, String msg, Throwable tr, int logType) {
-        // 如果关闭log，直接返回
-        if (!gLogFlag) {
+        // 如果关闭log或低于tag的级别，直接返回，不生成堆栈字符串
+        if (!isLoggable(tag, logType)) {
             return;
         }
         log(tag, msg + '\n' + getStackTraceString(tr), logType);
     }
 
-    private static void writeLogInfoToFile(final String filePath,
-            final int logFileLength, final String logInfo) {
+    private static void writeLogInfoToFile(AsyncFileLogger.LogFile file, String logInfo,
+            boolean urgent) {
+        // 只放入缓冲，由写线程批量追加到文件
+        AsyncFileLogger.getInstance().append(file, logInfo, urgent);
+    }
+
+    private static String format(String format, Object... args) {
         try {
-            if (StorageUtil.isSDCardExist()) {
-                // make sure file created
-                final File file = new File(
-                        StorageUtil.getDirByType(StorageUtil.DIR_TYPE_LOG),
-                        filePath);
-                if (file.exists()) {
-                    if (file.length() > MAX_LOG_FILE_LENGTH) {
-                        file.delete();
-                    }
-                }
-                if (!file.exists()) {
-                    file.getParentFile().mkdirs();
-                    file.createNewFile();
-                }
-
-                // async write log
-                new GenericTask() {
-
-                    @Override
-                    protected TaskResult doInBackground(TaskParams... params) {
-                        FileWriter fw = null;
-                        try {
-                            fw = new FileWriter(file, true);
-                            fw.write(logInfo);
-                            fw.flush();
-                        } catch (IOException e) {
-                            LogUtil.e(e);
-                        } finally {
-                            if (fw != null) {
-                                try {
-                                    fw.close();
-                                } catch (IOException e) {
-                                    LogUtil.e(DEF_TAG, "write file log fail", e);
-                                }
-                            }
-                        }
-                        return null;
-                    }
-                }.execute();
-            }
-        } catch (Exception e) {
-            LogUtil.e(DEF_TAG, "write file log fail", e);
+            return String.format(format, args);
+        } catch (IllegalFormatException e) {
+            return format + " " + Arrays.toString(args);
         }
     }
 
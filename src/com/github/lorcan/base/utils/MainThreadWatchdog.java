@@ -0,0 +1,107 @@
+package com.github.lorcan.base.utils;
+
+import android.os.Looper;
+
+/**
+ * 调试用的主线程io检测：库里会读写文件或访问网络的地方打点，
+ * 在主线程执行时记录耗时和调用位置<br>
+ * 1 默认关闭，关闭或不在主线程时打点只是一次判断<br>
+ * 2 耗时记入{@link Metrics}的main_io.操作名直方图，调用位置记入main_io.操作名@类.方法:行号计数器<br>
+ * 3 超过一帧的调用打一条警告日志，带上调用位置
+ *
+ * @author lorcan
+ */
+public final class MainThreadWatchdog {
+
+    private static final String TAG = "MainThreadWatchdog";
+
+    /**
+     * 超过一帧的阻塞打警告
+     */
+    private static final long WARN_THRESHOLD_MS = 16;
+
+    private static final String PREFIX = "main_io.";
+
+    private static final String[] LIBRARY_PACKAGES = {
+            "com.github.lorcan.base.controller.", "com.github.lorcan.base.image.",
+            "com.github.lorcan.base.network.", "com.github.lorcan.base.parser.",
+            "com.github.lorcan.base.utils."
+    };
+
+    private static volatile boolean sEnabled;
+
+    private MainThreadWatchdog() {
+    }
+
+    /**
+     * 开启检测，一般只在debug包中开启
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * io开始前调用
+     *
+     * @return 开始时间，未开启或不在主线程时返回0
+     */
+    public static long begin() {
+        if (!sEnabled || Looper.myLooper() != Looper.getMainLooper()) {
+            return 0;
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * io结束后调用，记录耗时和调用被检测方法的位置
+     *
+     * @param op    操作名，如mkdirs
+     * @param start {@link #begin()}的返回值
+     */
+    public static void end(String op, long start) {
+        if (start == 0) {
+            return;
+        }
+        long cost = System.currentTimeMillis() - start;
+        String site = callSite();
+        Metrics.histogram(PREFIX + op).record(cost);
+        Metrics.counter(PREFIX + op + "@" + site).inc();
+        if (cost >= WARN_THRESHOLD_MS) {
+            LogUtil.w(TAG, op + " blocked main thread " + cost + "ms at " + site);
+        }
+    }
+
+    /**
+     * 调用栈：[0]callSite [1]end [2]被检测的方法 [3]起为调用方，
+     * 取第一个库外的调用方，找不到时取直接调用方
+     */
+    private static String callSite() {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        if (stack.length < 4) {
+            return "unknown";
+        }
+        StackTraceElement caller = stack[3];
+        for (int i = 3; i < stack.length; i++) {
+            if (!isLibraryClass(stack[i].getClassName())) {
+                caller = stack[i];
+                break;
+            }
+        }
+        String className = caller.getClassName();
+        return className.substring(className.lastIndexOf('.') + 1) + "." + caller.getMethodName()
+                + ":" + caller.getLineNumber();
+    }
+
+    private static boolean isLibraryClass(String className) {
+        for (String prefix : LIBRARY_PACKAGES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,266 @@
+package com.github.lorcan.base.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 运行指标的注册表：分段计数器和固定分桶的耗时直方图<br>
+ * 1 计数器和直方图的桶都按线程分散到多个槽位累加，多线程同时记录时不争同一个缓存行<br>
+ * 2 直方图的桶边界固定，记录一次只是一次查找和两次原子加，不分配对象<br>
+ * 3 指标在使用处用static final持有，热路径上不查注册表；
+ * 通过{@link #snapshot()}或{@link #dump()}在应用内查看
+ *
+ * @author lorcan
+ */
+public final class Metrics {
+
+    /**
+     * 槽位数，必须是2的幂
+     */
+    private static final int STRIPES = 8;
+
+    /**
+     * 相邻槽位间隔的long个数，让每个槽位独占一个缓存行
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * 耗时直方图的桶上界（毫秒），最后还有一个不封顶的桶
+     */
+    private static final long[] BUCKET_BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+
+    private static final int BUCKET_COUNT = BUCKET_BOUNDS.length + 1;
+
+    /**
+     * 直方图每个槽位一行桶，行长补齐到PADDING的整数倍，不同槽位的桶不在同一个缓存行
+     */
+    private static final int BUCKET_ROW = (BUCKET_COUNT + PADDING - 1) / PADDING * PADDING;
+
+    private static final ConcurrentHashMap<String, Counter> sCounters =
+            new ConcurrentHashMap<String, Counter>();
+
+    private static final ConcurrentHashMap<String, Histogram> sHistograms =
+            new ConcurrentHashMap<String, Histogram>();
+
+    private Metrics() {
+    }
+
+    /**
+     * 取得或创建计数器
+     */
+    public static Counter counter(String name) {
+        Counter counter = sCounters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = sCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * 取得或创建耗时直方图
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = sHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * 当前所有指标的快照，按名称排序
+     */
+    public static Snapshot snapshot() {
+        TreeMap<String, Long> counters = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> entry : sCounters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        TreeMap<String, HistogramSnapshot> histograms = new TreeMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, Histogram> entry : sHistograms.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Snapshot(counters, histograms);
+    }
+
+    /**
+     * 所有指标的文本形式，一行一个
+     */
+    public static String dump() {
+        return snapshot().toString();
+    }
+
+    /**
+     * 清零所有指标，指标对象本身保留
+     */
+    public static void reset() {
+        for (Counter counter : sCounters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : sHistograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * 当前线程的槽位序号
+     */
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    /**
+     * 分段计数器
+     */
+    public static final class Counter {
+        private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+        private Counter() {
+        }
+
+        public void inc() {
+            mCells.incrementAndGet(stripe() * PADDING);
+        }
+
+        public void add(long delta) {
+            mCells.addAndGet(stripe() * PADDING, delta);
+        }
+
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += mCells.get(i * PADDING);
+            }
+            return sum;
+        }
+
+        void reset() {
+            for (int i = 0; i < STRIPES; i++) {
+                mCells.set(i * PADDING, 0);
+            }
+        }
+    }
+
+    /**
+     * 固定分桶的耗时直方图，单位毫秒
+     */
+    public static final class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(STRIPES * BUCKET_ROW);
+        private final Counter mSum = new Counter();
+
+        private Histogram() {
+        }
+
+        public void record(long millis) {
+            int index = 0;
+            while (index < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[index]) {
+                index++;
+            }
+            mBuckets.incrementAndGet(stripe() * BUCKET_ROW + index);
+            mSum.add(millis);
+        }
+
+        /**
+         * 记录从startMillis到现在的耗时
+         */
+        public void recordSince(long startMillis) {
+            record(System.currentTimeMillis() - startMillis);
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] counts = new long[BUCKET_COUNT];
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    counts[i] += mBuckets.get(stripe * BUCKET_ROW + i);
+                }
+            }
+            return new HistogramSnapshot(counts, mSum.get());
+        }
+
+        void reset() {
+            for (int i = 0; i < mBuckets.length(); i++) {
+                mBuckets.set(i, 0);
+            }
+            mSum.reset();
+        }
+    }
+
+    public static final class HistogramSnapshot {
+        public final long count;
+        public final long sum;
+        private final long[] mCounts;
+
+        HistogramSnapshot(long[] counts, long sum) {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.count = count;
+            this.sum = sum;
+            mCounts = counts;
+        }
+
+        public long mean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * 百分位数所在桶的上界，落在最后一个桶时返回-1
+         *
+         * @param percent 0到100
+         */
+        public long percentile(int percent) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percent / 100.0);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return i < BUCKET_BOUNDS.length ? BUCKET_BOUNDS[i] : -1;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + mean() + "ms p50<=" + percentile(50)
+                    + "ms p95<=" + percentile(95) + "ms p99<=" + percentile(99) + "ms";
+        }
+    }
+
+    public static final class Snapshot {
+        public final Map<String, Long> counters;
+        public final Map<String, HistogramSnapshot> histograms;
+
+        Snapshot(Map<String, Long> counters, Map<String, HistogramSnapshot> histograms) {
+            this.counters = counters;
+            this.histograms = histograms;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            }
+            for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()) {
+                sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+}
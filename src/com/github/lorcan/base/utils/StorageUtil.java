@@ -105,18 +105,9 @@ public class StorageUtil {
      */
     public static String getDirByType(int type) {
         String dir = "/";
-        String filePath = "";
-        switch (type) {
-            case DIR_TYPE_IMAGE: {
-                filePath = IMAGE_DIR;
-                break;
-            }
-            case DIR_TYPE_LOG: {
-                filePath = LOG_DIR;
-                break;
-            }
-        }
+        String filePath = getDirPathByType(type);
 
+        long start = MainThreadWatchdog.begin();
         File file = new File(filePath);
         if (!file.exists() || !file.isDirectory()) {
             file.mkdirs();
@@ -129,9 +120,27 @@ public class StorageUtil {
             // 文件没创建成功，可能是sd卡不存在，但是还是把路径返回
             dir = filePath;
         }
+        MainThreadWatchdog.end("mkdirs", start);
         return dir;
     }
 
+    /**
+     * 目录路径，不访问文件系统，目录不存在时由写文件的一方在后台创建.
+     *
+     * @param type the type
+     * @return the dir path
+     */
+    public static String getDirPathByType(int type) {
+        switch (type) {
+            case DIR_TYPE_IMAGE:
+                return IMAGE_DIR;
+            case DIR_TYPE_LOG:
+                return LOG_DIR;
+            default:
+                return "";
+        }
+    }
+
     /**
      * 是否插入sdcard.
      *
@@ -0,0 +1,288 @@
+package com.github.lorcan.base.utils;
+
+import android.os.Process;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 请求生命周期的分段追踪<br>
+ * 1 每个任务开始时按采样率决定是否追踪，不追踪的任务拿到{@link Trace#NOOP}，
+ * 各阶段打点都是空操作<br>
+ * 2 被追踪任务的各阶段记为一个span，放入固定大小的环形缓冲，满了覆盖最老的<br>
+ * 3 {@link #export(File)}导出为Chrome trace event格式的json，
+ * 可以用chrome://tracing或Perfetto打开，每个任务占一行
+ *
+ * @author lorcan
+ */
+public final class Tracer {
+
+    private static final String TAG = "Tracer";
+
+    private static final int CAPACITY = 4096;
+
+    private static final Event[] sEvents = new Event[CAPACITY];
+
+    private static int sNext;
+
+    private static int sSize;
+
+    private static final AtomicInteger sTraceIds = new AtomicInteger();
+
+    private static final Random sRandom = new Random();
+
+    private static volatile double sSampleRate = 0.01;
+
+    /**
+     * 当前线程正在执行的任务的追踪，HttpUtil等底层代码从这里取
+     */
+    private static final ThreadLocal<Trace> sCurrent = new ThreadLocal<Trace>() {
+        @Override
+        protected Trace initialValue() {
+            return Trace.NOOP;
+        }
+    };
+
+    private Tracer() {
+    }
+
+    /**
+     * 设置采样率，0为关闭，1为追踪所有任务，默认0.01
+     */
+    public static void setSampleRate(double rate) {
+        sSampleRate = Math.max(0, Math.min(1, rate));
+    }
+
+    public static double getSampleRate() {
+        return sSampleRate;
+    }
+
+    /**
+     * 开始一个任务的追踪，未被采样时返回{@link Trace#NOOP}
+     *
+     * @param name 任务类型，如RequestTask
+     */
+    public static Trace start(String name) {
+        double rate = sSampleRate;
+        if (rate <= 0 || (rate < 1 && sRandom.nextDouble() >= rate)) {
+            return Trace.NOOP;
+        }
+        return new Trace(sTraceIds.incrementAndGet(), name);
+    }
+
+    /**
+     * 当前线程上的追踪，没有时返回{@link Trace#NOOP}
+     */
+    public static Trace current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * 把追踪绑定到当前线程，返回之前绑定的，执行完后再绑定回去
+     */
+    public static Trace bind(Trace trace) {
+        Trace previous = sCurrent.get();
+        sCurrent.set(trace == null ? Trace.NOOP : trace);
+        return previous;
+    }
+
+    /**
+     * 清空缓冲中的span
+     */
+    public static void clear() {
+        synchronized (sEvents) {
+            for (int i = 0; i < CAPACITY; i++) {
+                sEvents[i] = null;
+            }
+            sNext = 0;
+            sSize = 0;
+        }
+    }
+
+    /**
+     * 导出到日志目录下的trace-时间.json，有文件io，不要在主线程调用
+     *
+     * @return 导出的文件，失败时返回null
+     */
+    public static File exportToStorage() {
+        if (!StorageUtil.isSDCardExist()) {
+            return null;
+        }
+        File file = new File(StorageUtil.getDirByType(StorageUtil.DIR_TYPE_LOG),
+                "trace-" + System.currentTimeMillis() + ".json");
+        return export(file) ? file : null;
+    }
+
+    /**
+     * 把缓冲中的span按Chrome trace event格式写入文件，有文件io，不要在主线程调用
+     */
+    public static boolean export(File file) {
+        Event[] events;
+        synchronized (sEvents) {
+            events = new Event[sSize];
+            int first = (sNext - sSize + CAPACITY) % CAPACITY;
+            for (int i = 0; i < sSize; i++) {
+                events[i] = sEvents[(first + i) % CAPACITY];
+            }
+        }
+        Writer writer = null;
+        try {
+            File parent = file.getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                    "UTF-8"));
+            writeJson(writer, events);
+            return true;
+        } catch (IOException e) {
+            LogUtil.e(TAG, "export trace fail", e);
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeJson(Writer writer, Event[] events) throws IOException {
+        int pid = Process.myPid();
+        // 每个任务一行，行名为任务类型和标签
+        Map<Integer, Event> rows = new HashMap<Integer, Event>();
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (Event event : events) {
+            if (!first) {
+                writer.write(",\n");
+            }
+            first = false;
+            rows.put(event.trace.mId, event);
+            writer.write("{\"name\":");
+            writer.write(JSONObject.quote(event.phase));
+            writer.write(",\"cat\":");
+            writer.write(JSONObject.quote(event.trace.mName));
+            writer.write(",\"ph\":\"X\",\"ts\":");
+            writer.write(Long.toString(event.startNanos / 1000));
+            writer.write(",\"dur\":");
+            writer.write(Long.toString(Math.max(0, event.endNanos - event.startNanos) / 1000));
+            writer.write(",\"pid\":");
+            writer.write(Integer.toString(pid));
+            writer.write(",\"tid\":");
+            writer.write(Integer.toString(event.trace.mId));
+            writer.write(",\"args\":{\"thread\":");
+            writer.write(JSONObject.quote(event.thread));
+            writer.write("}}");
+        }
+        for (Map.Entry<Integer, Event> row : rows.entrySet()) {
+            Trace trace = row.getValue().trace;
+            String label = trace.mLabel == null ? trace.mName : trace.mName + " " + trace.mLabel;
+            if (!first) {
+                writer.write(",\n");
+            }
+            first = false;
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":");
+            writer.write(Integer.toString(pid));
+            writer.write(",\"tid\":");
+            writer.write(Integer.toString(row.getKey()));
+            writer.write(",\"args\":{\"name\":");
+            writer.write(JSONObject.quote(label));
+            writer.write("}}");
+        }
+        writer.write("]}");
+    }
+
+    private static void add(Event event) {
+        synchronized (sEvents) {
+            sEvents[sNext] = event;
+            sNext = (sNext + 1) % CAPACITY;
+            if (sSize < CAPACITY) {
+                sSize++;
+            }
+        }
+    }
+
+    /**
+     * 一个任务的追踪。阶段的开始时间用{@link #now()}取得，结束时调用{@link #span}记录
+     */
+    public static class Trace {
+
+        /**
+         * 未被采样的任务，所有方法都是空操作
+         */
+        public static final Trace NOOP = new Trace(0, null);
+
+        private final int mId;
+
+        private final String mName;
+
+        private volatile String mLabel;
+
+        private Trace(int id, String name) {
+            mId = id;
+            mName = name;
+        }
+
+        public boolean isSampled() {
+            return this != NOOP;
+        }
+
+        /**
+         * 导出时显示在行名上，如请求的url
+         */
+        public void setLabel(String label) {
+            if (this != NOOP) {
+                mLabel = label;
+            }
+        }
+
+        /**
+         * 阶段开始时间，单位纳秒，未被采样时返回0
+         */
+        public long now() {
+            return this == NOOP ? 0 : System.nanoTime();
+        }
+
+        /**
+         * 记录从startNanos到现在的一个阶段
+         *
+         * @param phase      阶段名，如queue、connect
+         * @param startNanos {@link #now()}的返回值
+         */
+        public void span(String phase, long startNanos) {
+            if (this != NOOP) {
+                add(new Event(this, phase, startNanos, System.nanoTime(),
+                        Thread.currentThread().getName()));
+            }
+        }
+    }
+
+    private static class Event {
+        final Trace trace;
+        final String phase;
+        final long startNanos;
+        final long endNanos;
+        final String thread;
+
+        Event(Trace trace, String phase, long startNanos, long endNanos, String thread) {
+            this.trace = trace;
+            this.phase = phase;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.thread = thread;
+        }
+    }
+}